@@ -17,25 +17,170 @@
 
 package com.android.dexdeps;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Data extracted from a DEX file.
  */
 public class DexData {
+    /**
+     * The size of a header_item.  Nothing past this is needed to answer
+     * the ID-table size queries after {@link #loadHeader()}, except in a
+     * dex v041 container (see {@link #isContainer(ByteBuffer)}), whose
+     * headers carry two more fields.
+     */
+    public static final int HEADER_SIZE = 0x70;
+
+    /**
+     * The size of a header_item in a dex v041 container, which adds
+     * container_size and header_offset to the end of it.
+     */
+    static final int CONTAINER_HEADER_SIZE = 0x78;
+
     private RandomAccessFile mDexFile;
+    private ByteBuffer mData;               // used instead of mDexFile for buffers
+    private int mHeaderOffset;              // non-zero within a v041 container
+    private int mLimit = Integer.MAX_VALUE; // end of the data, once validated
+    private int mDataStart = HEADER_SIZE;   // end of the header for this version
+    private int mPosition = -1;             // current read position
+    private int mMethodHandlesOff;          // method_handles section, from the map_list
+    private int mMethodHandlesSize;
     private HeaderItem mHeaderItem;
-    private String[] mStrings;              // strings from string_data_*
-    private TypeIdItem[] mTypeIds;
-    private ProtoIdItem[] mProtoIds;
-    private FieldIdItem[] mFieldIds;
-    private MethodIdItem[] mMethodIds;
-    private ClassDefItem[] mClassDefs;
+    private int[] mStringOffsets;           // offsets of string_data_items
+    private String[] mStrings;              // decoded strings, filled lazily
+
+    /*
+     * The ID tables are kept as parallel arrays rather than one object per
+     * item; a large app has hundreds of thousands of these.  Indices into
+     * type_ids and proto_ids are unsigned 16-bit values.
+     */
+    private int[] mTypeDescriptorIdx;       // type_ids: index into string_ids
+    private BitSet mInternalTypes;          // type_ids defined within this DEX
+    private int[] mProtoReturnTypeIdx;      // proto_ids: index into type_ids
+    private int[] mProtoParamStart;         // proto_ids: offset into mProtoParamTypes
+    private int[] mProtoParamTypes;         // proto_ids: flattened type lists
+    private short[] mFieldClassIdx;         // field_ids: index into type_ids
+    private short[] mFieldTypeIdx;          // field_ids: index into type_ids
+    private int[] mFieldNameIdx;            // field_ids: index into string_ids
+    private short[] mMethodClassIdx;        // method_ids: index into type_ids
+    private short[] mMethodProtoIdx;        // method_ids: index into proto_ids
+    private int[] mMethodNameIdx;           // method_ids: index into string_ids
+    private int[] mClassDefClassIdx;        // class_defs: index into type_ids
+    private int[] mClassDefDataOff;         // class_defs: class_data_item offset
+    private int[] mClassDefAnnotationsOff;  // class_defs: annotations_directory_item offset
+    private volatile RefTables mRefTables;  // shared by all refs, built on demand
+    private StringPool mStringPool;         // optional, shared between files
 
     private byte tmpBuf[] = new byte[4];
+    private byte[] mStringBuf = new byte[128];      // for readString()
+    private final Mutf8 mDecoder = new Mutf8();      // for readString()
+
+    /*
+     * A method's arguments take at most 255 registers, so no prototype can
+     * have more parameters than that.
+     */
+    private static final int MAX_PARAMETERS = 255;
+
+    /* map_list item types that duplicate the header's sections */
+    private static final int MAP_TYPE_STRING_ID_ITEM = 0x0001;
+    private static final int MAP_TYPE_TYPE_ID_ITEM = 0x0002;
+    private static final int MAP_TYPE_PROTO_ID_ITEM = 0x0003;
+    private static final int MAP_TYPE_FIELD_ID_ITEM = 0x0004;
+    private static final int MAP_TYPE_METHOD_ID_ITEM = 0x0005;
+    private static final int MAP_TYPE_CLASS_DEF_ITEM = 0x0006;
+
+    /* map_list item type of the section the header doesn't name */
+    private static final int MAP_TYPE_METHOD_HANDLE_ITEM = 0x0008;
+
+    /* method_handle_types up to this one access fields; the rest invoke methods */
+    private static final int METHOD_HANDLE_TYPE_LAST_FIELD_ACCESSOR = 0x03;
+    private static final int METHOD_HANDLE_TYPE_LAST_METHOD_INVOKER = 0x08;
+
+    /*
+     * The width, in 16-bit code units, of each Dalvik instruction, indexed
+     * by opcode.  Unused opcodes are given a width of one so that the scan
+     * keeps moving; the payload pseudo-instructions, which share opcode
+     * 0x00 with nop, are measured separately.
+     */
+    private static final byte[] INSN_WIDTHS = new byte[256];
+
+    /* opcodes whose second code unit is an index into method_ids */
+    private static final BitSet METHOD_INVOKES = new BitSet(256);
+
+    /* opcodes whose second code unit is an index into field_ids */
+    private static final BitSet FIELD_ACCESSES = new BitSet(256);
+
+    /* opcode whose second code unit is an index into method_handles */
+    private static final int CONST_METHOD_HANDLE = 0xfe;
+
+    static {
+        Arrays.fill(INSN_WIDTHS, (byte) 1);
+        setWidth(2, 0x02, 0x02);    // move/from16
+        setWidth(3, 0x03, 0x03);    // move/16
+        setWidth(2, 0x05, 0x05);    // move-wide/from16
+        setWidth(3, 0x06, 0x06);    // move-wide/16
+        setWidth(2, 0x08, 0x08);    // move-object/from16
+        setWidth(3, 0x09, 0x09);    // move-object/16
+        setWidth(2, 0x13, 0x13);    // const/16
+        setWidth(3, 0x14, 0x14);    // const
+        setWidth(2, 0x15, 0x16);    // const/high16, const-wide/16
+        setWidth(3, 0x17, 0x17);    // const-wide/32
+        setWidth(5, 0x18, 0x18);    // const-wide
+        setWidth(2, 0x19, 0x1a);    // const-wide/high16, const-string
+        setWidth(3, 0x1b, 0x1b);    // const-string/jumbo
+        setWidth(2, 0x1c, 0x1c);    // const-class
+        setWidth(2, 0x1f, 0x20);    // check-cast, instance-of
+        setWidth(2, 0x22, 0x23);    // new-instance, new-array
+        setWidth(3, 0x24, 0x26);    // filled-new-array(/range), fill-array-data
+        setWidth(2, 0x29, 0x29);    // goto/16
+        setWidth(3, 0x2a, 0x2c);    // goto/32, packed-switch, sparse-switch
+        setWidth(2, 0x2d, 0x3d);    // cmpkind, if-test, if-testz
+        setWidth(2, 0x44, 0x6d);    // arrayop, iinstanceop, sstaticop
+        setWidth(3, 0x6e, 0x72);    // invoke-kind
+        setWidth(3, 0x74, 0x78);    // invoke-kind/range
+        setWidth(2, 0x90, 0xaf);    // binop
+        setWidth(2, 0xd0, 0xe2);    // binop/lit16, binop/lit8
+        setWidth(4, 0xfa, 0xfb);    // invoke-polymorphic(/range)
+        setWidth(3, 0xfc, 0xfd);    // invoke-custom(/range)
+        setWidth(2, 0xfe, 0xff);    // const-method-handle, const-method-type
+
+        METHOD_INVOKES.set(0x6e, 0x73);
+        METHOD_INVOKES.set(0x74, 0x79);
+        METHOD_INVOKES.set(0xfa, 0xfc);
+
+        FIELD_ACCESSES.set(0x52, 0x6e);
+    }
+
+    private static void setWidth(int width, int firstOpcode, int lastOpcode) {
+        Arrays.fill(INSN_WIDTHS, firstOpcode, lastOpcode + 1, (byte) width);
+    }
+
+    /* identifiers of the payload pseudo-instructions */
+    private static final int PACKED_SWITCH_PAYLOAD = 0x0100;
+    private static final int SPARSE_SWITCH_PAYLOAD = 0x0200;
+    private static final int FILL_ARRAY_DATA_PAYLOAD = 0x0300;
+
+    /* deepest an encoded_value may nest arrays and annotations */
+    private static final int MAX_ENCODED_VALUE_DEPTH = 64;
+
+    /* number of strings decoded by each task in load(ExecutorService) */
+    private static final int DECODE_CHUNK_SIZE = 4096;
     private boolean isBigEndian = false;
 
     /**
@@ -45,6 +190,93 @@ public class DexData {
         mDexFile = raf;
     }
 
+    /**
+     * Constructs a new DexData over the remaining bytes of the given
+     * buffer, which may be a heap, direct, or mapped buffer.  Every read
+     * is an absolute get from the buffer, rather than one RandomAccessFile
+     * read per value as with {@link #DexData(RandomAccessFile)}.  Offsets in
+     * the DEX are relative to the buffer's current position.  The buffer's
+     * own position, limit and byte order are left untouched.
+     */
+    public DexData(ByteBuffer buffer) {
+        this(buffer, 0);
+    }
+
+    /**
+     * Constructs a new DexData for the dex file whose header is at the
+     * given offset into a dex v041 container, which is made up of the
+     * remaining bytes of the given buffer.  All offsets within a container
+     * are relative to its start, so every dex file in it can be read
+     * straight from the one buffer.
+     *
+     * @see #getHeaderOffsets(ByteBuffer)
+     */
+    public DexData(ByteBuffer buffer, int headerOffset) {
+        mData = buffer.slice();
+        mData.order(ByteOrder.LITTLE_ENDIAN);
+        mHeaderOffset = headerOffset;
+    }
+
+    /**
+     * Returns the offsets of the headers of the dex files in the remaining
+     * bytes of the given buffer.  A dex v041 container holds several dex
+     * files one after the other, each beginning with its own header; any
+     * other dex file has just the one header, at offset 0.
+     *
+     * Only the headers are read, and nothing is copied.
+     *
+     * @throws IOException if we encounter a problem while reading
+     * @throws DexDataException if a header looks bad
+     */
+    public static int[] getHeaderOffsets(ByteBuffer buffer) throws IOException {
+        if (!isContainer(buffer)) {
+            return new int[] { 0 };
+        }
+
+        List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        int containerSize;
+        do {
+            DexData data = new DexData(buffer, offset);
+            data.loadHeader();
+            offsets.add(offset);
+
+            if (data.mHeaderItem.fileSize <= 0) {
+                System.err.println("Dex file in container has bad size " +
+                    data.mHeaderItem.fileSize);
+                throw new DexDataException();
+            }
+            offset += data.mHeaderItem.fileSize;
+            containerSize = data.mHeaderItem.containerSize;
+        } while (offset < containerSize);
+
+        int[] result = new int[offsets.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the remaining bytes of the given buffer start with
+     * the header of a dex v041 container, which may hold several dex
+     * files.
+     */
+    public static boolean isContainer(ByteBuffer buffer) {
+        byte[] magic = HeaderItem.DEX_FILE_MAGIC_v041;
+        if (buffer.remaining() < magic.length) {
+            return false;
+        }
+
+        int start = buffer.position();
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer.get(start + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Loads the contents of the DEX file into our data structures.
      *
@@ -53,6 +285,7 @@ public class DexData {
      */
     public void load() throws IOException {
         parseHeaderItem();
+        validateSections();
 
         loadStrings();
         loadTypeIds();
@@ -61,9 +294,122 @@ public class DexData {
         loadMethodIds();
         loadClassDefs();
 
+        if (mData == null) {
+            resolveStrings();
+        }
+
+        markInternalClasses();
+    }
+
+    /**
+     * Loads only the header of the DEX file.  This is enough to answer the
+     * ID-table size queries (e.g. {@link #getMethodIdCount()}) without
+     * reading any of the tables themselves.
+     *
+     * @throws IOException if we encounter a problem while reading
+     * @throws DexDataException if the DEX header looks bad
+     */
+    public void loadHeader() throws IOException {
+        parseHeaderItem();
+    }
+
+    /**
+     * Sets a pool through which every decoded string is canonicalised.
+     * Sharing one pool between the DexData instances of a multidex app
+     * means the descriptors and names they have in common are only held
+     * once.  Must be called before loading.
+     */
+    public void setStringPool(StringPool pool) {
+        mStringPool = pool;
+    }
+
+    private String intern(String s) {
+        return mStringPool != null ? mStringPool.intern(s) : s;
+    }
+
+    /**
+     * Loads the contents of the DEX file into our data structures, reading
+     * the independent sections (and decoding the strings they refer to)
+     * concurrently on the given executor.  The executor should be a
+     * ForkJoinPool, or have threads to spare, as the calling thread waits
+     * on the tasks it is handed.
+     *
+     * This only pays off for large files.  Concurrent reads need the data
+     * to be held in memory; for a RandomAccessFile this is the same as
+     * {@link #load()}.
+     *
+     * @throws IOException if we encounter a problem while reading
+     * @throws DexDataException if the DEX contents look bad
+     */
+    public void load(ExecutorService executor) throws IOException {
+        if (mData == null) {
+            load();
+            return;
+        }
+
+        parseHeaderItem();
+        validateSections();
+
+        invokeAll(executor, List.of(
+            () -> { loadStrings(); return null; },
+            () -> { loadTypeIds(); return null; },
+            () -> { loadProtoIds(); return null; },
+            () -> { loadFieldIds(); return null; },
+            () -> { loadMethodIds(); return null; },
+            () -> { loadClassDefs(); return null; }));
+
+        List<Callable<Void>> decodes = new ArrayList<>();
+        addDecodeTasks(decodes, mTypeDescriptorIdx);
+        addDecodeTasks(decodes, mFieldNameIdx);
+        addDecodeTasks(decodes, mMethodNameIdx);
+        invokeAll(executor, decodes);
+
         markInternalClasses();
     }
 
+    /**
+     * Splits the given string indices into chunks, each of which is decoded
+     * by a task with its own decoder.  Tasks may race to fill the same
+     * slot of mStrings, which is harmless as they write equal strings.
+     */
+    private void addDecodeTasks(List<Callable<Void>> tasks, int[] stringIndices) {
+        for (int start = 0; start < stringIndices.length; start += DECODE_CHUNK_SIZE) {
+            int from = start;
+            int to = Math.min(start + DECODE_CHUNK_SIZE, stringIndices.length);
+            tasks.add(() -> {
+                Mutf8 decoder = new Mutf8();
+                for (int i = from; i < to; i++) {
+                    int idx = stringIndices[i];
+                    if (mStrings[idx] == null) {
+                        mStrings[idx] = intern(decodeString(mStringOffsets[idx], decoder));
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) throws IOException {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading DEX data");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
     /**
      * Verifies the given magic number.
      */
@@ -71,7 +417,9 @@ public class DexData {
         return Arrays.equals(magic, HeaderItem.DEX_FILE_MAGIC_v035) ||
             Arrays.equals(magic, HeaderItem.DEX_FILE_MAGIC_v037) ||
             Arrays.equals(magic, HeaderItem.DEX_FILE_MAGIC_v038) ||
-            Arrays.equals(magic, HeaderItem.DEX_FILE_MAGIC_v039);
+            Arrays.equals(magic, HeaderItem.DEX_FILE_MAGIC_v039) ||
+            Arrays.equals(magic, HeaderItem.DEX_FILE_MAGIC_v040) ||
+            Arrays.equals(magic, HeaderItem.DEX_FILE_MAGIC_v041);
     }
 
     /**
@@ -80,7 +428,7 @@ public class DexData {
     void parseHeaderItem() throws IOException {
         mHeaderItem = new HeaderItem();
 
-        seek(0);
+        seek(mHeaderOffset);
 
         byte[] magic = new byte[8];
         readBytes(magic);
@@ -94,26 +442,29 @@ public class DexData {
          * Read the endian tag, so we properly swap things as we read
          * them from here on.
          */
-        seek(8+4+20+4+4);
+        seek(mHeaderOffset + 8+4+20+4+4);
         mHeaderItem.endianTag = readInt();
         if (mHeaderItem.endianTag == HeaderItem.ENDIAN_CONSTANT) {
             /* do nothing */
         } else if (mHeaderItem.endianTag == HeaderItem.REVERSE_ENDIAN_CONSTANT){
             /* file is big-endian (!), reverse future reads */
             isBigEndian = true;
+            if (mData != null) {
+                mData.order(ByteOrder.BIG_ENDIAN);
+            }
         } else {
             System.err.println("Endian constant has unexpected value " +
                 Integer.toHexString(mHeaderItem.endianTag));
             throw new DexDataException();
         }
 
-        seek(8+4+20);  // magic, checksum, signature
+        seek(mHeaderOffset + 8+4+20);  // magic, checksum, signature
         mHeaderItem.fileSize = readInt();
         mHeaderItem.headerSize = readInt();
         /*mHeaderItem.endianTag =*/ readInt();
         /*mHeaderItem.linkSize =*/ readInt();
         /*mHeaderItem.linkOff =*/ readInt();
-        /*mHeaderItem.mapOff =*/ readInt();
+        mHeaderItem.mapOff = readInt();
         mHeaderItem.stringIdsSize = readInt();
         mHeaderItem.stringIdsOff = readInt();
         mHeaderItem.typeIdsSize = readInt();
@@ -128,33 +479,216 @@ public class DexData {
         mHeaderItem.classDefsOff = readInt();
         /*mHeaderItem.dataSize =*/ readInt();
         /*mHeaderItem.dataOff =*/ readInt();
+
+        checkCount("string_ids_size", mHeaderItem.stringIdsSize);
+        checkCount("type_ids_size", mHeaderItem.typeIdsSize);
+        checkCount("proto_ids_size", mHeaderItem.protoIdsSize);
+        checkCount("field_ids_size", mHeaderItem.fieldIdsSize);
+        checkCount("method_ids_size", mHeaderItem.methodIdsSize);
+        checkCount("class_defs_size", mHeaderItem.classDefsSize);
+
+        if (Arrays.equals(magic, HeaderItem.DEX_FILE_MAGIC_v041)) {
+            /*
+             * From v041 on, file_size only runs up to the next header of
+             * the container, and the header says where it sits in it.
+             */
+            mHeaderItem.containerSize = readInt();
+            mHeaderItem.headerOffset = readInt();
+            mDataStart = CONTAINER_HEADER_SIZE;
+            if (mHeaderItem.headerOffset != mHeaderOffset) {
+                System.err.println("Header offset " + mHeaderItem.headerOffset +
+                    " doesn't match actual offset " + mHeaderOffset);
+                throw new DexDataException();
+            }
+        } else {
+            mHeaderItem.containerSize = mHeaderItem.fileSize;
+            mHeaderItem.headerOffset = 0;
+        }
+    }
+
+    private static void checkCount(String name, int count) {
+        if (count < 0) {
+            throw new DexDataException("Header has a negative " + name + ": " + count);
+        }
+    }
+
+    /**
+     * Checks the ID sections named by the header against the size of the
+     * file and against the map_list, so that corrupt or truncated input is
+     * reported up front instead of as a read past the end, or an absurd
+     * allocation, somewhere in the middle of parsing.  Once this passes,
+     * every table we allocate is bounded by the size of the file.
+     */
+    void validateSections() throws IOException {
+        HeaderItem header = mHeaderItem;
+
+        long available = mData != null ? mData.limit() : mDexFile.length();
+        if (header.containerSize > available) {
+            throw new DexDataException("DEX file is truncated: the header says it is "
+                + header.containerSize + " bytes long, but only " + available + " bytes are present");
+        }
+        if (header.fileSize < mDataStart
+                || (long) mHeaderOffset + header.fileSize > header.containerSize) {
+            throw new DexDataException("Header has a bad file_size: " + header.fileSize);
+        }
+        mLimit = header.containerSize;
+
+        /*
+         * Indices into type_ids and proto_ids are unsigned 16-bit values,
+         * so there can't be more entries than that.
+         */
+        if (header.typeIdsSize > 0x10000) {
+            throw new DexDataException("Too many type_ids: " + header.typeIdsSize);
+        }
+        if (header.protoIdsSize > 0x10000) {
+            throw new DexDataException("Too many proto_ids: " + header.protoIdsSize);
+        }
+
+        checkSection("string_ids", header.stringIdsOff, header.stringIdsSize, 4);
+        checkSection("type_ids", header.typeIdsOff, header.typeIdsSize, 4);
+        checkSection("proto_ids", header.protoIdsOff, header.protoIdsSize, 12);
+        checkSection("field_ids", header.fieldIdsOff, header.fieldIdsSize, 8);
+        checkSection("method_ids", header.methodIdsOff, header.methodIdsSize, 8);
+        checkSection("class_defs", header.classDefsOff, header.classDefsSize, 32);
+
+        checkSection("map_list", header.mapOff, 1, 4);
+        int mapSize = readIntAt(header.mapOff);
+        if (mapSize < 0) {
+            throw new DexDataException("map_list has a negative size: " + mapSize);
+        }
+        checkSection("map_list", header.mapOff + 4, mapSize, 12);
+
+        for (int i = 0; i < mapSize; i++) {
+            int item = header.mapOff + 4 + i * 12;
+            int type = readShortAt(item) & 0xffff;
+            int size = readIntAt(item + 4);
+            int offset = readIntAt(item + 8);
+
+            if (offset < 0 || offset >= mLimit) {
+                throw new DexDataException("map_list entry of type 0x" + Integer.toHexString(type)
+                    + " is at offset " + offset + ", outside of the file");
+            }
+
+            switch (type) {
+                case MAP_TYPE_STRING_ID_ITEM:
+                    checkMapItem("string_ids", size, offset, header.stringIdsSize, header.stringIdsOff);
+                    break;
+                case MAP_TYPE_TYPE_ID_ITEM:
+                    checkMapItem("type_ids", size, offset, header.typeIdsSize, header.typeIdsOff);
+                    break;
+                case MAP_TYPE_PROTO_ID_ITEM:
+                    checkMapItem("proto_ids", size, offset, header.protoIdsSize, header.protoIdsOff);
+                    break;
+                case MAP_TYPE_FIELD_ID_ITEM:
+                    checkMapItem("field_ids", size, offset, header.fieldIdsSize, header.fieldIdsOff);
+                    break;
+                case MAP_TYPE_METHOD_ID_ITEM:
+                    checkMapItem("method_ids", size, offset, header.methodIdsSize, header.methodIdsOff);
+                    break;
+                case MAP_TYPE_CLASS_DEF_ITEM:
+                    checkMapItem("class_defs", size, offset, header.classDefsSize, header.classDefsOff);
+                    break;
+                case MAP_TYPE_METHOD_HANDLE_ITEM:
+                    if (size < 0) {
+                        throw new DexDataException("map_list has a negative number of method_handles: " + size);
+                    }
+                    checkSection("method_handles", offset, size, 8);
+                    mMethodHandlesOff = offset;
+                    mMethodHandlesSize = size;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void checkSection(String name, int offset, int count, int itemSize) {
+        if (count == 0) {
+            return;
+        }
+
+        long end = (long) offset + (long) count * itemSize;
+        if (offset < mDataStart || end > mLimit) {
+            throw new DexDataException(name + " section of " + count + " items at offset "
+                + offset + " does not fit in a file of " + mLimit + " bytes");
+        }
+    }
+
+    private static void checkMapItem(String name, int mapSize, int mapOffset, int size, int offset) {
+        if (mapSize != size || (size != 0 && mapOffset != offset)) {
+            throw new DexDataException("map_list disagrees with the header about " + name
+                + ": " + mapSize + " items at offset " + mapOffset + " vs. "
+                + size + " items at offset " + offset);
+        }
+    }
+
+    /**
+     * Checks that an offset read from the file lies within it.
+     */
+    private void checkOffset(String name, int offset) {
+        if (offset < 0 || offset >= mLimit) {
+            throw new DexDataException(name + " " + offset + " is outside of the file");
+        }
+    }
+
+    /**
+     * Checks that an index read from the file refers to an entry of the
+     * table it indexes.
+     */
+    private static void checkIndex(String name, int index, int tableSize) {
+        if (index < 0 || index >= tableSize) {
+            throw new DexDataException(name + " " + index + " is out of range; there are only "
+                + tableSize + " entries");
+        }
     }
 
     /**
      * Loads the string table out of the DEX.
      *
-     * First we read all of the string_id_items, then we read all of the
-     * string_data_item.  Doing it this way should allow us to avoid
-     * seeking around in the file.
+     * Only the string_id_items are read here.  Most of the string table is
+     * made up of literals that no type, field or method ID refers to, so
+     * the string_data_items are decoded on demand by {@link #getString}.
      */
     void loadStrings() throws IOException {
         int count = mHeaderItem.stringIdsSize;
-        int stringOffsets[] = new int[count];
+        mStringOffsets = new int[count];
 
         //System.out.println("reading " + count + " strings");
 
-        seek(mHeaderItem.stringIdsOff);
+        int offset = mHeaderItem.stringIdsOff;
         for (int i = 0; i < count; i++) {
-            stringOffsets[i] = readInt();
+            mStringOffsets[i] = readIntAt(offset + i * 4);
+            checkOffset("string_data_off", mStringOffsets[i]);
         }
 
         mStrings = new String[count];
+    }
 
-        seek(stringOffsets[0]);
-        for (int i = 0; i < count; i++) {
-            seek(stringOffsets[i]);         // should be a no-op
-            mStrings[i] = readString();
-            //System.out.println("STR: " + i + ": " + mStrings[i]);
+    /**
+     * Decodes every string that a type, field or method ID refers to.
+     *
+     * Strings can only be decoded lazily when the data is held in memory;
+     * a RandomAccessFile may be closed as soon as {@link #load} returns,
+     * so in that case we decode everything we could need up front.
+     */
+    void resolveStrings() throws IOException {
+        for (int descriptorIdx : mTypeDescriptorIdx) {
+            resolveString(descriptorIdx);
+        }
+
+        for (int nameIdx : mFieldNameIdx) {
+            resolveString(nameIdx);
+        }
+
+        for (int nameIdx : mMethodNameIdx) {
+            resolveString(nameIdx);
+        }
+    }
+
+    private void resolveString(int idx) throws IOException {
+        if (mStrings[idx] == null) {
+            seek(mStringOffsets[idx]);
+            mStrings[idx] = intern(readString());
         }
     }
 
@@ -163,61 +697,85 @@ public class DexData {
      */
     void loadTypeIds() throws IOException {
         int count = mHeaderItem.typeIdsSize;
-        mTypeIds = new TypeIdItem[count];
+        mTypeDescriptorIdx = new int[count];
+        mInternalTypes = new BitSet(count);
 
         //System.out.println("reading " + count + " typeIds");
-        seek(mHeaderItem.typeIdsOff);
+        int offset = mHeaderItem.typeIdsOff;
         for (int i = 0; i < count; i++) {
-            mTypeIds[i] = new TypeIdItem();
-            mTypeIds[i].descriptorIdx = readInt();
+            mTypeDescriptorIdx[i] = readIntAt(offset + i * 4);
+            checkIndex("descriptor_idx", mTypeDescriptorIdx[i], mHeaderItem.stringIdsSize);
 
-            //System.out.println(i + ": " + mTypeIds[i].descriptorIdx +
-            //    " " + mStrings[mTypeIds[i].descriptorIdx]);
+            //System.out.println(i + ": " + mTypeDescriptorIdx[i] +
+            //    " " + getString(mTypeDescriptorIdx[i]));
         }
     }
 
     /**
      * Loads the proto ID list.
+     *
+     * The parameter type lists of all protos are flattened into a single
+     * array; the list for proto {@code i} runs from
+     * {@code mProtoParamStart[i]} up to {@code mProtoParamStart[i + 1]}.
      */
     void loadProtoIds() throws IOException {
         int count = mHeaderItem.protoIdsSize;
-        mProtoIds = new ProtoIdItem[count];
+        mProtoReturnTypeIdx = new int[count];
+        mProtoParamStart = new int[count + 1];
+        int[] parametersOff = new int[count];
 
         //System.out.println("reading " + count + " protoIds");
-        seek(mHeaderItem.protoIdsOff);
+        int offset = mHeaderItem.protoIdsOff;
 
         /*
          * Read the proto ID items.
          */
         for (int i = 0; i < count; i++) {
-            mProtoIds[i] = new ProtoIdItem();
-            mProtoIds[i].shortyIdx = readInt();
-            mProtoIds[i].returnTypeIdx = readInt();
-            mProtoIds[i].parametersOff = readInt();
-
-            //System.out.println(i + ": " + mProtoIds[i].shortyIdx +
-            //    " " + mStrings[mProtoIds[i].shortyIdx]);
+            int item = offset + i * 12;
+            /* shorty_idx = readIntAt(item); */
+            mProtoReturnTypeIdx[i] = readIntAt(item + 4);
+            parametersOff[i] = readIntAt(item + 8);
+
+            checkIndex("return_type_idx", mProtoReturnTypeIdx[i], mHeaderItem.typeIdsSize);
+            if (parametersOff[i] != 0) {
+                checkOffset("parameters_off", parametersOff[i]);
+            }
         }
 
         /*
-         * Go back through and read the type lists.
+         * Go back through and size the type lists...
          */
+        int total = 0;
         for (int i = 0; i < count; i++) {
-            ProtoIdItem protoId = mProtoIds[i];
-
-            int offset = protoId.parametersOff;
+            mProtoParamStart[i] = total;
+
+            if (parametersOff[i] != 0) {
+                int size = readIntAt(parametersOff[i]);   // #of entries in list
+                if (size < 0 || size > MAX_PARAMETERS
+                        || parametersOff[i] + 4L + size * 2L > mLimit) {
+                    throw new DexDataException("Parameter list of proto_ids[" + i + "] at offset "
+                        + parametersOff[i] + " has a bad size: " + size);
+                }
+                total += size;
+            }
+        }
+        mProtoParamStart[count] = total;
 
-            if (offset == 0) {
-                protoId.types = new int[0];
+        /*
+         * ...then read them.
+         */
+        mProtoParamTypes = new int[total];
+        for (int i = 0; i < count; i++) {
+            int start = mProtoParamStart[i];
+            int end = mProtoParamStart[i + 1];
+            if (start == end) {
                 continue;
-            } else {
-                seek(offset);
-                int size = readInt();       // #of entries in list
-                protoId.types = new int[size];
+            }
 
-                for (int j = 0; j < size; j++) {
-                    protoId.types[j] = readShort() & 0xffff;
-                }
+            int list = parametersOff[i] + 4;
+            for (int j = start; j < end; j++) {
+                mProtoParamTypes[j] = readShortAt(list + (j - start) * 2) & 0xffff;
+                checkIndex("parameter type_idx", mProtoParamTypes[j], mHeaderItem.typeIdsSize);
             }
         }
     }
@@ -227,18 +785,24 @@ public class DexData {
      */
     void loadFieldIds() throws IOException {
         int count = mHeaderItem.fieldIdsSize;
-        mFieldIds = new FieldIdItem[count];
+        mFieldClassIdx = new short[count];
+        mFieldTypeIdx = new short[count];
+        mFieldNameIdx = new int[count];
 
         //System.out.println("reading " + count + " fieldIds");
-        seek(mHeaderItem.fieldIdsOff);
+        int offset = mHeaderItem.fieldIdsOff;
         for (int i = 0; i < count; i++) {
-            mFieldIds[i] = new FieldIdItem();
-            mFieldIds[i].classIdx = readShort() & 0xffff;
-            mFieldIds[i].typeIdx = readShort() & 0xffff;
-            mFieldIds[i].nameIdx = readInt();
+            int item = offset + i * 8;
+            mFieldClassIdx[i] = readShortAt(item);
+            mFieldTypeIdx[i] = readShortAt(item + 2);
+            mFieldNameIdx[i] = readIntAt(item + 4);
+
+            checkIndex("field class_idx", mFieldClassIdx[i] & 0xffff, mHeaderItem.typeIdsSize);
+            checkIndex("field type_idx", mFieldTypeIdx[i] & 0xffff, mHeaderItem.typeIdsSize);
+            checkIndex("field name_idx", mFieldNameIdx[i], mHeaderItem.stringIdsSize);
 
-            //System.out.println(i + ": " + mFieldIds[i].nameIdx +
-            //    " " + mStrings[mFieldIds[i].nameIdx]);
+            //System.out.println(i + ": " + mFieldNameIdx[i] +
+            //    " " + getString(mFieldNameIdx[i]));
         }
     }
 
@@ -247,18 +811,24 @@ public class DexData {
      */
     void loadMethodIds() throws IOException {
         int count = mHeaderItem.methodIdsSize;
-        mMethodIds = new MethodIdItem[count];
+        mMethodClassIdx = new short[count];
+        mMethodProtoIdx = new short[count];
+        mMethodNameIdx = new int[count];
 
         //System.out.println("reading " + count + " methodIds");
-        seek(mHeaderItem.methodIdsOff);
+        int offset = mHeaderItem.methodIdsOff;
         for (int i = 0; i < count; i++) {
-            mMethodIds[i] = new MethodIdItem();
-            mMethodIds[i].classIdx = readShort() & 0xffff;
-            mMethodIds[i].protoIdx = readShort() & 0xffff;
-            mMethodIds[i].nameIdx = readInt();
+            int item = offset + i * 8;
+            mMethodClassIdx[i] = readShortAt(item);
+            mMethodProtoIdx[i] = readShortAt(item + 2);
+            mMethodNameIdx[i] = readIntAt(item + 4);
 
-            //System.out.println(i + ": " + mMethodIds[i].nameIdx +
-            //    " " + mStrings[mMethodIds[i].nameIdx]);
+            checkIndex("method class_idx", mMethodClassIdx[i] & 0xffff, mHeaderItem.typeIdsSize);
+            checkIndex("method proto_idx", mMethodProtoIdx[i] & 0xffff, mHeaderItem.protoIdsSize);
+            checkIndex("method name_idx", mMethodNameIdx[i], mHeaderItem.stringIdsSize);
+
+            //System.out.println(i + ": " + mMethodNameIdx[i] +
+            //    " " + getString(mMethodNameIdx[i]));
         }
     }
 
@@ -267,24 +837,34 @@ public class DexData {
      */
     void loadClassDefs() throws IOException {
         int count = mHeaderItem.classDefsSize;
-        mClassDefs = new ClassDefItem[count];
+        mClassDefClassIdx = new int[count];
+        mClassDefDataOff = new int[count];
+        mClassDefAnnotationsOff = new int[count];
 
         //System.out.println("reading " + count + " classDefs");
-        seek(mHeaderItem.classDefsOff);
+        int offset = mHeaderItem.classDefsOff;
         for (int i = 0; i < count; i++) {
-            mClassDefs[i] = new ClassDefItem();
-            mClassDefs[i].classIdx = readInt();
-
-            /* access_flags = */ readInt();
-            /* superclass_idx = */ readInt();
-            /* interfaces_off = */ readInt();
-            /* source_file_idx = */ readInt();
-            /* annotations_off = */ readInt();
-            /* class_data_off = */ readInt();
-            /* static_values_off = */ readInt();
+            int item = offset + i * 32;
+            mClassDefClassIdx[i] = readIntAt(item);
+
+            /* access_flags = readIntAt(item + 4); */
+            /* superclass_idx = readIntAt(item + 8); */
+            /* interfaces_off = readIntAt(item + 12); */
+            /* source_file_idx = readIntAt(item + 16); */
+            mClassDefAnnotationsOff[i] = readIntAt(item + 20);
+            mClassDefDataOff[i] = readIntAt(item + 24);
+            /* static_values_off = readIntAt(item + 28); */
+
+            checkIndex("class_def class_idx", mClassDefClassIdx[i], mHeaderItem.typeIdsSize);
+            if (mClassDefAnnotationsOff[i] != 0) {
+                checkOffset("annotations_off", mClassDefAnnotationsOff[i]);
+            }
+            if (mClassDefDataOff[i] != 0) {
+                checkOffset("class_data_off", mClassDefDataOff[i]);
+            }
 
-            //System.out.println(i + ": " + mClassDefs[i].classIdx + " " +
-            //    mStrings[mTypeIds[mClassDefs[i].classIdx].descriptorIdx]);
+            //System.out.println(i + ": " + mClassDefClassIdx[i] + " " +
+            //    classNameFromTypeIndex(mClassDefClassIdx[i]));
         }
     }
 
@@ -293,23 +873,25 @@ public class DexData {
      * DEX file or within the VM (e.g. primitive classes and arrays).
      */
     void markInternalClasses() {
-        for (int i = mClassDefs.length -1; i >= 0; i--) {
-            mTypeIds[mClassDefs[i].classIdx].internal = true;
+        for (int i = mClassDefClassIdx.length -1; i >= 0; i--) {
+            mInternalTypes.set(mClassDefClassIdx[i]);
         }
 
-        for (int i = 0; i < mTypeIds.length; i++) {
-            String className = mStrings[mTypeIds[i].descriptorIdx];
+        for (int i = 0; i < mTypeDescriptorIdx.length; i++) {
+            String className = getString(mTypeDescriptorIdx[i]);
 
-            if (className.length() == 1) {
+            if (className.isEmpty()) {
+                throw new DexDataException("type_ids[" + i + "] has an empty descriptor");
+            } else if (className.length() == 1) {
                 // primitive class
-                mTypeIds[i].internal = true;
+                mInternalTypes.set(i);
             } else if (className.charAt(0) == '[') {
-                mTypeIds[i].internal = true;
+                mInternalTypes.set(i);
             }
 
             //System.out.println(i + " " +
-            //    (mTypeIds[i].internal ? "INTERNAL" : "external") + " - " +
-            //    mStrings[mTypeIds[i].descriptorIdx]);
+            //    (mInternalTypes.get(i) ? "INTERNAL" : "external") + " - " +
+            //    getString(mTypeDescriptorIdx[i]));
         }
     }
 
@@ -320,11 +902,115 @@ public class DexData {
      * =======================================================================
      */
 
+    /**
+     * Returns the number of entries in the string_ids table.
+     */
+    public int getStringIdCount() {
+        return mHeaderItem.stringIdsSize;
+    }
+
+    /**
+     * Returns the number of entries in the type_ids table.
+     */
+    public int getTypeIdCount() {
+        return mHeaderItem.typeIdsSize;
+    }
+
+    /**
+     * Returns the number of entries in the proto_ids table.
+     */
+    public int getProtoIdCount() {
+        return mHeaderItem.protoIdsSize;
+    }
+
+    /**
+     * Returns the number of entries in the field_ids table.
+     */
+    public int getFieldIdCount() {
+        return mHeaderItem.fieldIdsSize;
+    }
+
+    /**
+     * Returns the number of entries in the method_ids table.
+     */
+    public int getMethodIdCount() {
+        return mHeaderItem.methodIdsSize;
+    }
+
+    /**
+     * Returns the number of entries in the class_defs table.
+     */
+    public int getClassDefCount() {
+        return mHeaderItem.classDefsSize;
+    }
+
+    /**
+     * Returns the string at the given index into the string_ids table,
+     * decoding and caching it the first time it is asked for.
+     *
+     * When reading from a RandomAccessFile, only the strings that refs are
+     * built from are decoded by load(); any other string can only be
+     * fetched while the file is still open.  When reading from a buffer,
+     * this may be called from several threads at once.
+     */
+    public String getString(int idx) {
+        String result = mStrings[idx];
+        if (result == null) {
+            if (mData != null) {
+                // a decoder of its own, as other threads may be decoding too
+                result = decodeString(mStringOffsets[idx], new Mutf8());
+            } else {
+                try {
+                    seek(mStringOffsets[idx]);
+                    result = readString();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            result = intern(result);
+            mStrings[idx] = result;
+        }
+        return result;
+    }
+
     /**
      * Returns the class name, given an index into the type_ids table.
      */
     private String classNameFromTypeIndex(int idx) {
-        return mStrings[mTypeIds[idx].descriptorIdx];
+        return getString(mTypeDescriptorIdx[idx]);
+    }
+
+    /**
+     * Returns the type descriptor at the given index into the type_ids
+     * table, e.g. "Ljava/lang/String;".
+     */
+    public String getTypeName(int typeIdx) {
+        return classNameFromTypeIndex(typeIdx);
+    }
+
+    /**
+     * Returns true if the type at the given index into the type_ids table
+     * is defined by a class_def in this DEX file, or is a primitive or
+     * array type.
+     */
+    public boolean isInternalType(int typeIdx) {
+        return mInternalTypes.get(typeIdx);
+    }
+
+    /**
+     * Returns the return type descriptor of the prototype at the given
+     * index into the proto_ids table.
+     */
+    public String getProtoReturnType(int protoIdx) {
+        return returnTypeFromProtoIndex(protoIdx);
+    }
+
+    /**
+     * Returns the argument type descriptors of the prototype at the given
+     * index into the proto_ids table.
+     */
+    public String[] getProtoArgumentTypes(int protoIdx) {
+        return argArrayFromProtoIndex(protoIdx);
     }
 
     /**
@@ -332,11 +1018,11 @@ public class DexData {
      * into the proto_ids table.
      */
     private String[] argArrayFromProtoIndex(int idx) {
-        ProtoIdItem protoId = mProtoIds[idx];
-        String[] result = new String[protoId.types.length];
+        int start = mProtoParamStart[idx];
+        String[] result = new String[mProtoParamStart[idx + 1] - start];
 
-        for (int i = 0; i < protoId.types.length; i++) {
-            result[i] = mStrings[mTypeIds[protoId.types[i]].descriptorIdx];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = classNameFromTypeIndex(mProtoParamTypes[start + i]);
         }
 
         return result;
@@ -347,8 +1033,7 @@ public class DexData {
      * index into the proto_ids table.
      */
     private String returnTypeFromProtoIndex(int idx) {
-        ProtoIdItem protoId = mProtoIds[idx];
-        return mStrings[mTypeIds[protoId.returnTypeIdx].descriptorIdx];
+        return classNameFromTypeIndex(mProtoReturnTypeIdx[idx]);
     }
 
     /**
@@ -358,15 +1043,15 @@ public class DexData {
      * that class.
      */
     public ClassRef[] getExternalReferences() {
-        // create a sparse array of ClassRef that parallels mTypeIds
-        ClassRef[] sparseRefs = new ClassRef[mTypeIds.length];
+        // create a sparse array of ClassRef that parallels the type_ids
+        ClassRef[] sparseRefs = new ClassRef[mTypeDescriptorIdx.length];
 
         // create entries for all externally-referenced classes
         int count = 0;
-        for (int i = 0; i < mTypeIds.length; i++) {
-            if (!mTypeIds[i].internal) {
+        for (int i = 0; i < mTypeDescriptorIdx.length; i++) {
+            if (!mInternalTypes.get(i)) {
                 sparseRefs[i] =
-                    new ClassRef(mStrings[mTypeIds[i].descriptorIdx]);
+                    new ClassRef(classNameFromTypeIndex(i));
                 count++;
             }
         }
@@ -378,7 +1063,7 @@ public class DexData {
         // crunch out the sparseness
         ClassRef[] classRefs = new ClassRef[count];
         int idx = 0;
-        for (int i = 0; i < mTypeIds.length; i++) {
+        for (int i = 0; i < mTypeDescriptorIdx.length; i++) {
             if (sparseRefs[i] != null)
                 classRefs[idx++] = sparseRefs[i];
         }
@@ -393,14 +1078,10 @@ public class DexData {
      * references into the appropriate ClassRef.
      */
     private void addExternalFieldReferences(ClassRef[] sparseRefs) {
-        for (int i = 0; i < mFieldIds.length; i++) {
-            if (!mTypeIds[mFieldIds[i].classIdx].internal) {
-                FieldIdItem fieldId = mFieldIds[i];
-                FieldRef newFieldRef = new FieldRef(
-                        classNameFromTypeIndex(fieldId.classIdx),
-                        classNameFromTypeIndex(fieldId.typeIdx),
-                        mStrings[fieldId.nameIdx]);
-                sparseRefs[mFieldIds[i].classIdx].addField(newFieldRef);
+        for (int i = 0; i < mFieldNameIdx.length; i++) {
+            int classIdx = mFieldClassIdx[i] & 0xffff;
+            if (!mInternalTypes.get(classIdx)) {
+                sparseRefs[classIdx].addField(fieldRefFromIndex(i));
             }
         }
     }
@@ -410,83 +1091,854 @@ public class DexData {
      * references into the appropriate ClassRef.
      */
     private void addExternalMethodReferences(ClassRef[] sparseRefs) {
-        for (int i = 0; i < mMethodIds.length; i++) {
-            if (!mTypeIds[mMethodIds[i].classIdx].internal) {
-                MethodIdItem methodId = mMethodIds[i];
-                MethodRef newMethodRef = new MethodRef(
-                        classNameFromTypeIndex(methodId.classIdx),
-                        argArrayFromProtoIndex(methodId.protoIdx),
-                        returnTypeFromProtoIndex(methodId.protoIdx),
-                        mStrings[methodId.nameIdx]);
-                sparseRefs[mMethodIds[i].classIdx].addMethod(newMethodRef);
+        for (int i = 0; i < mMethodNameIdx.length; i++) {
+            int classIdx = mMethodClassIdx[i] & 0xffff;
+            if (!mInternalTypes.get(classIdx)) {
+                sparseRefs[classIdx].addMethod(methodRefFromIndex(i));
             }
         }
     }
 
-    /*
-     * BEGIN MODIFIED SECTION
+    /**
+     * Builds a MethodRef, given an index into the method_ids table.
      */
+    private MethodRef methodRefFromIndex(int idx) {
+        return new DexMethodRef(getRefTables(), idx);
+    }
 
     /**
-     * Returns the list of all method references.
-     * @return method refs
+     * Builds a FieldRef, given an index into the field_ids table.
      */
-    public MethodRef[] getMethodRefs() {
-        MethodRef[] methodRefs = new MethodRef[mMethodIds.length];
-        for (int i = 0; i < mMethodIds.length; i++) {
-            MethodIdItem methodId = mMethodIds[i];
-            methodRefs[i] = new MethodRef(
-                    classNameFromTypeIndex(methodId.classIdx),
-                    argArrayFromProtoIndex(methodId.protoIdx),
-                    returnTypeFromProtoIndex(methodId.protoIdx),
-                    mStrings[methodId.nameIdx]);
-        }
-        return methodRefs;
+    private FieldRef fieldRefFromIndex(int idx) {
+        return new DexFieldRef(getRefTables(), idx);
     }
 
-    public FieldRef[] getFieldRefs() {
-        FieldRef[] fieldRefs = new FieldRef[mFieldIds.length];
-        for (int i = 0; i < mFieldIds.length; i++) {
-            FieldIdItem fieldId = mFieldIds[i];
-            fieldRefs[i] = new FieldRef(
-                    classNameFromTypeIndex(fieldId.classIdx),
-                    classNameFromTypeIndex(fieldId.typeIdx),
-                    mStrings[fieldId.nameIdx]);
+    /**
+     * Returns the tables that refs are resolved against, decoding every
+     * string they need and building one argument array per proto the
+     * first time refs are asked for.
+     */
+    private RefTables getRefTables() {
+        RefTables tables = mRefTables;
+        if (tables == null) {
+            synchronized (this) {
+                tables = mRefTables;
+                if (tables == null) {
+                    tables = buildRefTables();
+                    mRefTables = tables;
+                }
+            }
         }
-        return fieldRefs;
+        return tables;
     }
 
-    /*
-     * END MODIFIED SECTION
-     */
+    private RefTables buildRefTables() {
+        for (int descriptorIdx : mTypeDescriptorIdx) {
+            getString(descriptorIdx);
+        }
+        for (int nameIdx : mMethodNameIdx) {
+            getString(nameIdx);
+        }
+        for (int nameIdx : mFieldNameIdx) {
+            getString(nameIdx);
+        }
 
+        String[][] protoArgTypes = new String[mProtoReturnTypeIdx.length][];
+        for (int i = 0; i < protoArgTypes.length; i++) {
+            protoArgTypes[i] = argArrayFromProtoIndex(i);
+        }
 
+        return new RefTables(mStrings, mTypeDescriptorIdx,
+                mProtoReturnTypeIdx, protoArgTypes,
+                mMethodClassIdx, mMethodProtoIdx, mMethodNameIdx,
+                mFieldClassIdx, mFieldTypeIdx, mFieldNameIdx);
+    }
 
     /*
-     * =======================================================================
-     *      Basic I/O functions
-     * =======================================================================
+     * BEGIN MODIFIED SECTION
      */
 
     /**
-     * Seeks the DEX file to the specified absolute position.
+     * Walks the method_ids and then the field_ids tables, handing each
+     * entry to the visitor as a tuple of table indices.  No refs or
+     * strings are created; the visitor resolves whatever it needs.
      */
-    void seek(int position) throws IOException {
-        mDexFile.seek(position);
+    public void accept(DexVisitor visitor) {
+        for (int i = 0; i < mMethodNameIdx.length; i++) {
+            visitor.visitMethod(
+                    i,
+                    mMethodClassIdx[i] & 0xffff,
+                    mMethodProtoIdx[i] & 0xffff,
+                    mMethodNameIdx[i]);
+        }
+
+        for (int i = 0; i < mFieldNameIdx.length; i++) {
+            visitor.visitField(
+                    i,
+                    mFieldClassIdx[i] & 0xffff,
+                    mFieldTypeIdx[i] & 0xffff,
+                    mFieldNameIdx[i]);
+        }
     }
 
     /**
-     * Fills the buffer by reading bytes from the DEX file.
-     */
+     * Walks the class_data_item of every class defined in this DEX file,
+     * handing each method and field it declares to the visitor.  Methods
+     * and fields are reported by their index into the method_ids and
+     * field_ids tables, so declared members can be resolved exactly like
+     * referenced ones.
+     *
+     * The class data is decoded in place, without allocating.  This moves
+     * the read position, so it must not run concurrently with other reads
+     * of this instance; when reading from a RandomAccessFile, the file must
+     * still be open.
+     *
+     * @throws IOException if we encounter a problem while reading
+     */
+    public void acceptDeclarations(DexVisitor visitor) throws IOException {
+        for (int i = 0; i < mClassDefDataOff.length; i++) {
+            int classDataOff = mClassDefDataOff[i];
+            if (classDataOff == 0) {
+                // no fields or methods, e.g. a marker interface
+                continue;
+            }
+
+            readClassData(classDataOff, visitor);
+        }
+    }
+
+    /**
+     * Walks the class data of every class defined in this DEX file once,
+     * handing the visitor the number of bytes each class is responsible
+     * for:
+     *
+     * <ul>
+     *   <li>code: the code_items of its methods, including tries and
+     *       handlers;</li>
+     *   <li>strings: the string_data_items of its own descriptor and of
+     *       the names of the members it declares;</li>
+     *   <li>annotations: its annotations_directory_item, and the
+     *       annotation_set_ref_lists, annotation_set_items and
+     *       annotation_items it leads to;</li>
+     *   <li>debug info: the debug_info_items of its methods.</li>
+     * </ul>
+     *
+     * Items of a kind are laid out back to back in their section, so an
+     * item's size is the distance to the next item of that kind; only the
+     * last one has to be decoded to find where it ends.  (The map_list
+     * can't be trusted for that: some dex tools leave unlisted gaps at the
+     * end of a section.)  Apart from that, nothing but the offsets is read.
+     *
+     * Items that several classes share (e.g. a method name, or deduplicated
+     * debug info) are charged once, to the first class that uses them.
+     * Bytes that no class owns, such as the ID tables and string literals,
+     * are not reported.
+     *
+     * Like {@link #acceptDeclarations}, this moves the read position.
+     *
+     * @throws IOException if we encounter a problem while reading
+     */
+    public void acceptClassSizes(DexVisitor visitor) throws IOException {
+        int classCount = mClassDefClassIdx.length;
+        int[] codeBytes = new int[classCount];
+        int[] stringBytes = new int[classCount];
+        int[] annotationBytes = new int[classCount];
+        int[] debugInfoBytes = new int[classCount];
+
+        ItemCollector collector = new ItemCollector(mStringOffsets.length);
+        AnnotationItems annotations = new AnnotationItems();
+        for (int i = 0; i < classCount; i++) {
+            collector.owner = i;
+            collector.claimString(mTypeDescriptorIdx[mClassDefClassIdx[i]]);
+
+            if (mClassDefAnnotationsOff[i] != 0) {
+                readAnnotationsDirectory(mClassDefAnnotationsOff[i], i, annotations);
+            }
+
+            if (mClassDefDataOff[i] != 0) {
+                readClassData(mClassDefDataOff[i], collector);
+            }
+        }
+        readAnnotationSetRefLists(annotations);
+        readAnnotationSets(annotations);
+
+        long[] codeItems = collector.codeItems;
+        int codeItemCount = collector.codeItemCount;
+        long[] debugInfoItems = new long[codeItemCount];
+        int debugInfoItemCount = 0;
+        for (int i = 0; i < codeItemCount; i++) {
+            int debugInfoOff = readIntAt(itemOffset(codeItems[i]) + 8);
+            if (debugInfoOff != 0) {
+                checkOffset("debug_info_off", debugInfoOff);
+                debugInfoItems[debugInfoItemCount++] = packItem(debugInfoOff, itemOwner(codeItems[i]));
+            }
+        }
+
+        long[] stringItems = new long[mStringOffsets.length];
+        for (int i = 0; i < stringItems.length; i++) {
+            stringItems[i] = packItem(mStringOffsets[i], collector.stringOwners[i]);
+        }
+
+        chargeItems(codeItems, codeItemCount, this::codeItemSize, codeBytes);
+        chargeItems(debugInfoItems, debugInfoItemCount, this::debugInfoItemSize, debugInfoBytes);
+        chargeItems(stringItems, stringItems.length, this::stringDataItemSize, stringBytes);
+        chargeItems(annotations.directories.items, annotations.directories.count, this::annotationsDirectorySize, annotationBytes);
+        chargeItems(annotations.setRefLists.items, annotations.setRefLists.count, this::annotationSetRefListSize, annotationBytes);
+        chargeItems(annotations.sets.items, annotations.sets.count, this::annotationSetSize, annotationBytes);
+        chargeItems(annotations.annotations.items, annotations.annotations.count, this::annotationItemSize, annotationBytes);
+
+        for (int i = 0; i < classCount; i++) {
+            visitor.visitClassSize(mClassDefClassIdx[i],
+                    codeBytes[i], stringBytes[i], annotationBytes[i], debugInfoBytes[i]);
+        }
+    }
+
+    /**
+     * Walks the instructions of every method defined in this DEX file,
+     * handing each invoke-kind, invoke-kind/range and invoke-polymorphic
+     * instruction to the visitor as the index of the method it sits in and
+     * the index of the method it calls.  (invoke-custom calls through a
+     * call site, which names no method, and is not reported.)  Likewise,
+     * each iinstanceop and sstaticop is handed over along with the index
+     * of the field it reads or writes.  A const-method-handle is handed
+     * over as an invoke of the method its handle invokes, or as an access
+     * of the field its handle gets or puts, since that is what calling
+     * the handle does.
+     *
+     * Only an instruction's first code unit, and the method or field index
+     * it names, are read; everything else is stepped over using a table of
+     * instruction widths.  Code items are visited in file order.
+     *
+     * Like {@link #acceptDeclarations}, this moves the read position.
+     *
+     * @throws IOException if we encounter a problem while reading
+     */
+    public void acceptCodeRefs(DexVisitor visitor) throws IOException {
+        CodeItemCollector collector = new CodeItemCollector();
+        for (int classDataOff : mClassDefDataOff) {
+            if (classDataOff != 0) {
+                readClassData(classDataOff, collector);
+            }
+        }
+
+        long[] codeItems = collector.codeItems;
+        Arrays.sort(codeItems, 0, collector.codeItemCount);
+        for (int i = 0; i < collector.codeItemCount; i++) {
+            scanCode(itemOffset(codeItems[i]), itemOwner(codeItems[i]), visitor);
+        }
+    }
+
+    /**
+     * Hands the invokes and field accesses in the code_item at the given
+     * offset, which belongs to the given method, to the visitor.
+     */
+    private void scanCode(int codeOff, int methodIdx, DexVisitor visitor) throws IOException {
+        int insnsSize = readIntAt(codeOff + 12);
+        int start = codeOff + 16;
+        if (insnsSize < 0 || insnsSize > (mLimit - start) / 2) {
+            throw new DexDataException("code_item at offset " + codeOff + " claims "
+                + (insnsSize & 0xFFFFFFFFL) + " code units, more than the DEX data holds");
+        }
+
+        // Scan a buffer in place; otherwise read the instructions in one go.
+        ByteBuffer insns;
+        int pos;
+        if (mData != null) {
+            insns = mData;
+            pos = start;
+        } else {
+            byte[] bytes = new byte[insnsSize * 2];
+            seek(start);
+            readBytes(bytes);
+            insns = ByteBuffer.wrap(bytes).order(isBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            pos = 0;
+        }
+
+        int end = pos + insnsSize * 2;
+        while (pos < end) {
+            int unit = insns.getShort(pos) & 0xffff;
+            int opcode = unit & 0xff;
+
+            long width;
+            if (unit == PACKED_SWITCH_PAYLOAD) {
+                width = end - pos < 4 ? Long.MAX_VALUE : 4 + 2L * (insns.getShort(pos + 2) & 0xffff);
+            } else if (unit == SPARSE_SWITCH_PAYLOAD) {
+                width = end - pos < 4 ? Long.MAX_VALUE : 2 + 4L * (insns.getShort(pos + 2) & 0xffff);
+            } else if (unit == FILL_ARRAY_DATA_PAYLOAD) {
+                if (end - pos < 8) {
+                    width = Long.MAX_VALUE;
+                } else {
+                    int elementWidth = insns.getShort(pos + 2) & 0xffff;
+                    long size = insns.getInt(pos + 4) & 0xFFFFFFFFL;
+                    width = 4 + (size * elementWidth + 1) / 2;
+                }
+            } else {
+                width = INSN_WIDTHS[opcode];
+            }
+
+            if (width > (end - pos) / 2) {
+                throw new DexDataException("An instruction of the code_item at offset " + codeOff
+                    + " runs past its end");
+            }
+
+            if (METHOD_INVOKES.get(opcode)) {
+                int targetIdx = insns.getShort(pos + 2) & 0xffff;
+                checkIndex("invoke method_idx", targetIdx, mMethodNameIdx.length);
+                visitor.visitInvoke(methodIdx, targetIdx);
+            } else if (FIELD_ACCESSES.get(opcode)) {
+                int fieldIdx = insns.getShort(pos + 2) & 0xffff;
+                checkIndex("field access field_idx", fieldIdx, mFieldNameIdx.length);
+                visitor.visitFieldAccess(methodIdx, fieldIdx);
+            } else if (opcode == CONST_METHOD_HANDLE) {
+                int handleIdx = insns.getShort(pos + 2) & 0xffff;
+                visitMethodHandle(methodIdx, handleIdx, visitor);
+            }
+
+            pos += (int) width * 2;
+        }
+    }
+
+    /**
+     * Hands the method or field that the method_handle_item at the given
+     * index refers to, which the given method loads, to the visitor.
+     */
+    private void visitMethodHandle(int methodIdx, int handleIdx, DexVisitor visitor) throws IOException {
+        checkIndex("const-method-handle method_handle_idx", handleIdx, mMethodHandlesSize);
+        int item = mMethodHandlesOff + handleIdx * 8;
+        int handleType = readShortAt(item) & 0xffff;
+        int targetIdx = readShortAt(item + 4) & 0xffff;
+
+        if (handleType <= METHOD_HANDLE_TYPE_LAST_FIELD_ACCESSOR) {
+            checkIndex("method_handle field_id", targetIdx, mFieldNameIdx.length);
+            visitor.visitFieldAccess(methodIdx, targetIdx);
+        } else if (handleType <= METHOD_HANDLE_TYPE_LAST_METHOD_INVOKER) {
+            checkIndex("method_handle method_id", targetIdx, mMethodNameIdx.length);
+            visitor.visitInvoke(methodIdx, targetIdx);
+        } else {
+            throw new DexDataException("method_handle_item " + handleIdx
+                + " has an unknown method_handle_type 0x" + Integer.toHexString(handleType));
+        }
+    }
+
+    /**
+     * Reads the class_data_item at the given offset.
+     */
+    private void readClassData(int classDataOff, DexVisitor visitor) throws IOException {
+        seek(classDataOff);
+        int staticFieldsSize = readUnsignedLeb128();
+        int instanceFieldsSize = readUnsignedLeb128();
+        int directMethodsSize = readUnsignedLeb128();
+        int virtualMethodsSize = readUnsignedLeb128();
+
+        readEncodedFields(visitor, staticFieldsSize);
+        readEncodedFields(visitor, instanceFieldsSize);
+        readEncodedMethods(visitor, directMethodsSize);
+        readEncodedMethods(visitor, virtualMethodsSize);
+    }
+
+    /**
+     * Reads the annotations_directory_item at the given offset, which
+     * belongs to the given class, noting it and the annotation sets and
+     * set lists it refers to.
+     */
+    private void readAnnotationsDirectory(int offset, int owner, AnnotationItems annotations) throws IOException {
+        int count = annotationsDirectoryEntryCount(offset);
+        annotations.directories.add(offset, owner);
+
+        int classAnnotationsOff = readIntAt(offset);
+        if (classAnnotationsOff != 0) {
+            checkOffset("class_annotations_off", classAnnotationsOff);
+            annotations.sets.add(classAnnotationsOff, owner);
+        }
+
+        long fieldsAndMethods = (readIntAt(offset + 4) & 0xFFFFFFFFL) + (readIntAt(offset + 8) & 0xFFFFFFFFL);
+        for (int i = 0; i < count; i++) {
+            int annotationsOff = readIntAt(offset + 16 + i * 8 + 4);
+            checkOffset("annotations_off", annotationsOff);
+            if (i < fieldsAndMethods) {
+                annotations.sets.add(annotationsOff, owner);
+            } else {
+                annotations.setRefLists.add(annotationsOff, owner);
+            }
+        }
+    }
+
+    /**
+     * Notes the annotation sets that the annotation_set_ref_lists noted so
+     * far refer to, each owned by the owner of its list.
+     */
+    private void readAnnotationSetRefLists(AnnotationItems annotations) throws IOException {
+        ItemList lists = annotations.setRefLists;
+        for (int i = 0; i < lists.count; i++) {
+            int offset = itemOffset(lists.items[i]);
+            int size = checkedEntryCount("annotation_set_ref_list", offset, 4, 4);
+            for (int j = 0; j < size; j++) {
+                int annotationsOff = readIntAt(offset + 4 + j * 4);
+                if (annotationsOff != 0) {
+                    checkOffset("annotations_off", annotationsOff);
+                    annotations.sets.add(annotationsOff, itemOwner(lists.items[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Notes the annotation_items that the annotation_set_items noted so far
+     * refer to, each owned by the owner of its set.
+     */
+    private void readAnnotationSets(AnnotationItems annotations) throws IOException {
+        ItemList sets = annotations.sets;
+        for (int i = 0; i < sets.count; i++) {
+            int offset = itemOffset(sets.items[i]);
+            int size = checkedEntryCount("annotation_set_item", offset, 4, 4);
+            for (int j = 0; j < size; j++) {
+                int annotationOff = readIntAt(offset + 4 + j * 4);
+                checkOffset("annotation_off", annotationOff);
+                annotations.annotations.add(annotationOff, itemOwner(sets.items[i]));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of field, method and parameter entries of the
+     * annotations_directory_item at the given offset, having checked that
+     * they fit in the file.
+     */
+    private int annotationsDirectoryEntryCount(int offset) throws IOException {
+        checkOffset("annotations_off", offset);
+        if (offset > mLimit - 16) {
+            throw new DexDataException("annotations_directory_item at offset " + offset
+                + " does not fit in a file of " + mLimit + " bytes");
+        }
+
+        long count = (readIntAt(offset + 4) & 0xFFFFFFFFL)
+            + (readIntAt(offset + 8) & 0xFFFFFFFFL)
+            + (readIntAt(offset + 12) & 0xFFFFFFFFL);
+        checkItem("annotations_directory_item", offset, 16, count, 8);
+        return (int) count;
+    }
+
+    /**
+     * Returns the number of entries of the given size in the item at the
+     * given offset, which starts with a uint count of them, having checked
+     * that they fit in the file.
+     */
+    private int checkedEntryCount(String name, int offset, int headerSize, int entrySize) throws IOException {
+        if (offset > mLimit - headerSize) {
+            throw new DexDataException(name + " at offset " + offset
+                + " does not fit in a file of " + mLimit + " bytes");
+        }
+
+        long count = readIntAt(offset) & 0xFFFFFFFFL;
+        checkItem(name, offset, headerSize, count, entrySize);
+        return (int) count;
+    }
+
+    /**
+     * Checks that an item made up of a header and the given number of
+     * entries fits in the file, the way {@link #checkSection} does for the
+     * sections named by the header.
+     */
+    private void checkItem(String name, int offset, int headerSize, long count, int entrySize) {
+        long end = (long) offset + headerSize + count * entrySize;
+        if (offset < mDataStart || end > mLimit) {
+            throw new DexDataException(name + " of " + count + " entries at offset "
+                + offset + " does not fit in a file of " + mLimit + " bytes");
+        }
+    }
+
+    /**
+     * Returns the size of the annotations_directory_item at the given
+     * offset: a fixed header followed by an 8-byte entry per annotated
+     * field, method and parameter list.
+     */
+    private int annotationsDirectorySize(int offset) throws IOException {
+        return 16 + 8 * annotationsDirectoryEntryCount(offset);
+    }
+
+    private int annotationSetRefListSize(int offset) throws IOException {
+        return 4 + 4 * checkedEntryCount("annotation_set_ref_list", offset, 4, 4);
+    }
+
+    private int annotationSetSize(int offset) throws IOException {
+        return 4 + 4 * checkedEntryCount("annotation_set_item", offset, 4, 4);
+    }
+
+    /**
+     * Returns the size of the annotation_item at the given offset: a
+     * visibility byte followed by an encoded_annotation.
+     */
+    private int annotationItemSize(int offset) throws IOException {
+        seek(offset + 1);
+        skipEncodedAnnotation(0);
+        return mPosition - offset;
+    }
+
+    private void skipEncodedAnnotation(int depth) throws IOException {
+        if (depth > MAX_ENCODED_VALUE_DEPTH) {
+            throw new DexDataException("encoded_annotation nested more than "
+                + MAX_ENCODED_VALUE_DEPTH + " deep at offset " + mPosition);
+        }
+
+        readUnsignedLeb128();   // type_idx
+        int size = readUnsignedLeb128();
+        for (int i = 0; i < size; i++) {
+            readUnsignedLeb128();   // name_idx
+            skipEncodedValue(depth + 1);
+        }
+    }
+
+    private void skipEncodedValue(int depth) throws IOException {
+        if (depth > MAX_ENCODED_VALUE_DEPTH) {
+            throw new DexDataException("encoded_value nested more than "
+                + MAX_ENCODED_VALUE_DEPTH + " deep at offset " + mPosition);
+        }
+
+        int header = readByte() & 0xff;
+        int valueType = header & 0x1f;
+        int valueArg = header >>> 5;
+        switch (valueType) {
+            case 0x1c: {    // VALUE_ARRAY
+                int size = readUnsignedLeb128();
+                for (int i = 0; i < size; i++) {
+                    skipEncodedValue(depth + 1);
+                }
+                break;
+            }
+
+            case 0x1d:      // VALUE_ANNOTATION
+                skipEncodedAnnotation(depth + 1);
+                break;
+
+            case 0x1e:      // VALUE_NULL
+            case 0x1f:      // VALUE_BOOLEAN, whose value is its value_arg
+                break;
+
+            default:        // everything else takes value_arg + 1 bytes
+                seek(mPosition + valueArg + 1);
+                break;
+        }
+    }
+
+    /**
+     * Charges each item to its owner.  Items are (offset, owner) pairs
+     * packed by {@link #packItem}; they are sorted by offset here, and each
+     * runs up to the next distinct offset, except for the last, which is
+     * measured by the given sizer.  Items without an owner, or seen before
+     * at the same offset, are not charged.
+     */
+    private void chargeItems(long[] items, int count, ItemSizer lastItemSizer, int[] bytes) throws IOException {
+        Arrays.sort(items, 0, count);
+
+        int i = 0;
+        while (i < count) {
+            int offset = itemOffset(items[i]);
+            int owner = itemOwner(items[i]);
+
+            int next = i + 1;
+            while (next < count && itemOffset(items[next]) == offset) {
+                next++;
+            }
+
+            if (owner >= 0) {
+                if (next < count) {
+                    bytes[owner] += itemOffset(items[next]) - offset;
+                } else {
+                    bytes[owner] += lastItemSizer.sizeOf(offset);
+                }
+            }
+            i = next;
+        }
+    }
+
+    private interface ItemSizer {
+        int sizeOf(int offset) throws IOException;
+    }
+
+    /**
+     * Returns the size of the code_item at the given offset, including its
+     * tries and handlers.
+     */
+    private int codeItemSize(int offset) throws IOException {
+        int triesSize = readShortAt(offset + 6) & 0xffff;
+        int insnsSize = readIntAt(offset + 12);
+        if (insnsSize < 0 || insnsSize > (mLimit - offset - 16) / 2) {
+            throw new DexDataException("code_item at offset " + offset + " claims "
+                + (insnsSize & 0xFFFFFFFFL) + " code units, more than the DEX data holds");
+        }
+
+        int end = offset + 16 + insnsSize * 2;
+        if (triesSize == 0) {
+            return end - offset;
+        }
+
+        if ((insnsSize & 1) != 0) {
+            end += 2;   // padding, so that the tries are 4-byte aligned
+        }
+        end += triesSize * 8;
+
+        seek(end);
+        int handlersSize = readUnsignedLeb128();
+        for (int i = 0; i < handlersSize; i++) {
+            int size = readSignedLeb128();
+            for (int j = 0; j < Math.abs(size); j++) {
+                readUnsignedLeb128();   // type_idx
+                readUnsignedLeb128();   // addr
+            }
+            if (size <= 0) {
+                readUnsignedLeb128();   // catch_all_addr
+            }
+        }
+        return mPosition - offset;
+    }
+
+    /**
+     * Returns the size of the debug_info_item at the given offset, which
+     * means running through its state machine bytecodes.
+     */
+    private int debugInfoItemSize(int offset) throws IOException {
+        seek(offset);
+        readUnsignedLeb128();   // line_start
+        int parametersSize = readUnsignedLeb128();
+        for (int i = 0; i < parametersSize; i++) {
+            readUnsignedLeb128();   // parameter_names
+        }
+
+        for (;;) {
+            int opcode = readByte() & 0xff;
+            switch (opcode) {
+                case 0x00:  // DBG_END_SEQUENCE
+                    return mPosition - offset;
+
+                case 0x01:  // DBG_ADVANCE_PC
+                case 0x05:  // DBG_END_LOCAL
+                case 0x06:  // DBG_RESTART_LOCAL
+                case 0x09:  // DBG_SET_FILE
+                    readUnsignedLeb128();
+                    break;
+
+                case 0x02:  // DBG_ADVANCE_LINE
+                    readSignedLeb128();
+                    break;
+
+                case 0x03:  // DBG_START_LOCAL
+                    readUnsignedLeb128();
+                    readUnsignedLeb128();
+                    readUnsignedLeb128();
+                    break;
+
+                case 0x04:  // DBG_START_LOCAL_EXTENDED
+                    readUnsignedLeb128();
+                    readUnsignedLeb128();
+                    readUnsignedLeb128();
+                    readUnsignedLeb128();
+                    break;
+
+                default:    // prologue/epilogue markers and special opcodes
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the string_data_item at the given offset,
+     * including its terminating zero.
+     */
+    private int stringDataItemSize(int offset) throws IOException {
+        seek(offset);
+        readUnsignedLeb128();   // utf16_size
+        while (readByte() != 0) {
+            // keep going
+        }
+        return mPosition - offset;
+    }
+
+    private static long packItem(int offset, int owner) {
+        return ((offset & 0xffffffffL) << 32) | (owner & 0xffffffffL);
+    }
+
+    private static int itemOffset(long item) {
+        return (int) (item >>> 32);
+    }
+
+    private static int itemOwner(long item) {
+        return (int) item;
+    }
+
+    /**
+     * Reads a list of encoded_fields.  Each list starts its index
+     * differences afresh.
+     */
+    private void readEncodedFields(DexVisitor visitor, int size) throws IOException {
+        int fieldIdx = 0;
+        for (int i = 0; i < size; i++) {
+            fieldIdx += readUnsignedLeb128();
+            int accessFlags = readUnsignedLeb128();
+            checkIndex("encoded_field field_idx", fieldIdx, mFieldNameIdx.length);
+            visitor.visitDeclaredField(fieldIdx, accessFlags);
+        }
+    }
+
+    /**
+     * Reads a list of encoded_methods.  Each list starts its index
+     * differences afresh.
+     */
+    private void readEncodedMethods(DexVisitor visitor, int size) throws IOException {
+        int methodIdx = 0;
+        for (int i = 0; i < size; i++) {
+            methodIdx += readUnsignedLeb128();
+            int accessFlags = readUnsignedLeb128();
+            int codeOff = readUnsignedLeb128();
+            checkIndex("encoded_method method_idx", methodIdx, mMethodNameIdx.length);
+            if (codeOff != 0) {
+                checkOffset("code_off", codeOff);
+            }
+            visitor.visitDeclaredMethod(methodIdx, accessFlags, codeOff);
+        }
+    }
+
+    /**
+     * Builds the MethodRef at the given index into the method_ids table.
+     */
+    public MethodRef getMethodRef(int methodIdx) {
+        return methodRefFromIndex(methodIdx);
+    }
+
+    /**
+     * Builds the FieldRef at the given index into the field_ids table.
+     */
+    public FieldRef getFieldRef(int fieldIdx) {
+        return fieldRefFromIndex(fieldIdx);
+    }
+
+    /**
+     * Builds a standalone copy of the MethodRef at the given index into
+     * the method_ids table.  A ref from {@link #getMethodRef} points at
+     * tables holding every string of this file; a copy holds only its own
+     * strings - pooled, if a pool was set - so it can be kept long after
+     * this file is let go of.
+     */
+    public MethodRef copyMethodRef(int methodIdx) {
+        RefTables tables = getRefTables();
+        return new MethodRef(tables.methodClassName(methodIdx), tables.methodArgTypes(methodIdx),
+                tables.methodReturnType(methodIdx), tables.methodName(methodIdx));
+    }
+
+    /**
+     * Builds a standalone copy of the FieldRef at the given index into the
+     * field_ids table.  See {@link #copyMethodRef}.
+     */
+    public FieldRef copyFieldRef(int fieldIdx) {
+        RefTables tables = getRefTables();
+        return new FieldRef(tables.fieldClassName(fieldIdx), tables.fieldTypeName(fieldIdx),
+                tables.fieldName(fieldIdx));
+    }
+
+    /**
+     * Returns the list of all method references.
+     * @return method refs
+     */
+    public MethodRef[] getMethodRefs() {
+        MethodRef[] methodRefs = new MethodRef[mMethodNameIdx.length];
+        for (int i = 0; i < methodRefs.length; i++) {
+            methodRefs[i] = methodRefFromIndex(i);
+        }
+        return methodRefs;
+    }
+
+    public FieldRef[] getFieldRefs() {
+        FieldRef[] fieldRefs = new FieldRef[mFieldNameIdx.length];
+        for (int i = 0; i < fieldRefs.length; i++) {
+            fieldRefs[i] = fieldRefFromIndex(i);
+        }
+        return fieldRefs;
+    }
+
+    /*
+     * END MODIFIED SECTION
+     */
+
+
+
+    /*
+     * =======================================================================
+     *      Basic I/O functions
+     * =======================================================================
+     */
+
+    /**
+     * Seeks the DEX file to the specified absolute position.
+     */
+    void seek(int position) throws IOException {
+        if (position < 0) {
+            throw pastEnd(position);
+        }
+        if (mData == null && position != mPosition) {
+            mDexFile.seek(position);
+        }
+        mPosition = position;
+    }
+
+    /**
+     * Fills the buffer by reading bytes from the DEX file.
+     */
     void readBytes(byte[] buffer) throws IOException {
-        mDexFile.readFully(buffer);
+        if (mData != null) {
+            readBytesAt(mPosition, buffer, buffer.length);
+        } else {
+            readFully(buffer, buffer.length);
+        }
+        mPosition += buffer.length;
+    }
+
+    /**
+     * Copies {@code length} bytes starting at the given absolute position
+     * of the data buffer into the given array.  Does not move the read position.
+     */
+    private void readBytesAt(int position, byte[] buffer, int length) {
+        try {
+            ByteBuffer view = mData.duplicate();
+            view.position(position);
+            view.get(buffer, 0, length);
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw pastEnd(position);
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes from the current position of the file.
+     */
+    private void readFully(byte[] buffer, int length) throws IOException {
+        try {
+            mDexFile.readFully(buffer, 0, length);
+        } catch (EOFException e) {
+            throw pastEnd(mPosition);
+        }
+    }
+
+    /**
+     * Reports a read outside of the data, which means that an offset or a
+     * length we were given is bad.  Mapped reads are bounds-checked by the
+     * buffer anyway, so they simply translate its exception into this.
+     */
+    private static DexDataException pastEnd(int position) {
+        return new DexDataException("Read past the end of the DEX data at offset " + position);
     }
 
     /**
      * Reads a single signed byte value.
      */
     byte readByte() throws IOException {
-        mDexFile.readFully(tmpBuf, 0, 1);
+        if (mData != null) {
+            try {
+                return mData.get(mPosition++);
+            } catch (IndexOutOfBoundsException e) {
+                throw pastEnd(mPosition - 1);
+            }
+        }
+
+        readFully(tmpBuf, 1);
+        mPosition++;
         return tmpBuf[0];
     }
 
@@ -494,7 +1946,15 @@ public class DexData {
      * Reads a signed 16-bit integer, byte-swapping if necessary.
      */
     short readShort() throws IOException {
-        mDexFile.readFully(tmpBuf, 0, 2);
+        if (mData != null) {
+            // the buffer's byte order already accounts for isBigEndian
+            short value = readShortAt(mPosition);
+            mPosition += 2;
+            return value;
+        }
+
+        readFully(tmpBuf, 2);
+        mPosition += 2;
         if (isBigEndian) {
             return (short) ((tmpBuf[1] & 0xff) | ((tmpBuf[0] & 0xff) << 8));
         } else {
@@ -506,7 +1966,14 @@ public class DexData {
      * Reads a signed 32-bit integer, byte-swapping if necessary.
      */
     int readInt() throws IOException {
-        mDexFile.readFully(tmpBuf, 0, 4);
+        if (mData != null) {
+            int value = readIntAt(mPosition);
+            mPosition += 4;
+            return value;
+        }
+
+        readFully(tmpBuf, 4);
+        mPosition += 4;
 
         if (isBigEndian) {
             return (tmpBuf[3] & 0xff) | ((tmpBuf[2] & 0xff) << 8) |
@@ -518,44 +1985,178 @@ public class DexData {
     }
 
     /**
-     * Reads a variable-length unsigned LEB128 value.  Does not attempt to
-     * verify that the value is valid.
+     * Reads a signed 16-bit integer at the given absolute position.  When
+     * the data is in a buffer this has no side effects and may be called from
+     * several threads at once.
+     */
+    short readShortAt(int position) throws IOException {
+        if (mData != null) {
+            try {
+                return mData.getShort(position);
+            } catch (IndexOutOfBoundsException e) {
+                throw pastEnd(position);
+            }
+        }
+
+        seek(position);
+        return readShort();
+    }
+
+    /**
+     * Reads a signed 32-bit integer at the given absolute position.  When
+     * the data is in a buffer this has no side effects and may be called from
+     * several threads at once.
+     */
+    int readIntAt(int position) throws IOException {
+        if (mData != null) {
+            try {
+                return mData.getInt(position);
+            } catch (IndexOutOfBoundsException e) {
+                throw pastEnd(position);
+            }
+        }
+
+        seek(position);
+        return readInt();
+    }
+
+    /**
+     * Reads a variable-length unsigned LEB128 value, which takes up at most
+     * five bytes.
      *
-     * @throws java.io.EOFException if we run off the end of the file
+     * @throws DexDataException if the value runs on for longer, or off the
+     *                          end of the file
      */
     int readUnsignedLeb128() throws IOException {
         int result = 0;
+        int shift = 0;
         byte val;
 
         do {
+            if (shift == 35) {
+                throw badLeb128(mPosition - 5);
+            }
             val = readByte();
-            result = (result << 7) | (val & 0x7f);
+            result |= (val & 0x7f) << shift;
+            shift += 7;
         } while (val < 0);
 
         return result;
     }
 
+    private static DexDataException badLeb128(int position) {
+        return new DexDataException("LEB128 value at offset " + position + " is longer than five bytes");
+    }
+
     /**
-     * Reads a UTF-8 string.
+     * Reads a variable-length signed LEB128 value, which takes up at most
+     * five bytes.
      *
-     * We don't know how long the UTF-8 string is, so we have to read one
+     * @throws DexDataException if the value runs on for longer, or off the
+     *                          end of the file
+     */
+    int readSignedLeb128() throws IOException {
+        int result = 0;
+        int shift = 0;
+        byte val;
+
+        do {
+            if (shift == 35) {
+                throw badLeb128(mPosition - 5);
+            }
+            val = readByte();
+            result |= (val & 0x7f) << shift;
+            shift += 7;
+        } while (val < 0);
+
+        if (shift < 32 && (val & 0x40) != 0) {
+            result |= -1 << shift;  // sign-extend
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads a Modified UTF-8 string.
+     *
+     * We don't know how long the encoded string is, so we have to read one
      * byte at a time.  We could make an educated guess based on the
      * utf16_size and seek back if we get it wrong, but seeking backward
      * may cause the underlying implementation to reload I/O buffers.
      */
     String readString() throws IOException {
+        int start = mPosition;
         int utf16len = readUnsignedLeb128();
-        byte inBuf[] = new byte[utf16len * 3];      // worst case
-        int idx;
+        // Each UTF-16 unit takes at most three bytes, plus the terminator.
+        long maxLength = utf16len * 3L + 1;
+        int idx = 0;
+
+        for (;;) {
+            if (idx == mStringBuf.length) {
+                if (idx >= maxLength || mPosition >= mLimit) {
+                    throw new DexDataException("Unterminated string at offset " + start);
+                }
+                mStringBuf = Arrays.copyOf(mStringBuf, (int) Math.min(mStringBuf.length * 2L, maxLength));
+            }
 
-        for (idx = 0; idx < inBuf.length; idx++) {
             byte val = readByte();
+            mStringBuf[idx++] = val;
             if (val == 0)
                 break;
-            inBuf[idx] = val;
         }
 
-        return new String(inBuf, 0, idx, "UTF-8");
+        // ...and at least one byte, so the count can't exceed the length.
+        if (utf16len < 0 || utf16len > idx - 1) {
+            throw new DexDataException("String at offset " + start + " claims " + (utf16len & 0xFFFFFFFFL)
+                + " characters, but holds only " + (idx - 1) + " bytes");
+        }
+
+        try {
+            return mDecoder.decode(ByteBuffer.wrap(mStringBuf, 0, idx), 0, utf16len);
+        } catch (IndexOutOfBoundsException e) {
+            throw new DexDataException("Unterminated string at offset " + start);
+        }
+    }
+
+    /**
+     * Decodes the string_data_item at the given offset of the data buffer.
+     *
+     * Unlike {@link #readString}, this uses absolute reads only and leaves
+     * the read position alone, so it is safe to call outside of load(), or
+     * concurrently with a separate decoder per thread.
+     */
+    private String decodeString(int offset, Mutf8 decoder) {
+        int position = offset;
+        int utf16len = 0;
+        int shift = 0;
+        byte val;
+        do {
+            if (shift == 35) {
+                throw badLeb128(offset);
+            }
+            val = readByteAt(position++);
+            utf16len |= (val & 0x7f) << shift;
+            shift += 7;
+        } while (val < 0);
+
+        if (utf16len < 0 || utf16len > mLimit - position) {
+            throw new DexDataException("String at offset " + offset + " claims " + (utf16len & 0xFFFFFFFFL)
+                + " characters, more than the DEX data holds");
+        }
+
+        try {
+            return decoder.decode(mData, position, utf16len);
+        } catch (IndexOutOfBoundsException e) {
+            throw new DexDataException("Unterminated string at offset " + offset);
+        }
+    }
+
+    private byte readByteAt(int position) {
+        try {
+            return mData.get(position);
+        } catch (IndexOutOfBoundsException e) {
+            throw pastEnd(position);
+        }
     }
 
 
@@ -565,6 +2166,91 @@ public class DexData {
      * =======================================================================
      */
 
+    /**
+     * Collects what {@link #acceptClassSizes} needs from the class data of
+     * the class currently being read: the strings it names, and the code
+     * items of its methods.
+     */
+    private final class ItemCollector implements DexVisitor {
+        int owner;
+        final int[] stringOwners;
+        long[] codeItems = new long[64];
+        int codeItemCount;
+
+        ItemCollector(int stringCount) {
+            stringOwners = new int[stringCount];
+            Arrays.fill(stringOwners, -1);
+        }
+
+        void claimString(int stringIdx) {
+            if (stringOwners[stringIdx] == -1) {
+                stringOwners[stringIdx] = owner;
+            }
+        }
+
+        @Override
+        public void visitDeclaredMethod(int methodIdx, int accessFlags, int codeOff) {
+            claimString(mMethodNameIdx[methodIdx]);
+
+            if (codeOff != 0) {
+                if (codeItemCount == codeItems.length) {
+                    codeItems = Arrays.copyOf(codeItems, codeItems.length * 2);
+                }
+                codeItems[codeItemCount++] = packItem(codeOff, owner);
+            }
+        }
+
+        @Override
+        public void visitDeclaredField(int fieldIdx, int accessFlags) {
+            claimString(mFieldNameIdx[fieldIdx]);
+        }
+    }
+
+    /**
+     * A growable list of items, packed by {@link #packItem}.
+     */
+    private static final class ItemList {
+        long[] items = new long[64];
+        int count;
+
+        void add(int offset, int owner) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, items.length * 2);
+            }
+            items[count++] = packItem(offset, owner);
+        }
+    }
+
+    /**
+     * The annotation items {@link #acceptClassSizes} charges classes for,
+     * each along with the class that led to it.
+     */
+    private static final class AnnotationItems {
+        final ItemList directories = new ItemList();
+        final ItemList setRefLists = new ItemList();
+        final ItemList sets = new ItemList();
+        final ItemList annotations = new ItemList();
+    }
+
+    /**
+     * Collects the code items of the methods in the class data being read,
+     * along with the method each belongs to, for {@link #acceptCodeRefs}.
+     */
+    private static final class CodeItemCollector implements DexVisitor {
+        long[] codeItems = new long[64];
+        int codeItemCount;
+
+        @Override
+        public void visitDeclaredMethod(int methodIdx, int accessFlags, int codeOff) {
+            if (codeOff != 0) {
+                if (codeItemCount == codeItems.length) {
+                    codeItems = Arrays.copyOf(codeItems, codeItems.length * 2);
+                }
+                codeItems[codeItemCount++] = packItem(codeOff, methodIdx);
+            }
+        }
+    }
+
     /**
      * Holds the contents of a header_item.
      */
@@ -572,6 +2258,9 @@ public class DexData {
         public int fileSize;
         public int headerSize;
         public int endianTag;
+        public int mapOff;
+        public int containerSize;
+        public int headerOffset;
         public int stringIdsSize, stringIdsOff;
         public int typeIdsSize, typeIdsOff;
         public int protoIdsSize, protoIdsOff;
@@ -599,61 +2288,16 @@ public class DexData {
         public static final byte[] DEX_FILE_MAGIC_v039 =
             "dex\n039\0".getBytes(StandardCharsets.US_ASCII);
 
-        public static final int ENDIAN_CONSTANT = 0x12345678;
-        public static final int REVERSE_ENDIAN_CONSTANT = 0x78563412;
-    }
-
-    /**
-     * Holds the contents of a type_id_item.
-     *
-     * This is chiefly a list of indices into the string table.  We need
-     * some additional bits of data, such as whether or not the type ID
-     * represents a class defined in this DEX, so we use an object for
-     * each instead of a simple integer.  (Could use a parallel array, but
-     * since this is a desktop app it's not essential.)
-     */
-    static class TypeIdItem {
-        public int descriptorIdx;       // index into string_ids
-
-        public boolean internal;        // defined within this DEX file?
-    }
-
-    /**
-     * Holds the contents of a proto_id_item.
-     */
-    static class ProtoIdItem {
-        public int shortyIdx;           // index into string_ids
-        public int returnTypeIdx;       // index into type_ids
-        public int parametersOff;       // file offset to a type_list
-
-        public int types[];             // contents of type list
-    }
-
-    /**
-     * Holds the contents of a field_id_item.
-     */
-    static class FieldIdItem {
-        public int classIdx;            // index into type_ids (defining class)
-        public int typeIdx;             // index into type_ids (field type)
-        public int nameIdx;             // index into string_ids
-    }
+        // V040 widens the set of characters allowed in simple names
+        public static final byte[] DEX_FILE_MAGIC_v040 =
+            "dex\n040\0".getBytes(StandardCharsets.US_ASCII);
 
-    /**
-     * Holds the contents of a method_id_item.
-     */
-    static class MethodIdItem {
-        public int classIdx;            // index into type_ids
-        public int protoIdx;            // index into proto_ids
-        public int nameIdx;             // index into string_ids
-    }
+        // V041 adds containers of several dex files, each with its own
+        // header; see art/libdexfile/dex/dex_file.h
+        public static final byte[] DEX_FILE_MAGIC_v041 =
+            "dex\n041\0".getBytes(StandardCharsets.US_ASCII);
 
-    /**
-     * Holds the contents of a class_def_item.
-     *
-     * We don't really need a class for this, but there's some stuff in
-     * the class_def_item that we might want later.
-     */
-    static class ClassDefItem {
-        public int classIdx;            // index into type_ids
+        public static final int ENDIAN_CONSTANT = 0x12345678;
+        public static final int REVERSE_ENDIAN_CONSTANT = 0x78563412;
     }
 }
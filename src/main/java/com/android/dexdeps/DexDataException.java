@@ -21,4 +21,11 @@ package com.android.dexdeps;
  */
 @SuppressWarnings("serial")
 public class DexDataException extends RuntimeException {
+    public DexDataException() {
+        super();
+    }
+
+    public DexDataException(String message) {
+        super(message);
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+/**
+ * A FieldRef that is only an index into a DEX file's field_ids table,
+ * resolved against that file's shared {@link RefTables}.
+ *
+ * Equal to any other FieldRef with the same class, name and type.  Two
+ * of these from the same DEX file compare by index alone.
+ */
+final class DexFieldRef extends FieldRef {
+    private final RefTables mTables;
+    private final int mIndex;
+
+    DexFieldRef(RefTables tables, int index) {
+        mTables = tables;
+        mIndex = index;
+    }
+
+    @Override
+    public String getDeclClassName() {
+        return mTables.fieldClassName(mIndex);
+    }
+
+    @Override
+    public String getTypeName() {
+        return mTables.fieldTypeName(mIndex);
+    }
+
+    @Override
+    public String getName() {
+        return mTables.fieldName(mIndex);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof DexFieldRef) {
+            DexFieldRef other = (DexFieldRef) o;
+            if (other.mTables == mTables) {
+                // field_ids entries are unique within a file
+                return other.mIndex == mIndex;
+            }
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return mTables.fieldHash(mIndex);
+    }
+}
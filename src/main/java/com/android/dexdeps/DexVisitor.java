@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+/**
+ * Receives the entries of a DEX file's method_ids and field_ids tables as
+ * raw index tuples, via {@link DexData#accept(DexVisitor)}, and the members
+ * its classes declare, via {@link DexData#acceptDeclarations(DexVisitor)}.
+ * The bytes each class accounts for are reported via
+ * {@link DexData#acceptClassSizes(DexVisitor)}, and the calls and field
+ * accesses its code makes via {@link DexData#acceptCodeRefs(DexVisitor)}.
+ *
+ * Nothing is decoded or allocated on the visitor's behalf; indices can be
+ * resolved on demand with {@link DexData#getString(int)},
+ * {@link DexData#getTypeName(int)} and friends, or turned into a ref with
+ * {@link DexData#getMethodRef(int)} / {@link DexData#getFieldRef(int)}.
+ */
+public interface DexVisitor {
+    /**
+     * Visits one method_id_item.
+     *
+     * @param methodIdx index into the method_ids table
+     * @param classIdx index into the type_ids table of the declaring class
+     * @param protoIdx index into the proto_ids table
+     * @param nameIdx index into the string_ids table of the method name
+     */
+    default void visitMethod(int methodIdx, int classIdx, int protoIdx, int nameIdx) {
+    }
+
+    /**
+     * Visits one field_id_item.
+     *
+     * @param fieldIdx index into the field_ids table
+     * @param classIdx index into the type_ids table of the declaring class
+     * @param typeIdx index into the type_ids table of the field's type
+     * @param nameIdx index into the string_ids table of the field name
+     */
+    default void visitField(int fieldIdx, int classIdx, int typeIdx, int nameIdx) {
+    }
+
+    /**
+     * Visits one encoded_method of a class_data_item.
+     *
+     * @param methodIdx index into the method_ids table
+     * @param accessFlags the method's access flags
+     * @param codeOff offset of the method's code_item, or 0 if it is
+     *                abstract or native
+     */
+    default void visitDeclaredMethod(int methodIdx, int accessFlags, int codeOff) {
+    }
+
+    /**
+     * Visits one encoded_field of a class_data_item.
+     *
+     * @param fieldIdx index into the field_ids table
+     * @param accessFlags the field's access flags
+     */
+    default void visitDeclaredField(int fieldIdx, int accessFlags) {
+    }
+
+    /**
+     * Visits the byte sizes charged to one class_def_item.
+     *
+     * @param classIdx index into the type_ids table of the class
+     * @param codeBytes size of the code_items of its methods
+     * @param stringBytes size of the string_data_items it owns
+     * @param annotationBytes size of its annotations_directory_item and of
+     *                        the annotation sets and items it leads to
+     * @param debugInfoBytes size of the debug_info_items of its methods
+     */
+    default void visitClassSize(int classIdx, int codeBytes, int stringBytes, int annotationBytes, int debugInfoBytes) {
+    }
+
+    /**
+     * Visits one invoke instruction, or one const-method-handle whose
+     * handle invokes a method.
+     *
+     * @param methodIdx index into the method_ids table of the method whose
+     *                  code holds the instruction
+     * @param targetMethodIdx index into the method_ids table of the method
+     *                        it calls
+     */
+    default void visitInvoke(int methodIdx, int targetMethodIdx) {
+    }
+
+    /**
+     * Visits one instruction that reads or writes a field, or one
+     * const-method-handle whose handle does.
+     *
+     * @param methodIdx index into the method_ids table of the method whose
+     *                  code holds the instruction
+     * @param fieldIdx index into the field_ids table of the field accessed
+     */
+    default void visitFieldAccess(int methodIdx, int fieldIdx) {
+    }
+}
@@ -29,6 +29,12 @@ public class FieldRef implements HasDeclaringClass {
         mFieldName = fieldName;
     }
 
+    /**
+     * For subclasses that supply their values through the getters.
+     */
+    protected FieldRef() {
+    }
+
     /**
      * Gets the name of the field's declaring class.
      */
@@ -57,20 +63,27 @@ public class FieldRef implements HasDeclaringClass {
 
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
         if (!(obj instanceof FieldRef)) {
             return false;
         }
         FieldRef that = (FieldRef) obj;
-        return this.mDeclClass.equals(that.mDeclClass)
-                && this.mFieldName.equals(that.mFieldName)
-                && this.mFieldType.equals(that.mFieldType);
+        return this.getDeclClassName().equals(that.getDeclClassName())
+                && this.getName().equals(that.getName())
+                && this.getTypeName().equals(that.getTypeName());
     }
 
     @Override
     public int hashCode() {
-        return mDeclClass.hashCode()
-                ^ mFieldName.hashCode()
-                ^ mFieldType.hashCode();
+        return hashCode(getDeclClassName(), getTypeName(), getName());
+    }
+
+    static int hashCode(String declClass, String fieldType, String fieldName) {
+        return declClass.hashCode()
+                ^ fieldName.hashCode()
+                ^ fieldType.hashCode();
     }
 
     /*
@@ -34,6 +34,12 @@ public class MethodRef implements HasDeclaringClass {
         mMethodName = methodName;
     }
 
+    /**
+     * For subclasses that supply their values through the getters.
+     */
+    protected MethodRef() {
+    }
+
     /**
      * Gets the name of the method's declaring class.
      */
@@ -46,7 +52,7 @@ public class MethodRef implements HasDeclaringClass {
      * Gets the method's descriptor.
      */
     public String getDescriptor() {
-        return descriptorFromProtoArray(mArgTypes, mReturnType);
+        return descriptorFromProtoArray(getArgumentTypeNames(), getReturnTypeName());
     }
 
     /**
@@ -94,19 +100,28 @@ public class MethodRef implements HasDeclaringClass {
      */
 
     @Override public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
         if (!(o instanceof MethodRef)) {
             return false;
         }
         MethodRef other = (MethodRef) o;
-        return other.mDeclClass.equals(mDeclClass) &&
-            other.mReturnType.equals(mReturnType) &&
-            other.mMethodName.equals(mMethodName) &&
-            Arrays.equals(other.mArgTypes, mArgTypes);
+        return other.getDeclClassName().equals(getDeclClassName()) &&
+            other.getReturnTypeName().equals(getReturnTypeName()) &&
+            other.getName().equals(getName()) &&
+            Arrays.equals(other.getArgumentTypeNames(), getArgumentTypeNames());
     }
 
     @Override public int hashCode() {
-        return mDeclClass.hashCode() ^ mReturnType.hashCode() ^
-            mMethodName.hashCode() ^ Arrays.hashCode(mArgTypes);
+        return hashCode(getDeclClassName(), getArgumentTypeNames(),
+            getReturnTypeName(), getName());
+    }
+
+    static int hashCode(String declClass, String[] argTypes,
+            String returnType, String methodName) {
+        return declClass.hashCode() ^ returnType.hashCode() ^
+            methodName.hashCode() ^ Arrays.hashCode(argTypes);
     }
 
     /*
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the Modified UTF-8 used by string_data_items.
+ *
+ * This differs from standard UTF-8 in that NUL is encoded as two bytes
+ * (0xC0 0x80) and supplementary characters are encoded as a surrogate
+ * pair of three-byte sequences, neither of which the JDK's UTF-8 charset
+ * accepts.  Nearly every string we decode is a plain-ASCII descriptor or
+ * member name, so that case gets a fast path.
+ *
+ * Instances hold scratch buffers and are not thread-safe.
+ */
+final class Mutf8 {
+    private byte[] mBytes = new byte[128];
+    private char[] mChars = new char[128];
+
+    /**
+     * Decodes {@code utf16len} characters starting at the given absolute
+     * offset of the buffer.  The buffer's position is not used or changed.
+     *
+     * @throws DexDataException if the data is not valid Modified UTF-8
+     */
+    String decode(ByteBuffer in, int offset, int utf16len) {
+        if (mBytes.length < utf16len) {
+            mBytes = new byte[Math.max(utf16len, mBytes.length * 2)];
+        }
+
+        // ASCII takes exactly one byte per character.
+        byte[] bytes = mBytes;
+        int i = 0;
+        while (i < utf16len) {
+            byte b = in.get(offset + i);
+            if (b <= 0) {
+                // Either a multi-byte sequence or a premature terminator.
+                return decodeSlow(in, offset, utf16len);
+            }
+            bytes[i++] = b;
+        }
+
+        return new String(bytes, 0, utf16len, StandardCharsets.ISO_8859_1);
+    }
+
+    private String decodeSlow(ByteBuffer in, int offset, int utf16len) {
+        if (mChars.length < utf16len) {
+            mChars = new char[Math.max(utf16len, mChars.length * 2)];
+        }
+
+        char[] chars = mChars;
+        int pos = offset;
+        int count = 0;
+        while (count < utf16len) {
+            int a = in.get(pos++) & 0xff;
+            if (a == 0) {
+                throw new DexDataException("String at offset " + offset + " ends after "
+                    + count + " of " + utf16len + " characters");
+            } else if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                int b = in.get(pos++) & 0xff;
+                if ((b & 0xc0) != 0x80) {
+                    throw badByte(offset, pos - 1);
+                }
+                chars[count++] = (char) (((a & 0x1f) << 6) | (b & 0x3f));
+            } else if ((a & 0xf0) == 0xe0) {
+                int b = in.get(pos++) & 0xff;
+                int c = in.get(pos++) & 0xff;
+                if ((b & 0xc0) != 0x80 || (c & 0xc0) != 0x80) {
+                    throw badByte(offset, pos - 2);
+                }
+                chars[count++] = (char) (((a & 0x0f) << 12) | ((b & 0x3f) << 6) | (c & 0x3f));
+            } else {
+                throw badByte(offset, pos - 1);
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+
+    private static DexDataException badByte(int stringOffset, int byteOffset) {
+        return new DexDataException("Bad Modified UTF-8 byte at offset " + byteOffset
+            + " in string at offset " + stringOffset);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+/**
+ * The decoded ID tables that a DexData's refs are resolved against.
+ *
+ * Every {@link DexMethodRef} and {@link DexFieldRef} from one DEX file
+ * points at the same instance, so a ref costs an index rather than its
+ * own copies of the strings and argument array.  Argument arrays are
+ * built once per proto_id and shared by every method with that proto.
+ *
+ * All the strings the refs need are decoded before an instance is made,
+ * and nothing here refers back to the file or buffer, so holding refs
+ * does not keep the DEX data itself alive.  It does keep every string of
+ * the file alive, though, so refs that are to outlive their DexData are
+ * better copied with {@link DexData#copyMethodRef} and
+ * {@link DexData#copyFieldRef}.  Instances are immutable once published.
+ */
+final class RefTables {
+    private final String[] mStrings;
+    private final int[] mTypeDescriptorIdx;
+    private final int[] mProtoReturnTypeIdx;
+    private final String[][] mProtoArgTypes;
+    private final short[] mMethodClassIdx;
+    private final short[] mMethodProtoIdx;
+    private final int[] mMethodNameIdx;
+    private final short[] mFieldClassIdx;
+    private final short[] mFieldTypeIdx;
+    private final int[] mFieldNameIdx;
+
+    // Lazily computed; racy but benign, as with String.hashCode().
+    private final int[] mMethodHashes;
+    private final int[] mFieldHashes;
+
+    RefTables(String[] strings, int[] typeDescriptorIdx,
+            int[] protoReturnTypeIdx, String[][] protoArgTypes,
+            short[] methodClassIdx, short[] methodProtoIdx, int[] methodNameIdx,
+            short[] fieldClassIdx, short[] fieldTypeIdx, int[] fieldNameIdx) {
+        mStrings = strings;
+        mTypeDescriptorIdx = typeDescriptorIdx;
+        mProtoReturnTypeIdx = protoReturnTypeIdx;
+        mProtoArgTypes = protoArgTypes;
+        mMethodClassIdx = methodClassIdx;
+        mMethodProtoIdx = methodProtoIdx;
+        mMethodNameIdx = methodNameIdx;
+        mFieldClassIdx = fieldClassIdx;
+        mFieldTypeIdx = fieldTypeIdx;
+        mFieldNameIdx = fieldNameIdx;
+        mMethodHashes = new int[methodNameIdx.length];
+        mFieldHashes = new int[fieldNameIdx.length];
+    }
+
+    private String typeName(int typeIdx) {
+        return mStrings[mTypeDescriptorIdx[typeIdx]];
+    }
+
+    String methodClassName(int idx) {
+        return typeName(mMethodClassIdx[idx] & 0xffff);
+    }
+
+    String[] methodArgTypes(int idx) {
+        return mProtoArgTypes[mMethodProtoIdx[idx] & 0xffff];
+    }
+
+    String methodReturnType(int idx) {
+        return typeName(mProtoReturnTypeIdx[mMethodProtoIdx[idx] & 0xffff]);
+    }
+
+    String methodName(int idx) {
+        return mStrings[mMethodNameIdx[idx]];
+    }
+
+    int methodHash(int idx) {
+        int hash = mMethodHashes[idx];
+        if (hash == 0) {
+            hash = MethodRef.hashCode(methodClassName(idx), methodArgTypes(idx),
+                    methodReturnType(idx), methodName(idx));
+            mMethodHashes[idx] = hash;
+        }
+        return hash;
+    }
+
+    String fieldClassName(int idx) {
+        return typeName(mFieldClassIdx[idx] & 0xffff);
+    }
+
+    String fieldTypeName(int idx) {
+        return typeName(mFieldTypeIdx[idx] & 0xffff);
+    }
+
+    String fieldName(int idx) {
+        return mStrings[mFieldNameIdx[idx]];
+    }
+
+    int fieldHash(int idx) {
+        int hash = mFieldHashes[idx];
+        if (hash == 0) {
+            hash = FieldRef.hashCode(fieldClassName(idx), fieldTypeName(idx),
+                    fieldName(idx));
+            mFieldHashes[idx] = hash;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread-safe pool of canonical strings.
+ *
+ * Every classesN.dex of a multidex app carries its own copy of the type
+ * descriptors and member names they share ("Ljava/lang/String;", "<init>",
+ * ...).  Handing one pool to each {@link DexData} of an analysis, via
+ * {@link DexData#setStringPool(StringPool)}, makes all of them resolve to
+ * the same String instances, so heap use grows with the number of
+ * distinct strings rather than with the number of dex files.
+ *
+ * Unlike {@link String#intern()}, the pool is dropped with the analysis.
+ */
+public final class StringPool {
+    private final ConcurrentMap<String, String> mStrings = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the pooled string equal to the given one, adding it to the
+     * pool if there is none yet.
+     */
+    public String intern(String s) {
+        String existing = mStrings.get(s);
+        if (existing != null) {
+            return existing;
+        }
+
+        existing = mStrings.putIfAbsent(s, s);
+        return existing != null ? existing : s;
+    }
+
+    /**
+     * Returns the number of distinct strings in the pool.
+     */
+    public int size() {
+        return mStrings.size();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount;
+
+public enum AarCountingEngine {
+    /**
+     * Specifies that an AAR's classes are dexed with D8, and the resulting
+     * dex files counted.  Exact, but slow.
+     */
+    D8,
+
+    /**
+     * Specifies that each of an AAR's classes is dexed with D8 on its own,
+     * and the output of each cached by the contents of the class and its
+     * supertypes, so that only the classes that changed are dexed again.
+     * Takes time in proportion to the change rather than to the library.
+     * The outputs are counted as one dex file, whose ID tables are the
+     * union of theirs.
+     */
+    D8_PER_CLASS,
+
+    /**
+     * Specifies that the refs D8 would produce are read straight from the
+     * constant pools of an AAR's class files.  Much faster, but the members
+     * D8 synthesizes while desugaring are not counted.
+     */
+    CLASS_FILES,
+
+    /**
+     * Specifies that an AAR is counted with D8, and its refs compared with
+     * those read from its class files.
+     */
+    VERIFY
+}
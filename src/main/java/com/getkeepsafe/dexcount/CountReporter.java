@@ -19,18 +19,14 @@ import org.gradle.api.GradleException;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * An object that can produce formatted output from a {@link PackageTree} instance.
  */
 public class CountReporter {
-    /**
-     * The maximum number of method refs and field refs allowed in a single Dex
-     * file.
-     */
-    private static final int MAX_DEX_REFS = 0xFFFF; // 65535
-
     private final PackageTree packageTree;
+    private final List<DexSummary> dexSummaries;
     private final String variantName;
     private final Logger logger;
     private final PrintOptions options;
@@ -39,12 +35,14 @@ public class CountReporter {
 
     public CountReporter(
             PackageTree packageTree,
+            List<DexSummary> dexSummaries,
             String variantName,
             Logger logger,
             PrintOptions options,
             String inputRepresentation,
             boolean isInstantRun) {
         this.packageTree = packageTree;
+        this.dexSummaries = dexSummaries;
         this.variantName = variantName;
         this.logger = logger;
         this.options = options;
@@ -74,8 +72,28 @@ public class CountReporter {
         }
     }
 
+    /**
+     * True when the counts come from dex headers, and there is no package
+     * breakdown to report.
+     */
+    private boolean isSummaryOnly() {
+        return options.getSummaryOnly() && !dexSummaries.isEmpty();
+    }
+
+    private int getMethodCount() {
+        return packageTree.getMethodCount();
+    }
+
+    private int getFieldCount() {
+        return packageTree.getFieldCount();
+    }
+
+    private int getClassCount() {
+        return packageTree.getClassCount();
+    }
+
     private String percentUsed(int count) {
-        double used = ((double) count / MAX_DEX_REFS) * 100.0;
+        double used = ((double) count / DexSummary.MAX_DEX_REFS) * 100.0;
         return String.format("%.2f", used);
     }
 
@@ -84,19 +102,52 @@ public class CountReporter {
             logger.warn("Warning: Instant Run build detected!  Instant Run does not run Proguard; method counts may be inaccurate.");
         }
 
-        String percentMethodsUsed = percentUsed(packageTree.getMethodCount());
-        String percentFieldsUsed = percentUsed(packageTree.getFieldCount());
-        String percentClassesUsed = percentUsed(packageTree.getClassCount());
+        if (isSummaryOnly()) {
+            printPerDexTotals();
+        } else {
+            printTotals();
+        }
+
+        printPerDexHeadroom();
+
+        if (options.getTeamCityIntegration() || options.hasTeamCitySlug()) {
+            String slug = "Dexcount";
+            if (options.getTeamCitySlug() != null) {
+                slug += "_" + options.getTeamCitySlug().replace(' ', '_');
+            }
+            String prefix = slug + "_" + variantName;
 
-        int methodsRemaining = Math.max(MAX_DEX_REFS - packageTree.getMethodCount(), 0);
-        int fieldsRemaining = Math.max(MAX_DEX_REFS - packageTree.getFieldCount(), 0);
-        int classesRemaining = Math.max(MAX_DEX_REFS - packageTree.getClassCount(), 0);
+            /*
+             * Reports to Team City statistic value
+             * Doc: https://confluence.jetbrains.com/display/TCD9/Build+Script+Interaction+with+TeamCity#BuildScriptInteractionwithTeamCity-ReportingBuildStatistics
+             */
+            if (isSummaryOnly()) {
+                // Under keys of their own, so as not to be plotted alongside the usual counts.
+                logger.warn(String.format("##teamcity[buildStatisticValue key='%s_%s' value='%d']", prefix, "PerDexTotalClassCount", DexSummary.totalClassCount(dexSummaries)));
+                logger.warn(String.format("##teamcity[buildStatisticValue key='%s_%s' value='%d']", prefix, "PerDexTotalMethodCount", DexSummary.totalMethodCount(dexSummaries)));
+                logger.warn(String.format("##teamcity[buildStatisticValue key='%s_%s' value='%d']", prefix, "PerDexTotalFieldCount", DexSummary.totalFieldCount(dexSummaries)));
+            } else {
+                logger.warn(String.format("##teamcity[buildStatisticValue key='%s_%s' value='%d']", prefix, "ClassCount", getClassCount()));
+                logger.warn(String.format("##teamcity[buildStatisticValue key='%s_%s' value='%d']", prefix, "MethodCount", getMethodCount()));
+                logger.warn(String.format("##teamcity[buildStatisticValue key='%s_%s' value='%d']", prefix, "FieldCount", getFieldCount()));
+            }
+        }
+    }
+
+    private void printTotals() {
+        String percentMethodsUsed = percentUsed(getMethodCount());
+        String percentFieldsUsed = percentUsed(getFieldCount());
+        String percentClassesUsed = percentUsed(getClassCount());
+
+        int methodsRemaining = DexSummary.remaining(getMethodCount());
+        int fieldsRemaining = DexSummary.remaining(getFieldCount());
+        int classesRemaining = DexSummary.remaining(getClassCount());
 
         int methodCount, fieldCount, classCount;
         if (options.isAndroidProject()) {
-            methodCount = packageTree.getMethodCount();
-            fieldCount = packageTree.getFieldCount();
-            classCount = packageTree.getClassCount();
+            methodCount = getMethodCount();
+            fieldCount = getFieldCount();
+            classCount = getClassCount();
         } else {
             methodCount = packageTree.getMethodCountDeclared();
             fieldCount = packageTree.getFieldCountDeclared();
@@ -112,25 +163,58 @@ public class CountReporter {
             logger.warn("Fields remaining in " + inputRepresentation + ": " + fieldsRemaining);
             logger.warn("Classes remaining in " + inputRepresentation + ": " + classesRemaining);
         }
+    }
 
-        if (options.getTeamCityIntegration() || options.hasTeamCitySlug()) {
-            String slug = "Dexcount";
-            if (options.getTeamCitySlug() != null) {
-                slug += "_" + options.getTeamCitySlug().replace(' ', '_');
+    /**
+     * Prints the sums of the dex headers' counts.  A ref in several dex
+     * files counts once in each, so these run higher than the totals
+     * printed otherwise, and are labelled differently.
+     */
+    private void printPerDexTotals() {
+        logger.warn("Per-dex total methods in " + inputRepresentation + ": " + DexSummary.totalMethodCount(dexSummaries));
+        logger.warn("Per-dex total fields in " + inputRepresentation + ": " + DexSummary.totalFieldCount(dexSummaries));
+        logger.warn("Per-dex total classes in " + inputRepresentation + ": " + DexSummary.totalClassCount(dexSummaries));
+    }
+
+    /**
+     * The limits apply to each dex file on its own, and to each of its ID
+     * tables.  That's a few lines per dex file on every build, and
+     * dex-summary.csv has the same numbers, so they're only shown with
+     * {@code verbose}.
+     */
+    private void printPerDexHeadroom() {
+        StringBuilder strBuilder = new StringBuilder();
+        for (DexSummary summary : dexSummaries) {
+            if (strBuilder.length() > 0) {
+                strBuilder.append('\n');
             }
-            String prefix = slug + "_" + variantName;
+            strBuilder.append("Methods in ").append(summary.getName()).append(": ").append(summary.getMethodCount())
+                .append(" (").append(percentUsed(summary.getMethodCount())).append("% used)\n");
+            strBuilder.append("Fields in ").append(summary.getName()).append(": ").append(summary.getFieldCount())
+                .append(" (").append(percentUsed(summary.getFieldCount())).append("% used)\n");
+            strBuilder.append("Remaining in ").append(summary.getName()).append(": ")
+                .append(DexSummary.remaining(summary.getMethodCount())).append(" methods, ")
+                .append(DexSummary.remaining(summary.getFieldCount())).append(" fields, ")
+                .append(DexSummary.remaining(summary.getTypeCount())).append(" types, ")
+                .append(DexSummary.remaining(summary.getProtoCount())).append(" protos, ")
+                .append(DexSummary.remaining(summary.getStringCount())).append(" strings");
+        }
+        if (strBuilder.length() == 0) {
+            return;
+        }
 
-            /*
-             * Reports to Team City statistic value
-             * Doc: https://confluence.jetbrains.com/display/TCD9/Build+Script+Interaction+with+TeamCity#BuildScriptInteractionwithTeamCity-ReportingBuildStatistics
-             */
-            logger.warn(String.format("##teamcity[buildStatisticValue key='%s_%s' value='%d']", prefix, "ClassCount", packageTree.getClassCount()));
-            logger.warn(String.format("##teamcity[buildStatisticValue key='%s_%s' value='%d']", prefix, "MethodCount", packageTree.getMethodCount()));
-            logger.warn(String.format("##teamcity[buildStatisticValue key='%s_%s' value='%d']", prefix, "FieldCount", packageTree.getFieldCount()));
+        if (options.isVerbose()) {
+            logger.warn(strBuilder.toString());
+        } else {
+            logger.info(strBuilder.toString());
         }
     }
 
     private void printTaskDiagnosticData() throws IOException {
+        if (isSummaryOnly()) {
+            return;
+        }
+
         StringBuilder strBuilder = new StringBuilder();
         packageTree.print(strBuilder, options.getOutputFormat(), options);
 
@@ -142,8 +226,14 @@ public class CountReporter {
     }
 
     private void failBuildMaxMethods() {
-        if (options.getMaxMethodCount() > 0 && packageTree.getMethodCount() > options.getMaxMethodCount()) {
-            String message = String.format("The current APK has %d methods, the current max is: %d.", packageTree.getMethodCount(), options.getMaxMethodCount());
+        if (options.getMaxMethodCount() > 0 && isSummaryOnly()) {
+            // The per-dex totals would trip the limit on refs the usual count takes only once.
+            logger.warn("maxMethodCount is not checked when summaryOnly is on.");
+            return;
+        }
+
+        if (options.getMaxMethodCount() > 0 && getMethodCount() > options.getMaxMethodCount()) {
+            String message = String.format("The current APK has %d methods, the current max is: %d.", getMethodCount(), options.getMaxMethodCount());
             throw new GradleException(message);
         }
     }
@@ -16,6 +16,7 @@
 package com.getkeepsafe.dexcount;
 
 import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.provider.ProviderFactory;
 import org.gradle.api.tasks.Input;
@@ -27,11 +28,17 @@ import javax.inject.Inject;
  * Configuration properties for [DexCountTask] instances.
  */
 public class DexCountExtension {
+    /**
+     * The default for {@link #getMaxDexFilesInFlight()}.
+     */
+    public static final int DEFAULT_MAX_DEX_FILES_IN_FLIGHT = 4;
+
     private final Property<Boolean> runOnEachPackageProperty;
     private final Property<OutputFormat> outputFormatProperty;
     private final Property<Boolean> includeClassesProperty;
     private final Property<Boolean> includeClassCountProperty;
     private final Property<Boolean> includeFieldCountProperty;
+    private final Property<Boolean> includeByteCountProperty;
     private final Property<Boolean> includeTotalMethodCountProperty;
     private final Property<Boolean> orderByMethodCountProperty;
     private final Property<Boolean> verboseProperty;
@@ -41,6 +48,12 @@ public class DexCountExtension {
     private final Property<Integer> maxMethodCountProperty;
     private final Property<Boolean> printVersionProperty;
     private final Property<Boolean> printDeclarationsProperty;
+    private final Property<Boolean> summaryOnlyProperty;
+    private final Property<Boolean> simulateDexPackingProperty;
+    private final Property<Integer> simulatedMinSdkProperty;
+    private final ListProperty<String> simulatedRemovedPackagesProperty;
+    private final Property<Integer> maxDexFilesInFlightProperty;
+    private final Property<AarCountingEngine> aarCountingEngineProperty;
     private final Property<Boolean> enabledProperty;
 
     @Inject
@@ -50,6 +63,7 @@ public class DexCountExtension {
         this.includeClassesProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
         this.includeClassCountProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
         this.includeFieldCountProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
+        this.includeByteCountProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
         this.includeTotalMethodCountProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
         this.orderByMethodCountProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
         this.verboseProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
@@ -59,6 +73,12 @@ public class DexCountExtension {
         this.maxMethodCountProperty = objects.property(Integer.class).convention(-1);
         this.printVersionProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
         this.printDeclarationsProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
+        this.summaryOnlyProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
+        this.simulateDexPackingProperty = objects.property(Boolean.class).convention(Boolean.FALSE);
+        this.simulatedMinSdkProperty = objects.property(Integer.class).convention(-1);
+        this.simulatedRemovedPackagesProperty = objects.listProperty(String.class).empty();
+        this.maxDexFilesInFlightProperty = objects.property(Integer.class).convention(DEFAULT_MAX_DEX_FILES_IN_FLIGHT);
+        this.aarCountingEngineProperty = objects.property(AarCountingEngine.class).convention(AarCountingEngine.D8);
         this.enabledProperty = objects.property(Boolean.class).convention(Boolean.TRUE);
     }
 
@@ -103,6 +123,16 @@ public class DexCountExtension {
         return includeFieldCountProperty;
     }
 
+    /**
+     * When true, the number of dex bytes - code, strings, annotations and debug info - taken up
+     * by a package or class will be included in the printed output.  Only available for APKs and
+     * bundles. False by default.
+     */
+    @Input
+    public Property<Boolean> getIncludeByteCount() {
+        return includeByteCountProperty;
+    }
+
     /**
      * When true, the total number of methods in the application will be included in the printed
      * output.
@@ -121,7 +151,8 @@ public class DexCountExtension {
     }
 
     /**
-     * When true, the output file will also be printed to the build's standard output.
+     * When true, the output file will also be printed to the build's standard output, along
+     * with each dex file's counts and remaining headroom (also found in {@code dex-summary.csv}).
      */
     @Internal
     public Property<Boolean> getVerbose() {
@@ -172,15 +203,79 @@ public class DexCountExtension {
     }
 
     /**
-     * When true, then the plugin only counts the declared methods and fields inside this module.
-     * This does NOT represent the actual reference method count, because method references are
-     * ignored. This flag is false by default and can only be turned on for library modules.
+     * When true, the methods and fields declared by the classes of this module are counted as well
+     * as the references.  Declared counts do NOT represent the actual reference method count.
+     * For plain Java projects only declarations can be counted, so this must be turned on there.
+     * False by default.
      */
     @Input
     public Property<Boolean> getPrintDeclarations() {
         return printDeclarationsProperty;
     }
 
+    /**
+     * When true, only per-dex totals are produced, read straight from the dex file headers.  This
+     * is much faster for large APKs, but no package breakdown or chart is generated, and a method
+     * or field referenced from several dex files is counted once per dex file.  So that they aren't
+     * mistaken for the usual counts, the totals are written to dex-totals.csv rather than
+     * summary.csv, and {@link #getMaxMethodCount()} isn't checked against them. False by default.
+     */
+    @Input
+    public Property<Boolean> getSummaryOnly() {
+        return summaryOnlyProperty;
+    }
+
+    /**
+     * When true, the classes of an APK or bundle are packed into dex files the way a build might,
+     * and the number of dex files needed and how full each would be are reported.  False by default.
+     */
+    @Input
+    public Property<Boolean> getSimulateDexPacking() {
+        return simulateDexPackingProperty;
+    }
+
+    /**
+     * When set, dex packing is also simulated for this minSdk.  Below 21 the classes of the main dex
+     * file have to stay there; from 21 on, the multidex support library is left out. -1 by default.
+     */
+    @Input
+    public Property<Integer> getSimulatedMinSdk() {
+        return simulatedMinSdkProperty;
+    }
+
+    /**
+     * Packages which, when given, dex packing is also simulated without, along with their
+     * subpackages and every reference to them.  Empty by default.
+     */
+    @Input
+    public ListProperty<String> getSimulatedRemovedPackages() {
+        return simulatedRemovedPackagesProperty;
+    }
+
+    /**
+     * The most dex files of an APK or bundle that are read into memory at once.  They are parsed
+     * on that many threads, which also share the loading of any one large dex file, and each is
+     * let go of as soon as it has been counted.  4 by default.
+     */
+    @Internal("only affects memory use and speed, never the results")
+    public Property<Integer> getMaxDexFilesInFlight() {
+        return maxDexFilesInFlightProperty;
+    }
+
+    /**
+     * How the refs of a library module's AAR are counted: {@link AarCountingEngine#D8} dexes its
+     * classes, {@link AarCountingEngine#D8_PER_CLASS} dexes each class on its own and caches the
+     * result, so that only changed classes are dexed again, {@link AarCountingEngine#CLASS_FILES}
+     * reads the refs D8 would produce straight from its class files, which is much faster but
+     * misses what D8 synthesizes while desugaring, and {@link AarCountingEngine#VERIFY} dexes them
+     * and writes the difference from reading the class files to aar-counting-diff.txt.
+     * {@code D8} by default.
+     */
+    @Input
+    public Property<AarCountingEngine> getAarCountingEngine() {
+        return aarCountingEngineProperty;
+    }
+
     /**
      * When true, the plugin is enabled and will be run as normal.  When false,
      * the plugin is disabled and will not be run.
@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount;
+
+import com.android.dexdeps.FieldRef;
+import com.android.dexdeps.MethodRef;
+import com.android.dexdeps.Output;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Estimates how many dex files the classes of an input need, and how full
+ * each of them would be, without running a build.
+ *
+ * Each class brings along the methods and fields that a dex file holding
+ * it must have IDs for - those it declares, and those its code calls or
+ * accesses - plus every type those refs name: the declaring classes, and
+ * the parameter, return and field types.  Classes are kept together by
+ * package and the packages packed first-fit decreasing: largest first,
+ * each into the first dex file that can take it without any of its ID
+ * tables overflowing, with refs that dex file already holds counted only
+ * once.  A package too large for any dex file is packed class by class.
+ *
+ * The same classes can be packed again with some packages removed, or for
+ * a different minSdk, to see what a change would do to the dex count.  The
+ * results are estimates: D8 packs differently, and types that only
+ * instructions (new-instance, const-class, check-cast and the like),
+ * catch handlers, annotations or the class hierarchy name are not seen
+ * here, nor are protos and strings counted at all.
+ */
+public final class DexPackingSimulator {
+    /**
+     * At or above this minSdk, ART loads every dex file itself; below it,
+     * whatever starts the app has to be in the main dex file.
+     */
+    public static final int NATIVE_MULTIDEX_MIN_SDK = 21;
+
+    /**
+     * The legacy multidex support library, which has no use once the
+     * platform loads all dex files.
+     */
+    private static final List<String> MULTIDEX_PACKAGES = Arrays.asList(
+        "android.support.multidex",
+        "androidx.multidex");
+
+    private final Deobfuscator deobfuscator;
+    private final int maxRefs;
+
+    private final Map<MethodRef, Integer> methodIds = new HashMap<>();
+    private final Map<FieldRef, Integer> fieldIds = new HashMap<>();
+    private final Map<String, Integer> typeIds = new HashMap<>();
+
+    /* indexed by type ID: the dotted, deobfuscated class name */
+    private final List<String> typeNames = new ArrayList<>();
+
+    /* indexed by method and field ID: the type ID of the declaring class */
+    private int[] methodTypes = new int[1024];
+    private int[] fieldTypes = new int[1024];
+
+    /* indexed by method ID: the type IDs of the return and parameter types */
+    private int[][] methodProtoTypes = new int[1024][];
+
+    /* indexed by field ID: the type ID of the field's type */
+    private int[] fieldValueTypes = new int[1024];
+
+    private final List<ClassEntry> classes = new ArrayList<>();
+
+    public DexPackingSimulator(Deobfuscator deobfuscator) {
+        this(deobfuscator, DexSummary.MAX_DEX_REFS);
+    }
+
+    DexPackingSimulator(Deobfuscator deobfuscator, int maxRefs) {
+        this.deobfuscator = deobfuscator != null ? deobfuscator : Deobfuscator.EMPTY;
+        this.maxRefs = maxRefs;
+    }
+
+    /**
+     * Starts adding the contents of one dex file of the input.
+     *
+     * @param isMainDex whether this is the input's main dex file, whose
+     *                  classes must stay in the main dex file below
+     *                  {@link #NATIVE_MULTIDEX_MIN_SDK}
+     */
+    public Dex newDex(boolean isMainDex) {
+        return new Dex(isMainDex);
+    }
+
+    /**
+     * Collects the refs and classes of one dex file.  Refs are added first,
+     * in dex order, and classes then name their refs by position.
+     */
+    public final class Dex {
+        private final boolean isMainDex;
+        private int[] methods = new int[256];
+        private int methodCount;
+        private int[] fields = new int[256];
+        private int fieldCount;
+
+        private Dex(boolean isMainDex) {
+            this.isMainDex = isMainDex;
+        }
+
+        public void addMethodRef(MethodRef ref) {
+            if (methodCount == methods.length) {
+                methods = Arrays.copyOf(methods, methodCount * 2);
+            }
+            methods[methodCount++] = methodIdOf(ref);
+        }
+
+        public void addFieldRef(FieldRef ref) {
+            if (fieldCount == fields.length) {
+                fields = Arrays.copyOf(fields, fieldCount * 2);
+            }
+            fields[fieldCount++] = fieldIdOf(ref);
+        }
+
+        /**
+         * Adds a class defined by this dex file.
+         *
+         * @param methodIndices positions of the method refs it needs
+         * @param fieldIndices  positions of the field refs it needs
+         */
+        public void addClass(String descriptor, int[] methodIndices, int[] fieldIndices) {
+            int[] classMethods = new int[methodIndices.length];
+            for (int i = 0; i < methodIndices.length; i++) {
+                classMethods[i] = methods[methodIndices[i]];
+            }
+
+            int[] classFields = new int[fieldIndices.length];
+            for (int i = 0; i < fieldIndices.length; i++) {
+                classFields[i] = fields[fieldIndices[i]];
+            }
+
+            int typeId = typeIdOf(descriptor);
+            classes.add(new ClassEntry(typeId, sortedDistinct(classMethods), sortedDistinct(classFields), isMainDex));
+        }
+    }
+
+    private int methodIdOf(MethodRef ref) {
+        Integer id = methodIds.get(ref);
+        if (id == null) {
+            id = methodIds.size();
+            methodIds.put(ref, id);
+            if (id == methodTypes.length) {
+                methodTypes = Arrays.copyOf(methodTypes, id * 2);
+                methodProtoTypes = Arrays.copyOf(methodProtoTypes, id * 2);
+            }
+            methodTypes[id] = typeIdOf(ref.getDeclClassName());
+
+            String[] argTypes = ref.getArgumentTypeNames();
+            int[] protoTypes = new int[argTypes.length + 1];
+            protoTypes[0] = typeIdOf(ref.getReturnTypeName());
+            for (int i = 0; i < argTypes.length; i++) {
+                protoTypes[i + 1] = typeIdOf(argTypes[i]);
+            }
+            methodProtoTypes[id] = protoTypes;
+        }
+        return id;
+    }
+
+    private int fieldIdOf(FieldRef ref) {
+        Integer id = fieldIds.get(ref);
+        if (id == null) {
+            id = fieldIds.size();
+            fieldIds.put(ref, id);
+            if (id == fieldTypes.length) {
+                fieldTypes = Arrays.copyOf(fieldTypes, id * 2);
+                fieldValueTypes = Arrays.copyOf(fieldValueTypes, id * 2);
+            }
+            fieldTypes[id] = typeIdOf(ref.getDeclClassName());
+            fieldValueTypes[id] = typeIdOf(ref.getTypeName());
+        }
+        return id;
+    }
+
+    private int typeIdOf(String descriptor) {
+        Integer id = typeIds.get(descriptor);
+        if (id == null) {
+            id = typeIds.size();
+            typeIds.put(descriptor, id);
+            typeNames.add(deobfuscator.deobfuscate(Output.descriptorToDot(descriptor)));
+        }
+        return id;
+    }
+
+    /**
+     * Packs the classes added so far.
+     *
+     * @param minSdk          the minSdk to pack for, or -1 to leave the
+     *                        main dex file unconstrained and keep the
+     *                        multidex support library
+     * @param removedPackages packages to leave out, along with their
+     *                        subpackages, and every ref to their members
+     * @return the simulated dex files, main dex file first
+     */
+    public List<PackedDex> pack(int minSdk, List<String> removedPackages) {
+        List<String> removed = new ArrayList<>(removedPackages);
+        if (minSdk >= NATIVE_MULTIDEX_MIN_SDK) {
+            removed.addAll(MULTIDEX_PACKAGES);
+        }
+        boolean keepMainDex = minSdk >= 0 && minSdk < NATIVE_MULTIDEX_MIN_SDK;
+
+        BitSet removedTypes = new BitSet(typeNames.size());
+        for (int i = 0; i < typeNames.size(); i++) {
+            if (isInPackages(typeNames.get(i), removed)) {
+                removedTypes.set(i);
+            }
+        }
+
+        // Group the remaining classes by package, in name order so that
+        // ties are broken the same way on every run.
+        SortedMap<String, List<ClassEntry>> packages = new TreeMap<>();
+        List<ClassEntry> mainDexClasses = new ArrayList<>();
+        for (ClassEntry entry : classes) {
+            if (removedTypes.get(entry.typeId)) {
+                continue;
+            }
+            if (keepMainDex && entry.isMainDex) {
+                mainDexClasses.add(entry);
+            } else {
+                String name = typeNames.get(entry.typeId);
+                int ix = name.lastIndexOf('.');
+                String packageName = ix == -1 ? "" : name.substring(0, ix);
+                packages.computeIfAbsent(packageName, key -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        List<Bin> bins = new ArrayList<>();
+        if (!mainDexClasses.isEmpty()) {
+            // Needed at startup, so they go in the main dex file whether
+            // they fit or not.
+            Bin mainDex = new Bin();
+            mainDex.add(itemOf(mainDexClasses, removedTypes));
+            bins.add(mainDex);
+        }
+
+        List<Item> items = new ArrayList<>();
+        for (List<ClassEntry> packageClasses : packages.values()) {
+            Item item = itemOf(packageClasses, removedTypes);
+            if (item.fitsEmptyBin()) {
+                items.add(item);
+            } else {
+                for (ClassEntry entry : packageClasses) {
+                    items.add(itemOf(Collections.singletonList(entry), removedTypes));
+                }
+            }
+        }
+        items.sort(Comparator.comparingInt((Item item) -> item.methods.length)
+            .thenComparingInt(item -> item.fields.length)
+            .thenComparingInt(item -> item.types.length)
+            .reversed());
+
+        for (Item item : items) {
+            Bin target = null;
+            for (Bin bin : bins) {
+                if (bin.fits(item)) {
+                    target = bin;
+                    break;
+                }
+            }
+            if (target == null) {
+                target = new Bin();
+                bins.add(target);
+            }
+            target.add(item);
+        }
+
+        List<PackedDex> results = new ArrayList<>(bins.size());
+        for (int i = 0; i < bins.size(); i++) {
+            Bin bin = bins.get(i);
+            String name = i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex";
+            results.add(new PackedDex(name, bin.classCount, bin.methodCount, bin.fieldCount, bin.typeCount));
+        }
+        return results;
+    }
+
+    /**
+     * Prints, as CSV, the dex files the input packs into as it is, and -
+     * if a minSdk or removed packages are given - the dex files it would
+     * pack into with those changes.
+     */
+    public void printSimulation(Appendable out, int minSdk, List<String> removedPackages) throws IOException {
+        out.append("scenario,dex,classes,methods,methodsRemaining,fields,fieldsRemaining,types,typesRemaining\n");
+
+        printScenario(out, "current", pack(-1, Collections.emptyList()));
+        if (minSdk >= 0 || !removedPackages.isEmpty()) {
+            printScenario(out, "simulated", pack(minSdk, removedPackages));
+        }
+    }
+
+    private void printScenario(Appendable out, String scenario, List<PackedDex> dexes) throws IOException {
+        for (PackedDex dex : dexes) {
+            out.append(String.format("%s,%s,%d,%d,%d,%d,%d,%d,%d\n",
+                scenario,
+                dex.getName(),
+                dex.getClassCount(),
+                dex.getMethodCount(), remaining(dex.getMethodCount()),
+                dex.getFieldCount(), remaining(dex.getFieldCount()),
+                dex.getTypeCount(), remaining(dex.getTypeCount())));
+        }
+    }
+
+    private int remaining(int count) {
+        return Math.max(maxRefs - count, 0);
+    }
+
+    private static boolean isInPackages(String name, List<String> packages) {
+        for (String packageName : packages) {
+            if (name.startsWith(packageName)
+                    && (name.length() == packageName.length() || name.charAt(packageName.length()) == '.')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merges the refs of the given classes, less those declared by removed
+     * types, into one unit to pack, along with every type the refs name.
+     */
+    private Item itemOf(List<ClassEntry> entries, BitSet removedTypes) {
+        List<int[]> methodLists = new ArrayList<>(entries.size());
+        List<int[]> fieldLists = new ArrayList<>(entries.size());
+        for (ClassEntry entry : entries) {
+            methodLists.add(entry.methods);
+            fieldLists.add(entry.fields);
+        }
+
+        int[] methods = retain(merge(methodLists), methodTypes, removedTypes);
+        int[] fields = retain(merge(fieldLists), fieldTypes, removedTypes);
+
+        int typeCount = entries.size() + 2 * fields.length;
+        for (int method : methods) {
+            typeCount += 1 + methodProtoTypes[method].length;
+        }
+
+        int[] types = new int[typeCount];
+        int count = 0;
+        for (ClassEntry entry : entries) {
+            types[count++] = entry.typeId;
+        }
+        for (int method : methods) {
+            types[count++] = methodTypes[method];
+            for (int protoType : methodProtoTypes[method]) {
+                types[count++] = protoType;
+            }
+        }
+        for (int field : fields) {
+            types[count++] = fieldTypes[field];
+            types[count++] = fieldValueTypes[field];
+        }
+
+        return new Item(entries.size(), methods, fields, sortedDistinct(types));
+    }
+
+    private static int[] merge(List<int[]> lists) {
+        int size = 0;
+        for (int[] list : lists) {
+            size += list.length;
+        }
+
+        int[] result = new int[size];
+        int offset = 0;
+        for (int[] list : lists) {
+            System.arraycopy(list, 0, result, offset, list.length);
+            offset += list.length;
+        }
+        return sortedDistinct(result);
+    }
+
+    /**
+     * Returns the IDs whose declaring type hasn't been removed.
+     */
+    private static int[] retain(int[] ids, int[] declaringTypes, BitSet removedTypes) {
+        int count = 0;
+        int[] result = new int[ids.length];
+        for (int id : ids) {
+            if (!removedTypes.get(declaringTypes[id])) {
+                result[count++] = id;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int[] sortedDistinct(int[] values) {
+        Arrays.sort(values);
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (count == 0 || values[i] != values[count - 1]) {
+                values[count++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * One simulated dex file.
+     */
+    public static final class PackedDex {
+        private final String name;
+        private final int classCount;
+        private final int methodCount;
+        private final int fieldCount;
+        private final int typeCount;
+
+        PackedDex(String name, int classCount, int methodCount, int fieldCount, int typeCount) {
+            this.name = name;
+            this.classCount = classCount;
+            this.methodCount = methodCount;
+            this.fieldCount = fieldCount;
+            this.typeCount = typeCount;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getClassCount() {
+            return classCount;
+        }
+
+        public int getMethodCount() {
+            return methodCount;
+        }
+
+        public int getFieldCount() {
+            return fieldCount;
+        }
+
+        public int getTypeCount() {
+            return typeCount;
+        }
+    }
+
+    private static final class ClassEntry {
+        final int typeId;
+        final int[] methods;
+        final int[] fields;
+        final boolean isMainDex;
+
+        ClassEntry(int typeId, int[] methods, int[] fields, boolean isMainDex) {
+            this.typeId = typeId;
+            this.methods = methods;
+            this.fields = fields;
+            this.isMainDex = isMainDex;
+        }
+    }
+
+    /**
+     * A unit of packing - a package, or a class of a package too large to
+     * pack whole - with the sorted, distinct IDs of everything it needs.
+     */
+    private final class Item {
+        final int classCount;
+        final int[] methods;
+        final int[] fields;
+        final int[] types;
+
+        Item(int classCount, int[] methods, int[] fields, int[] types) {
+            this.classCount = classCount;
+            this.methods = methods;
+            this.fields = fields;
+            this.types = types;
+        }
+
+        boolean fitsEmptyBin() {
+            return methods.length <= maxRefs && fields.length <= maxRefs && types.length <= maxRefs;
+        }
+    }
+
+    /**
+     * A dex file being filled.
+     */
+    private final class Bin {
+        final BitSet methods = new BitSet();
+        final BitSet fields = new BitSet();
+        final BitSet types = new BitSet();
+        int classCount;
+        int methodCount;
+        int fieldCount;
+        int typeCount;
+
+        boolean fits(Item item) {
+            return fits(methods, methodCount, item.methods)
+                && fits(fields, fieldCount, item.fields)
+                && fits(types, typeCount, item.types);
+        }
+
+        private boolean fits(BitSet held, int heldCount, int[] ids) {
+            int count = heldCount;
+            for (int id : ids) {
+                if (!held.get(id) && ++count > maxRefs) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(Item item) {
+            classCount += item.classCount;
+            methodCount += addAll(methods, item.methods);
+            fieldCount += addAll(fields, item.fields);
+            typeCount += addAll(types, item.types);
+        }
+
+        private int addAll(BitSet held, int[] ids) {
+            int added = 0;
+            for (int id : ids) {
+                if (!held.get(id)) {
+                    held.set(id);
+                    added++;
+                }
+            }
+            return added;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount;
+
+import com.android.dexdeps.DexData;
+import com.google.auto.value.AutoValue;
+
+import java.util.List;
+
+/**
+ * The sizes of the ID tables of a single dex file, as recorded in its header.
+ *
+ * These are exact per-dex counts, and are available without parsing any of
+ * the tables themselves.  Note that a method or field referenced from more
+ * than one dex file is counted once per dex file here, whereas a
+ * {@link PackageTree} counts it only once.
+ */
+@AutoValue
+public abstract class DexSummary {
+    /**
+     * The number of entries an ID table can hold while every entry is still
+     * reachable through a 16-bit index.  For methods, fields, types and
+     * protos this is a hard limit; strings beyond it can only be loaded
+     * with the slower const-string/jumbo instruction.
+     */
+    public static final int MAX_DEX_REFS = 0xFFFF; // 65535
+
+    public abstract String getName();
+    public abstract int getStringCount();
+    public abstract int getTypeCount();
+    public abstract int getProtoCount();
+    public abstract int getFieldCount();
+    public abstract int getMethodCount();
+    public abstract int getClassCount();
+
+    public static DexSummary create(
+            String name,
+            int stringCount,
+            int typeCount,
+            int protoCount,
+            int fieldCount,
+            int methodCount,
+            int classCount) {
+        return new AutoValue_DexSummary(name, stringCount, typeCount, protoCount, fieldCount, methodCount, classCount);
+    }
+
+    /**
+     * Creates a summary from a {@link DexData} whose header, at least, has
+     * been loaded.
+     */
+    public static DexSummary fromDexData(String name, DexData data) {
+        return create(
+            name,
+            data.getStringIdCount(),
+            data.getTypeIdCount(),
+            data.getProtoIdCount(),
+            data.getFieldIdCount(),
+            data.getMethodIdCount(),
+            data.getClassDefCount());
+    }
+
+    /**
+     * Returns how many more entries an ID table of the given size can take.
+     */
+    public static int remaining(int count) {
+        return Math.max(MAX_DEX_REFS - count, 0);
+    }
+
+    /**
+     * True for the primary dex file of an APK or of a bundle's base module,
+     * which is the one that has to hold everything needed at startup on
+     * devices without native multidex support.
+     */
+    public boolean isMainDex() {
+        return "classes.dex".equals(getName()) || "base/dex/classes.dex".equals(getName());
+    }
+
+    /**
+     * Returns a copy of this summary under a different name.
+     */
+    public DexSummary withName(String name) {
+        return create(name, getStringCount(), getTypeCount(), getProtoCount(), getFieldCount(), getMethodCount(), getClassCount());
+    }
+
+    public static int totalMethodCount(List<DexSummary> summaries) {
+        return summaries.stream().mapToInt(DexSummary::getMethodCount).sum();
+    }
+
+    public static int totalFieldCount(List<DexSummary> summaries) {
+        return summaries.stream().mapToInt(DexSummary::getFieldCount).sum();
+    }
+
+    public static int totalClassCount(List<DexSummary> summaries) {
+        return summaries.stream().mapToInt(DexSummary::getClassCount).sum();
+    }
+
+    public static com.getkeepsafe.dexcount.thrift.DexSummary toThrift(DexSummary summary) {
+        return new com.getkeepsafe.dexcount.thrift.DexSummary.Builder()
+            .name(summary.getName())
+            .stringCount(summary.getStringCount())
+            .typeCount(summary.getTypeCount())
+            .protoCount(summary.getProtoCount())
+            .fieldCount(summary.getFieldCount())
+            .methodCount(summary.getMethodCount())
+            .classCount(summary.getClassCount())
+            .build();
+    }
+
+    public static DexSummary fromThrift(com.getkeepsafe.dexcount.thrift.DexSummary summary) {
+        return create(
+            summary.name != null ? summary.name : "",
+            orZero(summary.stringCount),
+            orZero(summary.typeCount),
+            orZero(summary.protoCount),
+            orZero(summary.fieldCount),
+            orZero(summary.methodCount),
+            orZero(summary.classCount));
+    }
+
+    private static int orZero(Integer value) {
+        return value != null ? value : 0;
+    }
+}
@@ -28,6 +28,8 @@ import java.io.Writer;
 import java.nio.CharBuffer;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -77,6 +79,42 @@ public class PackageTree {
         }
     }
 
+    private static class ByteCounts {
+        long code;
+        long strings;
+        long annotations;
+        long debugInfo;
+
+        void add(ByteCounts other) {
+            code += other.code;
+            strings += other.strings;
+            annotations += other.annotations;
+            debugInfo += other.debugInfo;
+        }
+
+        long total() {
+            return code + strings + annotations + debugInfo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            ByteCounts that = (ByteCounts) o;
+            return code == that.code && strings == that.strings
+                && annotations == that.annotations && debugInfo == that.debugInfo;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(code, strings, annotations, debugInfo);
+        }
+    }
+
     private final String name;
     private final boolean isClass;
     private final Deobfuscator deobfuscator;
@@ -84,8 +122,45 @@ public class PackageTree {
     private final Totals declared = new Totals(Type.DECLARED);
     private final Totals referenced = new Totals(Type.REFERENCED);
 
+    /*
+     * Dex bytes charged to this node itself - i.e. to a class - and, once
+     * asked for, the sum over this node and its children.
+     */
+    private final ByteCounts bytes = new ByteCounts();
+    private ByteCounts byteTotals;
+
     private final SortedMap<String, PackageTree> children = new TreeMap<>();
 
+    /*
+     * True for a class that the input defines itself, or that the VM
+     * provides (arrays); refs to members of any other class are external.
+     */
+    private boolean isInternalType;
+
+    /**
+     * Descriptors of internal types reported by the input but not yet
+     * marked on their nodes.  Only used at the root; a type may be reported
+     * before any ref to it has been added, so marking waits until the
+     * counts are asked for.
+     */
+    private Set<String> pendingInternalTypes;
+
+    /**
+     * Methods that some invoke instruction of the input calls, and the
+     * name and descriptor of each, which is all a virtual call has to
+     * match once dispatch is taken into account.  Only used at the root.
+     */
+    private Set<MethodRef> invokedMethods;
+    private Set<String> invokedSignatures;
+
+    /**
+     * Declaring-class descriptors already seen by this tree, mapped to their
+     * dotted, deobfuscated form.  Only used at the root, where refs are
+     * added; every ref of a class then shares one name string instead of
+     * recomputing it.
+     */
+    private Map<String, String> classNames;
+
     public PackageTree() {
         this("", false, null);
     }
@@ -144,6 +219,74 @@ public class PackageTree {
         return getFieldCount(Type.DECLARED);
     }
 
+    /**
+     * Returns the number of referenced methods declared by types that the
+     * input neither defines nor gets from the VM, i.e. platform methods.
+     */
+    public int getExternalMethodCount() {
+        markInternalTypes();
+        return getExternalCount(true);
+    }
+
+    /**
+     * Returns the number of referenced fields declared by types that the
+     * input neither defines nor gets from the VM, i.e. platform fields.
+     */
+    public int getExternalFieldCount() {
+        markInternalTypes();
+        return getExternalCount(false);
+    }
+
+    private int getExternalCount(boolean isMethod) {
+        int result = 0;
+        if (!isInternalType) {
+            result = isMethod ? referenced.methods.size() : referenced.fields.size();
+        }
+        for (PackageTree child : children.values()) {
+            result += child.getExternalCount(isMethod);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of dex bytes taken up by this package or class,
+     * i.e. the sum of the code, string, annotation and debug info bytes.
+     */
+    public long getByteCount() {
+        return getByteTotals().total();
+    }
+
+    public long getCodeByteCount() {
+        return getByteTotals().code;
+    }
+
+    public long getStringByteCount() {
+        return getByteTotals().strings;
+    }
+
+    public long getAnnotationByteCount() {
+        return getByteTotals().annotations;
+    }
+
+    public long getDebugInfoByteCount() {
+        return getByteTotals().debugInfo;
+    }
+
+    private ByteCounts getByteTotals() {
+        if (byteTotals != null) {
+            return byteTotals;
+        }
+
+        ByteCounts result = new ByteCounts();
+        result.add(bytes);
+        for (PackageTree child : children.values()) {
+            result.add(child.getByteTotals());
+        }
+        byteTotals = result;
+
+        return result;
+    }
+
     private Totals getTotalsForType(Type type) {
         switch (type) {
             case DECLARED:
@@ -223,6 +366,129 @@ public class PackageTree {
         addInternal(descriptorToDot(ref), 0, false, Type.DECLARED, ref);
     }
 
+    /**
+     * Charges the given dex bytes to the class with the given descriptor.
+     */
+    public void addClassSize(String descriptor, int codeBytes, int stringBytes, int annotationBytes, int debugInfoBytes) {
+        ByteCounts counts = new ByteCounts();
+        counts.code = codeBytes;
+        counts.strings = stringBytes;
+        counts.annotations = annotationBytes;
+        counts.debugInfo = debugInfoBytes;
+
+        addBytesInternal(descriptorToDot(descriptor), 0, counts);
+    }
+
+    /**
+     * Records that at least one invoke instruction of the input calls the
+     * given method, or that a method handle to it is loaded.
+     */
+    public void addInvokedMethodRef(MethodRef ref) {
+        if (invokedMethods == null) {
+            invokedMethods = new HashSet<>();
+            invokedSignatures = new HashSet<>();
+        }
+        if (invokedMethods.add(ref)) {
+            invokedSignatures.add(signatureOf(ref));
+        }
+    }
+
+    /**
+     * Returns true if the given declared method may be called by one of
+     * the invokes recorded with {@link #addInvokedMethodRef(MethodRef)}.
+     *
+     * Static initializers are run by the VM, and constructors must be
+     * called by exactly their own ref.  Any other method also counts as
+     * invoked when some invoke names a method with the same name and
+     * descriptor, since a virtual call through a subclass or supertype
+     * ref can reach it.  A method loaded as a method handle counts as
+     * invoked, but the bootstrap methods of invoke-custom call sites don't.
+     * Calls from outside the input - framework callbacks, reflection - are
+     * not seen.
+     */
+    private boolean isInvoked(MethodRef ref) {
+        String methodName = ref.getName();
+        if ("<clinit>".equals(methodName)) {
+            return true;
+        }
+        if (invokedMethods == null) {
+            return false;
+        }
+        if (invokedMethods.contains(ref)) {
+            return true;
+        }
+        return !"<init>".equals(methodName) && invokedSignatures.contains(signatureOf(ref));
+    }
+
+    private static String signatureOf(MethodRef ref) {
+        return ref.getName() + ref.getDescriptor();
+    }
+
+    /**
+     * Records that the type with the given descriptor is internal to the
+     * input, i.e. defined by it or provided by the VM.  Refs to members of
+     * types never recorded here are counted as external.
+     */
+    public void addInternalType(String descriptor) {
+        if (pendingInternalTypes == null) {
+            pendingInternalTypes = new HashSet<>();
+        }
+        pendingInternalTypes.add(descriptor);
+    }
+
+    private void markInternalTypes() {
+        if (pendingInternalTypes == null) {
+            return;
+        }
+
+        for (String descriptor : pendingInternalTypes) {
+            // Types nothing refers to have no node, and nothing to count.
+            PackageTree node = findNode(descriptorToDot(descriptor));
+            if (node != null) {
+                node.isInternalType = true;
+            }
+        }
+        pendingInternalTypes = null;
+    }
+
+    private PackageTree findNode(String name) {
+        PackageTree node = this;
+        int startIndex = 0;
+        while (node != null) {
+            int ix = name.indexOf('.', startIndex);
+            if (ix == -1) {
+                return node.children.get(name.substring(startIndex));
+            }
+            node = node.children.get(name.substring(startIndex, ix));
+            startIndex = ix + 1;
+        }
+        return null;
+    }
+
+    private void addBytesInternal(String name, int startIndex, ByteCounts counts) {
+        int ix = name.indexOf('.', startIndex);
+        String segment;
+        if (ix == -1) {
+            segment = name.substring(startIndex);
+        } else {
+            segment = name.substring(startIndex, ix);
+        }
+
+        PackageTree child = children.get(segment);
+        if (child == null) {
+            child = new PackageTree(segment, deobfuscator);
+            children.put(segment, child);
+        }
+
+        byteTotals = null;
+        if (ix == -1) {
+            child.bytes.add(counts);
+            child.byteTotals = null;
+        } else {
+            child.addBytesInternal(name, ix + 1, counts);
+        }
+    }
+
     private void addInternal(String name, int startIndex, boolean isMethod, Type type, HasDeclaringClass ref) {
         int ix = name.indexOf('.', startIndex);
         String segment;
@@ -314,6 +580,10 @@ public class PackageTree {
             if (opts.getIncludeFieldCount()) {
                 out.append(String.format("%-8s ", "fields"));
             }
+
+            if (opts.getIncludeByteCount()) {
+                out.append(String.format("%-10s ", "bytes"));
+            }
         }
 
         if (opts.getPrintDeclarations()) {
@@ -352,6 +622,10 @@ public class PackageTree {
             if (opts.getIncludeFieldCount()) {
                 out.append(String.format("%-8d ", getFieldCount()));
             }
+
+            if (opts.getIncludeByteCount()) {
+                out.append(String.format("%-10d ", getByteCount()));
+            }
         }
 
         if (opts.getPrintDeclarations()) {
@@ -390,7 +664,7 @@ public class PackageTree {
         }
         out.append(getName());
 
-        if (opts.getIncludeFieldCount() || opts.getIncludeMethodCount() || opts.getIncludeClassCount()) {
+        if (opts.getIncludeFieldCount() || opts.getIncludeMethodCount() || opts.getIncludeClassCount() || opts.getIncludeByteCount()) {
             out.append(" (");
 
             boolean appended = false;
@@ -421,6 +695,16 @@ public class PackageTree {
                         .append(pluralizedFields(getFieldCount()));
                     appended = true;
                 }
+
+                if (opts.getIncludeByteCount()) {
+                    if (appended) {
+                        out.append(", ");
+                    }
+                    out.append(String.valueOf(getByteCount()))
+                        .append(" ")
+                        .append(pluralizedBytes(getByteCount()));
+                    appended = true;
+                }
             }
 
             if (opts.getPrintDeclarations()) {
@@ -444,6 +728,131 @@ public class PackageTree {
         }
     }
 
+    /**
+     * Prints, as CSV, how many of the methods and fields referenced from
+     * each package belong to types internal to the input, and how many to
+     * external (platform) types.  Packages are listed as in
+     * {@link #printPackageList(Appendable, PrintOptions)}.
+     */
+    public void printExternalReferences(Appendable out, PrintOptions opts) throws IOException {
+        markInternalTypes();
+
+        out.append("package,internalMethods,externalMethods,internalFields,externalFields\n");
+
+        StringBuilder sb = new StringBuilder(64);
+        for (PackageTree child : getChildren(opts)) {
+            child.printExternalReferencesRecursively(out, sb, 0, opts);
+        }
+    }
+
+    private void printExternalReferencesRecursively(Appendable out, StringBuilder sb, int depth, PrintOptions opts) throws IOException {
+        if (depth >= opts.getMaxTreeDepth()) {
+            return;
+        }
+
+        int len = sb.length();
+        if (len > 0) {
+            sb.append('.');
+        }
+        sb.append(getName());
+
+        int externalMethods = getExternalCount(true);
+        int externalFields = getExternalCount(false);
+        out.append(String.format("%s,%d,%d,%d,%d\n",
+            sb,
+            getMethodCount() - externalMethods, externalMethods,
+            getFieldCount() - externalFields, externalFields));
+
+        for (PackageTree child : getChildren(opts)) {
+            child.printExternalReferencesRecursively(out, sb, depth + 1, opts);
+        }
+
+        sb.setLength(len);
+    }
+
+    /**
+     * Prints, for each package and class, how many of the methods it
+     * declares no invoke instruction of the input calls, and lists those
+     * methods under their class.  These are candidates for removal by a
+     * shrinker, not proof that a method is unused; see
+     * {@link #isInvoked(MethodRef)}.  Packages and classes without any
+     * such methods are left out.
+     */
+    public void printUninvokedMethods(Appendable out, PrintOptions opts) throws IOException {
+        out.append(String.format("%-10s %-10s package/class name\n", "uninvoked", "declared"));
+
+        StringBuilder sb = new StringBuilder(64);
+        for (PackageTree child : getChildren(opts)) {
+            child.printUninvokedMethodsRecursively(out, sb, 0, opts, this);
+        }
+    }
+
+    private void printUninvokedMethodsRecursively(
+            Appendable out,
+            StringBuilder sb,
+            int depth,
+            PrintOptions opts,
+            PackageTree root) throws IOException {
+        if (depth >= opts.getMaxTreeDepth()) {
+            return;
+        }
+
+        int uninvoked = getUninvokedMethodCount(root);
+        if (uninvoked == 0) {
+            return;
+        }
+
+        int len = sb.length();
+        if (len > 0) {
+            sb.append('.');
+        }
+        sb.append(getName());
+
+        out.append(String.format("%-10d %-10d ", uninvoked, getMethodCountDeclared()));
+        out.append(sb.toString()).append("\n");
+
+        for (MethodRef ref : declared.methods) {
+            if (!root.isInvoked(ref)) {
+                out.append(String.format("%-21s   ", "")).append(formatMethod(ref)).append("\n");
+            }
+        }
+
+        for (PackageTree child : getChildren(opts)) {
+            child.printUninvokedMethodsRecursively(out, sb, depth + 1, opts, root);
+        }
+
+        sb.setLength(len);
+    }
+
+    private int getUninvokedMethodCount(PackageTree root) {
+        int result = 0;
+        for (MethodRef ref : declared.methods) {
+            if (!root.isInvoked(ref)) {
+                result++;
+            }
+        }
+        for (PackageTree child : children.values()) {
+            result += child.getUninvokedMethodCount(root);
+        }
+        return result;
+    }
+
+    private static String formatMethod(MethodRef ref) {
+        String[] argumentTypes = ref.getArgumentTypeNames();
+        StringBuilder sb = new StringBuilder();
+        sb.append(Output.descriptorToDot(ref.getReturnTypeName()))
+            .append(' ')
+            .append(ref.getName())
+            .append('(');
+        for (int i = 0; i < argumentTypes.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(Output.descriptorToDot(argumentTypes[i]));
+        }
+        return sb.append(')').toString();
+    }
+
     public void printJson(Appendable out, PrintOptions opts) throws IOException {
         JsonWriter json = new JsonWriter(new Writer() {
             @Override
@@ -488,6 +897,10 @@ public class PackageTree {
             if (opts.getIncludeFieldCount()) {
                 json.name("fields").value(getFieldCount());
             }
+
+            if (opts.getIncludeByteCount()) {
+                json.name("bytes").value(getByteCount());
+            }
         }
 
         if (opts.getPrintDeclarations()) {
@@ -520,6 +933,10 @@ public class PackageTree {
             if (opts.getIncludeFieldCount()) {
                 out.append("fields: ").append(String.valueOf(getFieldCount())).append("\n");
             }
+
+            if (opts.getIncludeByteCount()) {
+                out.append("bytes: ").append(String.valueOf(getByteCount())).append("\n");
+            }
         }
 
         if (opts.getPrintDeclarations()) {
@@ -561,6 +978,10 @@ public class PackageTree {
             if (opts.getIncludeFieldCount()) {
                 out.append(indent).append("fields: ").append(String.valueOf(getFieldCount())).append("\n");
             }
+
+            if (opts.getIncludeByteCount()) {
+                out.append(indent).append("bytes: ").append(String.valueOf(getByteCount())).append("\n");
+            }
         }
 
         if (opts.getPrintDeclarations()) {
@@ -624,8 +1045,26 @@ public class PackageTree {
         }
     }
 
+    private String pluralizedBytes(long n) {
+        if (n == 1) {
+            return "byte";
+        } else {
+            return "bytes";
+        }
+    }
+
     private String descriptorToDot(HasDeclaringClass ref) {
-        String descriptor = ref.getDeclClassName();
+        return descriptorToDot(ref.getDeclClassName());
+    }
+
+    private String descriptorToDot(String descriptor) {
+        if (classNames == null) {
+            classNames = new HashMap<>();
+        }
+        return classNames.computeIfAbsent(descriptor, this::classNameFromDescriptor);
+    }
+
+    private String classNameFromDescriptor(String descriptor) {
         String dot = Output.descriptorToDot(descriptor);
         String deobfuscated = deobfuscator.deobfuscate(dot);
         if (deobfuscated.indexOf('.') == -1) {
@@ -647,9 +1086,11 @@ public class PackageTree {
         PackageTree that = (PackageTree) o;
 
         if (isClass != that.isClass) return false;
+        if (isInternalType != that.isInternalType) return false;
         if (!name.equals(that.name)) return false;
         if (!children.equals(that.children)) return false;
         if (!declared.equals(that.declared)) return false;
+        if (!bytes.equals(that.bytes)) return false;
         return referenced.equals(that.referenced);
     }
 
@@ -657,9 +1098,11 @@ public class PackageTree {
     public int hashCode() {
         int result = name.hashCode();
         result = 31 * result + (isClass ? 1 : 0);
+        result = 31 * result + (isInternalType ? 1 : 0);
         result = 31 * result + children.hashCode();
         result = 31 * result + declared.hashCode();
         result = 31 * result + referenced.hashCode();
+        result = 31 * result + bytes.hashCode();
         return result;
     }
 
@@ -709,6 +1152,8 @@ public class PackageTree {
     }
 
     public static com.getkeepsafe.dexcount.thrift.PackageTree toThrift(PackageTree tree) {
+        tree.markInternalTypes();
+
         Map<String, com.getkeepsafe.dexcount.thrift.PackageTree> children = new LinkedHashMap<>();
         for (Entry<String, PackageTree> entry : tree.children.entrySet()) {
             children.put(entry.getKey(), toThrift(entry.getValue()));
@@ -726,11 +1171,16 @@ public class PackageTree {
         return new com.getkeepsafe.dexcount.thrift.PackageTree.Builder()
             .name(tree.getName())
             .isClass(tree.isClass())
+            .isInternalType(tree.isInternalType)
             .children(children)
             .declaredMethods(thriftMethodDecls)
             .referencedMethods(thriftMethodRefs)
             .declaredFields(thriftFieldDecls)
             .referencedFields(thriftFieldRefs)
+            .codeBytes(tree.bytes.code)
+            .stringBytes(tree.bytes.strings)
+            .annotationBytes(tree.bytes.annotations)
+            .debugInfoBytes(tree.bytes.debugInfo)
             .build();
     }
 
@@ -739,6 +1189,7 @@ public class PackageTree {
         boolean isClass = tree.isClass != null ? tree.isClass : false;
 
         PackageTree result = new PackageTree(name, isClass, Deobfuscator.EMPTY);
+        result.isInternalType = Boolean.TRUE.equals(tree.isInternalType);
 
         if (tree.children != null) {
             for (String key : tree.children.keySet()) {
@@ -770,6 +1221,11 @@ public class PackageTree {
             }
         }
 
+        result.bytes.code = tree.codeBytes != null ? tree.codeBytes : 0;
+        result.bytes.strings = tree.stringBytes != null ? tree.stringBytes : 0;
+        result.bytes.annotations = tree.annotationBytes != null ? tree.annotationBytes : 0;
+        result.bytes.debugInfo = tree.debugInfoBytes != null ? tree.debugInfoBytes : 0;
+
         return result;
     }
 }
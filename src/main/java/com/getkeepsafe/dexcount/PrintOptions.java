@@ -19,6 +19,7 @@ import com.google.auto.value.AutoValue;
 
 import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.util.List;
 
 @AutoValue
 public abstract class PrintOptions implements Serializable {
@@ -28,6 +29,7 @@ public abstract class PrintOptions implements Serializable {
     public abstract boolean getIncludeClassCount();
     public abstract boolean getIncludeMethodCount();
     public abstract boolean getIncludeFieldCount();
+    public abstract boolean getIncludeByteCount();
     public abstract boolean getIncludeTotalMethodCount();
     public abstract boolean getTeamCityIntegration();
     @Nullable
@@ -37,6 +39,11 @@ public abstract class PrintOptions implements Serializable {
     public abstract int getMaxTreeDepth();
     public abstract int getMaxMethodCount();
     public abstract boolean getPrintDeclarations();
+    public abstract boolean getSummaryOnly();
+    public abstract boolean getSimulateDexPacking();
+    public abstract int getSimulatedMinSdk();
+    public abstract List<String> getSimulatedRemovedPackages();
+    public abstract AarCountingEngine getAarCountingEngine();
     public abstract boolean isAndroidProject();
     public abstract boolean isVerbose();
     public abstract OutputFormat getOutputFormat();
@@ -60,6 +67,7 @@ public abstract class PrintOptions implements Serializable {
         public abstract Builder setIncludeClassCount(boolean includeClassCount);
         public abstract Builder setIncludeMethodCount(boolean includeMethodCount);
         public abstract Builder setIncludeFieldCount(boolean includeFieldCount);
+        public abstract Builder setIncludeByteCount(boolean includeByteCount);
         public abstract Builder setIncludeTotalMethodCount(boolean includeTotalMethodCount);
         public abstract Builder setTeamCityIntegration(boolean teamCityIntegration);
         public abstract Builder setTeamCitySlug(@Nullable String teamCitySlug);
@@ -68,6 +76,11 @@ public abstract class PrintOptions implements Serializable {
         public abstract Builder setMaxTreeDepth(int maxTreeDepth);
         public abstract Builder setMaxMethodCount(int maxMethodCount);
         public abstract Builder setPrintDeclarations(boolean printDeclarations);
+        public abstract Builder setSummaryOnly(boolean summaryOnly);
+        public abstract Builder setSimulateDexPacking(boolean simulateDexPacking);
+        public abstract Builder setSimulatedMinSdk(int simulatedMinSdk);
+        public abstract Builder setSimulatedRemovedPackages(List<String> simulatedRemovedPackages);
+        public abstract Builder setAarCountingEngine(AarCountingEngine aarCountingEngine);
         public abstract Builder setAndroidProject(boolean androidProject);
         public abstract Builder setVerbose(boolean verbose);
         public abstract Builder setOutputFormat(OutputFormat outputFormat);
@@ -81,6 +94,7 @@ public abstract class PrintOptions implements Serializable {
             .setIncludeClassCount(false)
             .setIncludeMethodCount(true)
             .setIncludeFieldCount(false)
+            .setIncludeByteCount(false)
             .setIncludeTotalMethodCount(false)
             .setTeamCityIntegration(false)
             .setTeamCitySlug(null)
@@ -89,6 +103,11 @@ public abstract class PrintOptions implements Serializable {
             .setMaxTreeDepth(Integer.MAX_VALUE)
             .setMaxMethodCount(-1)
             .setPrintDeclarations(false)
+            .setSummaryOnly(false)
+            .setSimulateDexPacking(false)
+            .setSimulatedMinSdk(-1)
+            .setSimulatedRemovedPackages(List.of())
+            .setAarCountingEngine(AarCountingEngine.D8)
             .setAndroidProject(true)
             .setVerbose(false)
             .setOutputFormat(OutputFormat.LIST);
@@ -100,11 +119,17 @@ public abstract class PrintOptions implements Serializable {
             .setIncludeClassCount(ext.getIncludeClassCount().get())
             .setIncludeMethodCount(true)
             .setIncludeFieldCount(ext.getIncludeFieldCount().get())
+            .setIncludeByteCount(ext.getIncludeByteCount().get())
             .setIncludeTotalMethodCount(ext.getIncludeTotalMethodCount().get())
             .setTeamCityIntegration(ext.getTeamCityIntegration().get())
             .setTeamCitySlug(ext.getTeamCitySlug().getOrNull())
             .setPrintHeader(ext.getPrintVersion().get())
             .setPrintDeclarations(ext.getPrintDeclarations().get())
+            .setSummaryOnly(ext.getSummaryOnly().get())
+            .setSimulateDexPacking(ext.getSimulateDexPacking().get())
+            .setSimulatedMinSdk(ext.getSimulatedMinSdk().get())
+            .setSimulatedRemovedPackages(List.copyOf(ext.getSimulatedRemovedPackages().get()))
+            .setAarCountingEngine(ext.getAarCountingEngine().get())
             .setMaxTreeDepth(ext.getMaxTreeDepth().get())
             .setMaxMethodCount(ext.getMaxMethodCount().get())
             .setOrderByMethodCount(ext.getOrderByMethodCount().get())
@@ -37,6 +37,8 @@ import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFile;
 import org.gradle.api.provider.Provider;
 
+import java.io.File;
+
 class SevenOhApplicator extends AbstractTaskApplicator {
     static class Factory implements TaskApplicator.Factory {
         @Override
@@ -91,10 +93,6 @@ class SevenOhApplicator extends AbstractTaskApplicator {
     }
 
     private void registerApkTask(String variantName, Artifacts artifacts) {
-        if (getExt().getPrintDeclarations().get()) {
-            throw new IllegalStateException("Cannot compute declarations for project " + getProject());
-        }
-
         String genTaskName = String.format("generate%sPackageTree", StringUtils.capitalize(variantName));
 
         var gen = getTasks().register(genTaskName, ApkPackageTreeTask.class, t -> {
@@ -108,10 +106,6 @@ class SevenOhApplicator extends AbstractTaskApplicator {
     }
 
     private void registerAabTask(String variantName, Artifacts artifacts) {
-        if (getExt().getPrintDeclarations().get()) {
-            throw new IllegalStateException("Cannot compute declarations for project " + getProject());
-        }
-
         String genTaskName = String.format("generate%sBundlePackageTree", StringUtils.capitalize(variantName));
 
         var gen = getTasks().register(genTaskName, BundlePackageTreeTask.class, t -> {
@@ -130,6 +124,8 @@ class SevenOhApplicator extends AbstractTaskApplicator {
             setCommonProperties(t, artifacts, variantName);
 
             t.getAarFile().set(artifacts.get(SingleArtifact.AAR.INSTANCE));
+            t.getAarDexCacheDirectoryProperty().set(
+                new File(getProject().getGradle().getGradleUserHomeDir(), "caches/dexcount/aar-dex-cache"));
         });
 
         registerOutputTask(gen, variantName, true);
@@ -139,6 +135,7 @@ class SevenOhApplicator extends AbstractTaskApplicator {
         DirectoryProperty buildDirectory = getProject().getLayout().getBuildDirectory();
         Provider<RegularFile> packageTreeFile = buildDirectory.file("intermediates/dexcount/" + variantName + "/tree.compact.gz");
         Provider<Directory> outputDirectory = buildDirectory.dir("outputs/dexcount/" + variantName);
+        Provider<Directory> dexCacheDirectory = buildDirectory.dir("intermediates/dexcount/" + variantName + "/" + task.getName() + "-dex-cache");
 
         task.setDescription("Generate dex method counts");
         task.setGroup("Reporting");
@@ -149,6 +146,7 @@ class SevenOhApplicator extends AbstractTaskApplicator {
         task.getMappingFileProperty().set(artifacts.get(SingleArtifact.OBFUSCATION_MAPPING_FILE.INSTANCE));
         task.getPackageTreeFileProperty().set(packageTreeFile);
         task.getOutputDirectoryProperty().set(outputDirectory);
+        task.getDexCacheDirectoryProperty().set(dexCacheDirectory);
         task.getWorkerClasspath().from(getWorkerConfiguration());
     }
 }
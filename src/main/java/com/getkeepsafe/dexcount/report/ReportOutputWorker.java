@@ -16,6 +16,7 @@
 package com.getkeepsafe.dexcount.report;
 
 import com.getkeepsafe.dexcount.CountReporter;
+import com.getkeepsafe.dexcount.DexSummary;
 import com.getkeepsafe.dexcount.PackageTree;
 import com.getkeepsafe.dexcount.thrift.TreeGenOutput;
 import com.microsoft.thrifty.KtApiKt;
@@ -31,6 +32,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public abstract class ReportOutputWorker implements WorkAction<ReportOutputWorkerParams> {
     private static final Logger LOGGER = LoggerFactory.getLogger(ReportOutputWorker.class);
@@ -58,8 +62,15 @@ public abstract class ReportOutputWorker implements WorkAction<ReportOutputWorke
         }
 
         PackageTree tree = PackageTree.fromThrift(treeGen.tree);
+
+        List<DexSummary> dexSummaries = Collections.emptyList();
+        if (treeGen.dexSummaries != null) {
+            dexSummaries = treeGen.dexSummaries.stream().map(DexSummary::fromThrift).collect(Collectors.toList());
+        }
+
         CountReporter reporter = new CountReporter(
             tree,
+            dexSummaries,
             getParameters().getVariantName().get(),
             LOGGER,
             getParameters().getPrintOptions().get(),
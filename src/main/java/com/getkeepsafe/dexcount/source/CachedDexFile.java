@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount.source;
+
+import com.android.dexdeps.FieldRef;
+import com.android.dexdeps.MethodRef;
+import com.getkeepsafe.dexcount.DexSummary;
+import com.getkeepsafe.dexcount.thrift.CachedDex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * The refs of a dex file, as recorded by a {@link DexCache}.
+ *
+ * Rather than holding on to ref objects, this keeps a table of the distinct
+ * descriptors and names, and packs each ref into a run of indices into that
+ * table; refs are rebuilt each time they are asked for.
+ */
+final class CachedDexFile implements SourceFile {
+    private static final int FIELD_RECORD_SIZE = 3;
+    private static final int CLASS_SIZE_RECORD_SIZE = 5;
+
+    private final String[] strings;
+    private final int[] methods;
+    private final int[] fields;
+    private final int[] declaredMethods;
+    private final int[] declaredFields;
+    private final int[] invokedMethods;
+    private final int[] classSizes;
+    private final int[] classRefs;
+    private final int[] internalTypes;
+    private final int[] stringIds;
+    private final int[] typeIds;
+    private final int[] protoIds;
+    private final boolean hasDeclarations;
+    private final boolean hasClassSizes;
+    private final boolean hasClassRefs;
+    private final boolean hasIds;
+    private final DexSummary summary;
+
+    private CachedDexFile(
+            String[] strings,
+            int[] methods,
+            int[] fields,
+            int[] declaredMethods,
+            int[] declaredFields,
+            int[] invokedMethods,
+            int[] classSizes,
+            int[] classRefs,
+            int[] internalTypes,
+            int[] stringIds,
+            int[] typeIds,
+            int[] protoIds,
+            boolean hasDeclarations,
+            boolean hasClassSizes,
+            boolean hasClassRefs,
+            boolean hasIds,
+            DexSummary summary) {
+        this.strings = strings;
+        this.methods = methods;
+        this.fields = fields;
+        this.declaredMethods = declaredMethods;
+        this.declaredFields = declaredFields;
+        this.invokedMethods = invokedMethods;
+        this.classSizes = classSizes;
+        this.classRefs = classRefs;
+        this.internalTypes = internalTypes;
+        this.stringIds = stringIds;
+        this.typeIds = typeIds;
+        this.protoIds = protoIds;
+        this.hasDeclarations = hasDeclarations;
+        this.hasClassSizes = hasClassSizes;
+        this.hasClassRefs = hasClassRefs;
+        this.hasIds = hasIds;
+        this.summary = summary;
+    }
+
+    /**
+     * Records everything the given source reports, along with its
+     * declarations, class sizes, class refs and ID tables if asked to.
+     */
+    static CachedDexFile record(
+            SourceFile source,
+            boolean includeDeclarations,
+            boolean includeClassSizes,
+            boolean includeClassRefs,
+            boolean includeIds) {
+        Recorder recorder = new Recorder();
+        source.forEachRef(
+            ref -> recorder.addMethod(recorder.methods, ref),
+            ref -> recorder.addField(recorder.fields, ref));
+        if (includeDeclarations) {
+            source.forEachDeclaredRef(
+                ref -> recorder.addMethod(recorder.declaredMethods, ref),
+                ref -> recorder.addField(recorder.declaredFields, ref));
+            source.forEachInvokedRef(ref -> recorder.addMethod(recorder.invokedMethods, ref));
+        }
+        if (includeClassSizes) {
+            source.forEachClassSize((descriptor, codeBytes, stringBytes, annotationBytes, debugInfoBytes) -> {
+                recorder.classSizes.add(recorder.indexOf(descriptor));
+                recorder.classSizes.add(codeBytes);
+                recorder.classSizes.add(stringBytes);
+                recorder.classSizes.add(annotationBytes);
+                recorder.classSizes.add(debugInfoBytes);
+            });
+        }
+        if (includeClassRefs) {
+            source.forEachClassRefs((descriptor, methodIndices, fieldIndices) -> {
+                recorder.classRefs.add(recorder.indexOf(descriptor));
+                recorder.classRefs.add(methodIndices.length);
+                recorder.classRefs.add(fieldIndices.length);
+                for (int index : methodIndices) {
+                    recorder.classRefs.add(index);
+                }
+                for (int index : fieldIndices) {
+                    recorder.classRefs.add(index);
+                }
+            });
+        }
+        if (includeIds) {
+            source.forEachId(
+                string -> recorder.stringIds.add(recorder.indexOf(string)),
+                type -> recorder.typeIds.add(recorder.indexOf(type)),
+                proto -> recorder.protoIds.add(recorder.indexOf(proto)));
+        }
+        source.forEachInternalType(descriptor -> recorder.internalTypes.add(recorder.indexOf(descriptor)));
+
+        return new CachedDexFile(
+            recorder.strings.keySet().toArray(new String[0]),
+            toArray(recorder.methods),
+            toArray(recorder.fields),
+            toArray(recorder.declaredMethods),
+            toArray(recorder.declaredFields),
+            toArray(recorder.invokedMethods),
+            toArray(recorder.classSizes),
+            toArray(recorder.classRefs),
+            toArray(recorder.internalTypes),
+            toArray(recorder.stringIds),
+            toArray(recorder.typeIds),
+            toArray(recorder.protoIds),
+            includeDeclarations,
+            includeClassSizes,
+            includeClassRefs,
+            includeIds,
+            source.getSummary());
+    }
+
+    /**
+     * Reads a cached dex file back in, under the given name.
+     *
+     * @throws IllegalArgumentException if the records don't fit the string
+     *                                  table, i.e. the cache file is corrupt
+     */
+    static CachedDexFile fromThrift(CachedDex thrift, String name) {
+        CachedDexFile result = new CachedDexFile(
+            orEmpty(thrift.strings).toArray(new String[0]),
+            toArray(orEmpty(thrift.methods)),
+            toArray(orEmpty(thrift.fields)),
+            toArray(orEmpty(thrift.declaredMethods)),
+            toArray(orEmpty(thrift.declaredFields)),
+            toArray(orEmpty(thrift.invokedMethods)),
+            toArray(orEmpty(thrift.classSizes)),
+            toArray(orEmpty(thrift.classRefs)),
+            toArray(orEmpty(thrift.internalTypes)),
+            toArray(orEmpty(thrift.stringIds)),
+            toArray(orEmpty(thrift.typeIds)),
+            toArray(orEmpty(thrift.protoIds)),
+            Boolean.TRUE.equals(thrift.hasDeclarations),
+            Boolean.TRUE.equals(thrift.hasClassSizes),
+            Boolean.TRUE.equals(thrift.hasClassRefs),
+            Boolean.TRUE.equals(thrift.hasIds),
+            thrift.summary != null ? DexSummary.fromThrift(thrift.summary).withName(name) : null);
+
+        int methodCount = result.checkMethods(result.methods);
+        result.checkMethods(result.declaredMethods);
+        result.checkMethods(result.invokedMethods);
+        result.checkRecords(result.fields, FIELD_RECORD_SIZE, FIELD_RECORD_SIZE);
+        result.checkRecords(result.declaredFields, FIELD_RECORD_SIZE, FIELD_RECORD_SIZE);
+        result.checkRecords(result.classSizes, CLASS_SIZE_RECORD_SIZE, 1);
+        result.checkClassRefs(methodCount, result.fields.length / FIELD_RECORD_SIZE);
+        result.checkRecords(result.internalTypes, 1, 1);
+        result.checkRecords(result.stringIds, 1, 1);
+        result.checkRecords(result.typeIds, 1, 1);
+        result.checkRecords(result.protoIds, 1, 1);
+        return result;
+    }
+
+    CachedDex toThrift() {
+        return new CachedDex.Builder()
+            .strings(Arrays.asList(strings))
+            .methods(toList(methods))
+            .fields(toList(fields))
+            .declaredMethods(toList(declaredMethods))
+            .declaredFields(toList(declaredFields))
+            .invokedMethods(toList(invokedMethods))
+            .classSizes(toList(classSizes))
+            .classRefs(toList(classRefs))
+            .internalTypes(toList(internalTypes))
+            .stringIds(toList(stringIds))
+            .typeIds(toList(typeIds))
+            .protoIds(toList(protoIds))
+            .hasDeclarations(hasDeclarations)
+            .hasClassSizes(hasClassSizes)
+            .hasClassRefs(hasClassRefs)
+            .hasIds(hasIds)
+            .summary(summary != null ? DexSummary.toThrift(summary) : null)
+            .build();
+    }
+
+    boolean hasDeclarations() {
+        return hasDeclarations;
+    }
+
+    boolean hasClassSizes() {
+        return hasClassSizes;
+    }
+
+    boolean hasClassRefs() {
+        return hasClassRefs;
+    }
+
+    boolean hasIds() {
+        return hasIds;
+    }
+
+    @Override
+    public DexSummary getSummary() {
+        return summary;
+    }
+
+    @Override
+    public List<MethodRef> getMethodRefs() {
+        List<MethodRef> results = new ArrayList<>();
+        forEachMethod(methods, results::add);
+        return results;
+    }
+
+    @Override
+    public List<FieldRef> getFieldRefs() {
+        List<FieldRef> results = new ArrayList<>();
+        forEachField(fields, results::add);
+        return results;
+    }
+
+    @Override
+    public void forEachRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer) {
+        forEachMethod(methods, methodConsumer);
+        forEachField(fields, fieldConsumer);
+    }
+
+    @Override
+    public void forEachDeclaredRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer) {
+        forEachMethod(declaredMethods, methodConsumer);
+        forEachField(declaredFields, fieldConsumer);
+    }
+
+    @Override
+    public void forEachClassSize(ClassSizeConsumer consumer) {
+        for (int i = 0; i < classSizes.length; i += CLASS_SIZE_RECORD_SIZE) {
+            consumer.accept(
+                strings[classSizes[i]],
+                classSizes[i + 1],
+                classSizes[i + 2],
+                classSizes[i + 3],
+                classSizes[i + 4]);
+        }
+    }
+
+    @Override
+    public void forEachClassRefs(ClassRefsConsumer consumer) {
+        int i = 0;
+        while (i < classRefs.length) {
+            String descriptor = strings[classRefs[i]];
+            int methodCount = classRefs[i + 1];
+            int fieldCount = classRefs[i + 2];
+            i += 3;
+            int[] methodIndices = Arrays.copyOfRange(classRefs, i, i + methodCount);
+            i += methodCount;
+            int[] fieldIndices = Arrays.copyOfRange(classRefs, i, i + fieldCount);
+            i += fieldCount;
+            consumer.accept(descriptor, methodIndices, fieldIndices);
+        }
+    }
+
+    @Override
+    public void forEachId(Consumer<String> stringConsumer, Consumer<String> typeConsumer, Consumer<String> protoConsumer) {
+        for (int index : stringIds) {
+            stringConsumer.accept(strings[index]);
+        }
+        for (int index : typeIds) {
+            typeConsumer.accept(strings[index]);
+        }
+        for (int index : protoIds) {
+            protoConsumer.accept(strings[index]);
+        }
+    }
+
+    @Override
+    public void forEachInvokedRef(Consumer<MethodRef> consumer) {
+        forEachMethod(invokedMethods, consumer);
+    }
+
+    @Override
+    public void forEachInternalType(Consumer<String> consumer) {
+        for (int index : internalTypes) {
+            consumer.accept(strings[index]);
+        }
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    private void forEachMethod(int[] records, Consumer<MethodRef> consumer) {
+        int i = 0;
+        while (i < records.length) {
+            String declaringClass = strings[records[i++]];
+            String returnType = strings[records[i++]];
+            String name = strings[records[i++]];
+            String[] argumentTypes = new String[records[i++]];
+            for (int j = 0; j < argumentTypes.length; j++) {
+                argumentTypes[j] = strings[records[i++]];
+            }
+            consumer.accept(new MethodRef(declaringClass, argumentTypes, returnType, name));
+        }
+    }
+
+    private void forEachField(int[] records, Consumer<FieldRef> consumer) {
+        for (int i = 0; i < records.length; i += FIELD_RECORD_SIZE) {
+            consumer.accept(new FieldRef(strings[records[i]], strings[records[i + 1]], strings[records[i + 2]]));
+        }
+    }
+
+    /**
+     * Checks records of methods, and returns how many there are.
+     */
+    private int checkMethods(int[] records) {
+        int count = 0;
+        int i = 0;
+        while (i < records.length) {
+            if (records.length - i < 4) {
+                throw new IllegalArgumentException("Truncated method record");
+            }
+            checkString(records[i++]);
+            checkString(records[i++]);
+            checkString(records[i++]);
+            int argumentCount = records[i++];
+            if (argumentCount < 0 || argumentCount > records.length - i) {
+                throw new IllegalArgumentException("Bad argument count: " + argumentCount);
+            }
+            for (int j = 0; j < argumentCount; j++) {
+                checkString(records[i++]);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Checks that each class ref record fits, and that its indices are
+     * within the given numbers of method and field refs.
+     */
+    private void checkClassRefs(int methodCount, int fieldCount) {
+        int i = 0;
+        while (i < classRefs.length) {
+            if (classRefs.length - i < 3) {
+                throw new IllegalArgumentException("Truncated class ref record");
+            }
+            checkString(classRefs[i]);
+            int methodIndexCount = classRefs[i + 1];
+            int fieldIndexCount = classRefs[i + 2];
+            i += 3;
+            if (methodIndexCount < 0 || fieldIndexCount < 0
+                    || (long) methodIndexCount + fieldIndexCount > classRefs.length - i) {
+                throw new IllegalArgumentException("Bad class ref counts: " + methodIndexCount + ", " + fieldIndexCount);
+            }
+            for (int j = 0; j < methodIndexCount; j++) {
+                checkIndex(classRefs[i++], methodCount);
+            }
+            for (int j = 0; j < fieldIndexCount; j++) {
+                checkIndex(classRefs[i++], fieldCount);
+            }
+        }
+    }
+
+    private static void checkIndex(int index, int count) {
+        if (index < 0 || index >= count) {
+            throw new IllegalArgumentException("Bad ref index: " + index);
+        }
+    }
+
+    /**
+     * Checks records of a fixed size, the first {@code stringCount} values
+     * of which are string indices.
+     */
+    private void checkRecords(int[] records, int recordSize, int stringCount) {
+        if (records.length % recordSize != 0) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        for (int i = 0; i < records.length; i += recordSize) {
+            for (int j = 0; j < stringCount; j++) {
+                checkString(records[i + j]);
+            }
+        }
+    }
+
+    private void checkString(int index) {
+        if (index < 0 || index >= strings.length) {
+            throw new IllegalArgumentException("Bad string index: " + index);
+        }
+    }
+
+    private static <T> List<T> orEmpty(List<T> list) {
+        return list != null ? list : List.of();
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static List<Integer> toList(int[] values) {
+        return Arrays.stream(values).boxed().collect(Collectors.toList());
+    }
+
+    private static final class Recorder {
+        // in insertion order, which is index order
+        final Map<String, Integer> strings = new LinkedHashMap<>();
+        final List<Integer> methods = new ArrayList<>();
+        final List<Integer> fields = new ArrayList<>();
+        final List<Integer> declaredMethods = new ArrayList<>();
+        final List<Integer> declaredFields = new ArrayList<>();
+        final List<Integer> invokedMethods = new ArrayList<>();
+        final List<Integer> classSizes = new ArrayList<>();
+        final List<Integer> classRefs = new ArrayList<>();
+        final List<Integer> internalTypes = new ArrayList<>();
+        final List<Integer> stringIds = new ArrayList<>();
+        final List<Integer> typeIds = new ArrayList<>();
+        final List<Integer> protoIds = new ArrayList<>();
+
+        int indexOf(String value) {
+            return strings.computeIfAbsent(value, key -> strings.size());
+        }
+
+        void addMethod(List<Integer> records, MethodRef ref) {
+            records.add(indexOf(ref.getDeclClassName()));
+            records.add(indexOf(ref.getReturnTypeName()));
+            records.add(indexOf(ref.getName()));
+
+            String[] argumentTypes = ref.getArgumentTypeNames();
+            records.add(argumentTypes.length);
+            for (String argumentType : argumentTypes) {
+                records.add(indexOf(argumentType));
+            }
+        }
+
+        void addField(List<Integer> records, FieldRef ref) {
+            records.add(indexOf(ref.getDeclClassName()));
+            records.add(indexOf(ref.getTypeName()));
+            records.add(indexOf(ref.getName()));
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount.source;
+
+import com.android.dexdeps.FieldRef;
+import com.android.dexdeps.MethodRef;
+import com.android.dexdeps.StringPool;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the members a class file declares, and the ones its constant pool
+ * refers to, without loading or dexing anything.
+ *
+ * The refs are given in dex terms - type descriptors rather than internal
+ * names - so that they can be counted alongside refs read from dex files.
+ */
+final class ClassFileReader {
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    /**
+     * Classes whose methods are only ever the bootstrap methods of
+     * invokedynamic instructions, which D8 desugars away.  Refs to them
+     * never make it into a dex file.
+     */
+    private static final Set<String> DESUGARED_BOOTSTRAP_CLASSES = Set.of(
+        "Ljava/lang/invoke/LambdaMetafactory;",
+        "Ljava/lang/invoke/StringConcatFactory;",
+        "Ljava/lang/runtime/ObjectMethods;",
+        "Ljava/lang/runtime/SwitchBootstraps;");
+
+    /**
+     * Receives what a class file declares and refers to.
+     */
+    interface Visitor {
+        default void visitClass(String descriptor) {
+        }
+
+        default void visitSupertype(String descriptor) {
+        }
+
+        default void visitDeclaredMethod(MethodRef ref) {
+        }
+
+        default void visitDeclaredField(FieldRef ref) {
+        }
+
+        default void visitReferencedMethod(MethodRef ref) {
+        }
+
+        default void visitReferencedField(FieldRef ref) {
+        }
+    }
+
+    private ClassFileReader() {
+        // no instances
+    }
+
+    /**
+     * Reads the class file in the given stream, handing what it finds to
+     * the given visitor: first the class itself and its superclass and
+     * interfaces, then its declared fields
+     * and methods, and then, if {@code includeReferences} is set, the fields
+     * and methods its constant pool refers to.  The stream is read only as
+     * far as the end of the method table.
+     */
+    static void read(InputStream input, StringPool stringPool, boolean includeReferences, Visitor visitor) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor_version
+        in.readUnsignedShort(); // major_version
+
+        int count = in.readUnsignedShort();
+        int[] tags = new int[count];
+        int[] first = new int[count];
+        int[] second = new int[count];
+        String[] strings = new String[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            tags[i] = tag;
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    strings[i] = in.readUTF();
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                    in.readInt();
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    in.readLong();
+                    i++; // eight-byte constants take up two slots
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    first[i] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    first[i] = in.readUnsignedShort();
+                    second[i] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag + " at index " + i);
+            }
+        }
+
+        ConstantPool pool = new ConstantPool(tags, first, strings, stringPool);
+
+        in.readUnsignedShort(); // access_flags
+        String thisClass = pool.classDescriptor(in.readUnsignedShort());
+        int superClass = in.readUnsignedShort();
+        int[] interfaces = new int[in.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = in.readUnsignedShort();
+        }
+
+        visitor.visitClass(thisClass);
+        if (superClass != 0) {
+            // only java.lang.Object has no superclass
+            visitor.visitSupertype(pool.classDescriptor(superClass));
+        }
+        for (int iface : interfaces) {
+            visitor.visitSupertype(pool.classDescriptor(iface));
+        }
+
+        int fieldCount = in.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            in.readUnsignedShort(); // access_flags
+            String name = pool.utf8(in.readUnsignedShort());
+            String type = pool.utf8(in.readUnsignedShort());
+            skipAttributes(in);
+
+            visitor.visitDeclaredField(new FieldRef(thisClass, type, name));
+        }
+
+        int methodCount = in.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            in.readUnsignedShort(); // access_flags
+            String name = pool.utf8(in.readUnsignedShort());
+            String descriptor = pool.utf8(in.readUnsignedShort());
+            skipAttributes(in);
+
+            visitor.visitDeclaredMethod(methodRef(thisClass, name, descriptor, stringPool));
+        }
+
+        if (!includeReferences) {
+            return;
+        }
+
+        for (int i = 1; i < count; i++) {
+            int tag = tags[i];
+            if (tag != CONSTANT_FIELDREF && tag != CONSTANT_METHODREF && tag != CONSTANT_INTERFACE_METHODREF) {
+                continue;
+            }
+
+            String owner = pool.classDescriptor(first[i]);
+            int nameAndType = second[i];
+            if (nameAndType >= count || tags[nameAndType] != CONSTANT_NAME_AND_TYPE) {
+                throw new IOException("Bad NameAndType index " + nameAndType + " at index " + i);
+            }
+            String name = pool.utf8(first[nameAndType]);
+            String descriptor = pool.utf8(second[nameAndType]);
+
+            if (tag == CONSTANT_FIELDREF) {
+                visitor.visitReferencedField(new FieldRef(owner, descriptor, name));
+            } else if (!DESUGARED_BOOTSTRAP_CLASSES.contains(owner)) {
+                visitor.visitReferencedMethod(methodRef(owner, name, descriptor, stringPool));
+            }
+        }
+    }
+
+    /**
+     * Splits a method descriptor like "(I[Ljava/lang/String;)V" into its
+     * parameter and return types.
+     */
+    private static MethodRef methodRef(String owner, String name, String descriptor, StringPool stringPool) throws IOException {
+        if (descriptor.isEmpty() || descriptor.charAt(0) != '(') {
+            throw new IOException("Bad method descriptor " + descriptor);
+        }
+
+        List<String> params = new ArrayList<>();
+        int ix = 1;
+        while (ix < descriptor.length() && descriptor.charAt(ix) != ')') {
+            int end = endOfType(descriptor, ix);
+            params.add(stringPool.intern(descriptor.substring(ix, end)));
+            ix = end;
+        }
+        if (ix >= descriptor.length()) {
+            throw new IOException("Bad method descriptor " + descriptor);
+        }
+
+        String returnType = stringPool.intern(descriptor.substring(ix + 1));
+        return new MethodRef(owner, params.toArray(new String[0]), returnType, name);
+    }
+
+    private static int endOfType(String descriptor, int start) throws IOException {
+        int ix = start;
+        while (ix < descriptor.length() && descriptor.charAt(ix) == '[') {
+            ix++;
+        }
+        if (ix < descriptor.length() && descriptor.charAt(ix) == 'L') {
+            ix = descriptor.indexOf(';', ix);
+            if (ix < 0) {
+                throw new IOException("Bad method descriptor " + descriptor);
+            }
+        }
+        if (ix >= descriptor.length()) {
+            throw new IOException("Bad method descriptor " + descriptor);
+        }
+        return ix + 1;
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            in.readUnsignedShort(); // attribute_name_index
+            skipFully(in, in.readInt() & 0xFFFFFFFFL);
+        }
+    }
+
+    private static void skipFully(DataInputStream in, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            int skipped = in.skipBytes((int) Math.min(remaining, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static final class ConstantPool {
+        private final int[] tags;
+        private final int[] first;
+        private final String[] strings;
+        private final StringPool stringPool;
+
+        ConstantPool(int[] tags, int[] first, String[] strings, StringPool stringPool) {
+            this.tags = tags;
+            this.first = first;
+            this.strings = strings;
+            this.stringPool = stringPool;
+        }
+
+        String utf8(int index) throws IOException {
+            if (index <= 0 || index >= tags.length || tags[index] != CONSTANT_UTF8) {
+                throw new IOException("Bad Utf8 index " + index);
+            }
+            return stringPool.intern(strings[index]);
+        }
+
+        /**
+         * Returns the descriptor of the class at the given index.  Array
+         * classes are already named by their descriptors; every other
+         * class is named by its internal name.
+         */
+        String classDescriptor(int index) throws IOException {
+            if (index <= 0 || index >= tags.length || tags[index] != CONSTANT_CLASS) {
+                throw new IOException("Bad Class index " + index);
+            }
+            String name = utf8(first[index]);
+            if (name.startsWith("[")) {
+                return name;
+            }
+            return stringPool.intern("L" + name + ";");
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount.source;
+
+import com.android.dexdeps.FieldRef;
+import com.android.dexdeps.MethodRef;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The refs a dex file built from a set of class files would hold, as
+ * estimated from the class files themselves: every method and field they
+ * declare, plus every one their constant pools refer to.
+ *
+ * This is what D8 would produce, but for its desugaring: the classes it
+ * synthesizes for lambdas, default interface methods and backported APIs,
+ * along with their members, are missing here.
+ */
+final class ClassFileRefs implements SourceFile {
+    private static final Comparator<MethodRef> METHOD_ORDER = Comparator
+        .comparing(MethodRef::getDeclClassName)
+        .thenComparing(MethodRef::getName)
+        .thenComparing(MethodRef::getDescriptor);
+
+    private static final Comparator<FieldRef> FIELD_ORDER = Comparator
+        .comparing(FieldRef::getDeclClassName)
+        .thenComparing(FieldRef::getName)
+        .thenComparing(FieldRef::getTypeName);
+
+    private final List<MethodRef> methodRefs;
+    private final List<FieldRef> fieldRefs;
+    private final List<MethodRef> declaredMethodRefs;
+    private final List<FieldRef> declaredFieldRefs;
+    private final List<MethodRef> invokedMethodRefs;
+    private final Set<String> definedTypes;
+
+    private ClassFileRefs(Builder builder) {
+        Set<MethodRef> methods = new LinkedHashSet<>(builder.declaredMethods);
+        methods.addAll(builder.referencedMethods);
+        Set<FieldRef> fields = new LinkedHashSet<>(builder.declaredFields);
+        fields.addAll(builder.referencedFields);
+
+        // Sorted the way a dex file's ID tables are, so that the order
+        // doesn't depend on the order of the class files.
+        this.methodRefs = sorted(methods, METHOD_ORDER);
+        this.fieldRefs = sorted(fields, FIELD_ORDER);
+        this.declaredMethodRefs = sorted(builder.declaredMethods, METHOD_ORDER);
+        this.declaredFieldRefs = sorted(builder.declaredFields, FIELD_ORDER);
+        this.invokedMethodRefs = sorted(builder.referencedMethods, METHOD_ORDER);
+        this.definedTypes = builder.definedTypes;
+    }
+
+    private static <T> List<T> sorted(Set<T> refs, Comparator<? super T> order) {
+        List<T> list = new ArrayList<>(refs);
+        list.sort(order);
+        return list;
+    }
+
+    @Override
+    public List<MethodRef> getMethodRefs() {
+        return methodRefs;
+    }
+
+    @Override
+    public List<FieldRef> getFieldRefs() {
+        return fieldRefs;
+    }
+
+    @Override
+    public void forEachDeclaredRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer) {
+        declaredMethodRefs.forEach(methodConsumer);
+        declaredFieldRefs.forEach(fieldConsumer);
+    }
+
+    /**
+     * Treats every method the constant pools refer to as invoked.  Methods
+     * that are only the targets of method handles - the bodies of lambdas,
+     * say - are called from the classes D8 synthesizes for them.
+     */
+    @Override
+    public void forEachInvokedRef(Consumer<MethodRef> consumer) {
+        invokedMethodRefs.forEach(consumer);
+    }
+
+    @Override
+    public void forEachInternalType(Consumer<String> consumer) {
+        definedTypes.forEach(consumer);
+
+        // Array types are always internal, as they are in dex files.
+        Set<String> arrayTypes = new LinkedHashSet<>();
+        methodRefs.forEach(ref -> addIfArray(arrayTypes, ref.getDeclClassName()));
+        fieldRefs.forEach(ref -> addIfArray(arrayTypes, ref.getDeclClassName()));
+        arrayTypes.forEach(consumer);
+    }
+
+    private static void addIfArray(Set<String> arrayTypes, String descriptor) {
+        if (descriptor.startsWith("[")) {
+            arrayTypes.add(descriptor);
+        }
+    }
+
+    @Override
+    public void close() {
+        // no-op
+    }
+
+    /**
+     * Collects the refs of any number of class files, skipping duplicates.
+     */
+    static final class Builder implements ClassFileReader.Visitor {
+        private final Set<MethodRef> declaredMethods = new LinkedHashSet<>();
+        private final Set<FieldRef> declaredFields = new LinkedHashSet<>();
+        private final Set<MethodRef> referencedMethods = new LinkedHashSet<>();
+        private final Set<FieldRef> referencedFields = new LinkedHashSet<>();
+        private final Set<String> definedTypes = new LinkedHashSet<>();
+
+        @Override
+        public void visitClass(String descriptor) {
+            definedTypes.add(descriptor);
+        }
+
+        @Override
+        public void visitDeclaredMethod(MethodRef ref) {
+            declaredMethods.add(ref);
+        }
+
+        @Override
+        public void visitDeclaredField(FieldRef ref) {
+            declaredFields.add(ref);
+        }
+
+        @Override
+        public void visitReferencedMethod(MethodRef ref) {
+            referencedMethods.add(ref);
+        }
+
+        @Override
+        public void visitReferencedField(FieldRef ref) {
+            referencedFields.add(ref);
+        }
+
+        ClassFileRefs build() {
+            return new ClassFileRefs(this);
+        }
+    }
+}
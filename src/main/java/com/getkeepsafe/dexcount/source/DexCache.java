@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount.source;
+
+import com.getkeepsafe.dexcount.thrift.CachedDex;
+import com.getkeepsafe.dexcount.thrift.DexCacheEntry;
+import com.microsoft.thrifty.KtApiKt;
+import com.microsoft.thrifty.protocol.Protocol;
+import com.microsoft.thrifty.transport.Transport;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+
+/**
+ * An on-disk cache of the refs read from individual dex files.
+ *
+ * Between two builds of an app, most of its dex files are usually
+ * unchanged, so rather than parsing each of them again we look them up
+ * here first.  A dex file inside a zip is known by the CRC-32 and size of
+ * its entry, which come from the central directory without inflating
+ * anything; a bare dex file is known by the SHA-1 signature in its header;
+ * and the dex files D8 makes of an AAR are known by a SHA-256 of its
+ * classes.jar, the minSdk and the D8 version.
+ *
+ * The cache is meant to live in a directory of its own, used by a single
+ * task; {@link #pruneUnused()} drops every entry the current run didn't
+ * touch, so that it holds no more than the dex files of one input.  A
+ * directory shared by many builds is instead kept to a size with
+ * {@link #pruneLeastRecentlyUsed(long)}.
+ *
+ * Failing to read or write an entry is never an error - the dex file is
+ * simply parsed as though it hadn't been cached.  Entries may be read and
+ * written from several threads at once.
+ */
+public final class DexCache {
+    /**
+     * Bump this whenever what is recorded about a dex file changes, so
+     * that entries written by older versions are ignored.
+     */
+    private static final int FORMAT_VERSION = 8;
+
+    private static final String SUFFIX = ".cache";
+
+    private static final int SIGNATURE_OFFSET = 12;
+    private static final int SIGNATURE_SIZE = 20;
+
+    private final File directory;
+    private final boolean includeDeclarations;
+    private final boolean includeClassSizes;
+    private final boolean includeClassRefs;
+    private final boolean includeIds;
+    private final Set<String> usedFileNames = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param directory           where to keep cache entries
+     * @param includeDeclarations whether declared refs are needed as well
+     * @param includeClassSizes   whether class sizes are needed as well
+     * @param includeClassRefs    whether the refs of each class are needed as well
+     * @param includeIds          whether the string, type and proto ID tables are needed as well
+     */
+    public DexCache(
+            File directory,
+            boolean includeDeclarations,
+            boolean includeClassSizes,
+            boolean includeClassRefs,
+            boolean includeIds) {
+        this.directory = directory;
+        this.includeDeclarations = includeDeclarations;
+        this.includeClassSizes = includeClassSizes;
+        this.includeClassRefs = includeClassRefs;
+        this.includeIds = includeIds;
+    }
+
+    /**
+     * Returns the cache key of a zip entry, or null if its CRC or size
+     * isn't known.
+     */
+    static String keyOf(ZipEntry entry) {
+        if (entry.getCrc() == -1 || entry.getSize() == -1) {
+            return null;
+        }
+        return "crc-" + Long.toHexString(entry.getCrc()) + "-" + entry.getSize();
+    }
+
+    /**
+     * Returns the cache key of a bare dex file, or null if the buffer is
+     * too small to hold a dex header.
+     */
+    static String keyOf(ByteBuffer dex) {
+        if (dex.remaining() < SIGNATURE_OFFSET + SIGNATURE_SIZE) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder("sha1-");
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            int b = dex.get(dex.position() + SIGNATURE_OFFSET + i) & 0xFF;
+            sb.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.append('-').append(dex.remaining()).toString();
+    }
+
+    /**
+     * Returns the cached contents of the dex files with the given key, or
+     * null if there are none, or none that recorded everything we need.
+     * Equal dex files may be cached under different names, so the name to
+     * report them under is given here.
+     */
+    List<SourceFile> get(String key, String name) {
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        DexCacheEntry entry;
+        try (Source source = Okio.source(file);
+             BufferedSource bufferedSource = Okio.buffer(source);
+             Transport transport = KtApiKt.transport(bufferedSource);
+             Protocol protocol = KtApiKt.compactProtocol(transport)) {
+            entry = DexCacheEntry.ADAPTER.read(protocol);
+        } catch (IOException | RuntimeException e) {
+            // Unreadable - most likely written by an interrupted build.
+            return null;
+        }
+
+        if (entry.formatVersion == null || entry.formatVersion != FORMAT_VERSION || entry.dexFiles == null) {
+            return null;
+        }
+
+        List<SourceFile> results = new ArrayList<>(entry.dexFiles.size());
+        for (int i = 0; i < entry.dexFiles.size(); i++) {
+            CachedDexFile dexFile;
+            try {
+                dexFile = CachedDexFile.fromThrift(entry.dexFiles.get(i), DexFile.unitName(name, i));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+
+            if ((includeDeclarations && !dexFile.hasDeclarations())
+                    || (includeClassSizes && !dexFile.hasClassSizes())
+                    || (includeClassRefs && !dexFile.hasClassRefs())
+                    || (includeIds && !dexFile.hasIds())) {
+                return null;
+            }
+            results.add(dexFile);
+        }
+
+        usedFileNames.add(file.getName());
+        return results;
+    }
+
+    /**
+     * Records the contents of the given dex files under the given key, and
+     * returns the recorded copies, which callers should use in place of
+     * the originals.  The originals are closed.
+     */
+    List<SourceFile> put(String key, List<? extends SourceFile> sources) {
+        List<CachedDexFile> dexFiles = new ArrayList<>(sources.size());
+        List<CachedDex> thrifts = new ArrayList<>(sources.size());
+        for (SourceFile source : sources) {
+            CachedDexFile dexFile = CachedDexFile.record(
+                source, includeDeclarations, includeClassSizes, includeClassRefs, includeIds);
+            dexFiles.add(dexFile);
+            thrifts.add(dexFile.toThrift());
+            IOUtils.closeQuietly(source);
+        }
+
+        DexCacheEntry entry = new DexCacheEntry.Builder()
+            .formatVersion(FORMAT_VERSION)
+            .dexFiles(thrifts)
+            .build();
+
+        File file = fileFor(key);
+        try {
+            write(entry, file);
+            usedFileNames.add(file.getName());
+        } catch (IOException ignored) {
+            // We'll just have to parse it again next time.
+        }
+
+        return new ArrayList<>(dexFiles);
+    }
+
+    /**
+     * Deletes every entry that hasn't been read or written since this
+     * cache was created.
+     */
+    public void pruneUnused() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (!usedFileNames.contains(file.getName())) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the rest take up no
+     * more than the given number of bytes.  Meant for caches shared by
+     * many builds, where {@link #pruneUnused()} would throw away entries
+     * other builds still need.  An entry counts as used when a cache last
+     * read or wrote it before pruning, so those of this cache are always
+     * the most recent, and are kept if they fit.
+     */
+    public void pruneLeastRecentlyUsed(long maxBytes) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (usedFileNames.contains(file.getName())) {
+                // Entries that were only read keep their old timestamps
+                // otherwise.
+                file.setLastModified(now);
+            }
+        }
+
+        // Look up each timestamp once; they may change under us while
+        // sorting if other builds share the directory.
+        Map<File, Long> lastModified = new HashMap<>();
+        for (File file : files) {
+            lastModified.put(file, file.lastModified());
+        }
+        Arrays.sort(files, Comparator.comparing(lastModified::get, Comparator.reverseOrder()));
+
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+            if (totalBytes > maxBytes) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    /**
+     * Writes to a temp file first and then moves it into place, so that
+     * readers never see a partially-written entry.
+     */
+    private void write(DexCacheEntry entry, File file) throws IOException {
+        FileUtils.forceMkdir(directory);
+
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (Sink fileSink = Okio.sink(temp);
+                 BufferedSink sink = Okio.buffer(fileSink);
+                 Transport transport = KtApiKt.transport(sink);
+                 Protocol protocol = KtApiKt.compactProtocol(transport)) {
+                entry.write(protocol);
+                protocol.flush();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(temp);
+        }
+    }
+}
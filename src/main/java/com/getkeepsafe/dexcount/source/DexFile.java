@@ -17,63 +17,394 @@ package com.getkeepsafe.dexcount.source;
 
 import com.android.dexdeps.DexData;
 import com.android.dexdeps.DexDataException;
+import com.android.dexdeps.DexVisitor;
 import com.android.dexdeps.FieldRef;
 import com.android.dexdeps.MethodRef;
+import com.android.dexdeps.StringPool;
 import com.getkeepsafe.dexcount.DexCountException;
+import com.getkeepsafe.dexcount.DexSummary;
 import java.nio.file.Path;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 class DexFile implements SourceFile {
+    /**
+     * Dex files at least this large have their sections parsed concurrently,
+     * when there is an executor to do it on; for smaller files the
+     * coordination costs more than it saves.
+     */
+    private static final long PARALLEL_LOAD_THRESHOLD = 4L * 1024 * 1024;
+
     private final File file;
+    private final String name;
     private final boolean isTemp;
 
-    private final RandomAccessFile raf;
     private final DexData data;
 
-    DexFile(File file, boolean isTemp) {
+    /**
+     * Loads the given dex file.  Its bytes are read onto the heap rather
+     * than mapped: temp files are deleted when we're closed, and a file
+     * that is still mapped can't be deleted on Windows.
+     */
+    DexFile(File file, boolean isTemp, StringPool stringPool, ExecutorService executor) {
         this.file = file;
+        this.name = file.getName();
         this.isTemp = isTemp;
 
         try {
-            this.raf = new RandomAccessFile(file, "r");
-            this.data = new DexData(raf);
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            this.data = new DexData(ByteBuffer.wrap(bytes));
+            data.setStringPool(stringPool);
+
+            load(data, bytes.length, executor);
+        } catch (IOException | DexDataException e) {
+            throw new DexCountException("Error loading dex file", e);
+        }
+    }
+
+    DexFile(String name, ByteBuffer buffer, int headerOffset, long size, StringPool stringPool, ExecutorService executor) {
+        this.file = null;
+        this.name = name;
+        this.isTemp = false;
 
+        try {
+            this.data = new DexData(buffer, headerOffset);
+            data.setStringPool(stringPool);
+
+            load(data, size, executor);
+        } catch (IOException | DexDataException e) {
+            throw new DexCountException("Error loading dex file", e);
+        }
+    }
+
+    /**
+     * Loads each dex file in the given buffer.  That is just the one,
+     * unless the buffer holds a dex v041 container; the dex files of a
+     * container are all read from the same buffer.  Large dex files are
+     * loaded with the help of the given executor, if there is one.
+     */
+    static List<DexFile> fromBuffer(String name, ByteBuffer buffer, StringPool stringPool, ExecutorService executor) {
+        int[] offsets = getHeaderOffsets(buffer);
+
+        List<DexFile> results = new ArrayList<>(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            int end = i + 1 < offsets.length ? offsets[i + 1] : buffer.remaining();
+            results.add(new DexFile(unitName(name, i), buffer, offsets[i], end - offsets[i], stringPool, executor));
+        }
+        return results;
+    }
+
+    private static void load(DexData data, long size, ExecutorService executor) throws IOException {
+        if (executor != null && size >= PARALLEL_LOAD_THRESHOLD) {
+            data.load(executor);
+        } else {
             data.load();
+        }
+    }
+
+    /**
+     * Reads only the headers of the dex files in the given buffer, which is
+     * enough to know the sizes of their ID tables.
+     */
+    static List<DexSummary> readSummaries(String name, ByteBuffer buffer) {
+        int[] offsets = getHeaderOffsets(buffer);
+
+        List<DexSummary> results = new ArrayList<>(offsets.length);
+        try {
+            for (int i = 0; i < offsets.length; i++) {
+                DexData data = new DexData(buffer, offsets[i]);
+                data.loadHeader();
+                results.add(DexSummary.fromDexData(unitName(name, i), data));
+            }
+        } catch (IOException | DexDataException e) {
+            throw new DexCountException("Error loading dex file", e);
+        }
+        return results;
+    }
+
+    private static int[] getHeaderOffsets(ByteBuffer buffer) {
+        try {
+            return DexData.getHeaderOffsets(buffer);
         } catch (IOException | DexDataException e) {
             throw new DexCountException("Error loading dex file", e);
         }
     }
 
-    static DexFile newTempDexFile(Path path) {
-        return newTempDexFile(path.toFile());
+    /**
+     * Names the dex files of a container after the file holding them,
+     * e.g. "classes.dex", "classes.dex#1", "classes.dex#2".
+     */
+    static String unitName(String name, int index) {
+        return index == 0 ? name : name + "#" + index;
     }
 
-    static DexFile newTempDexFile(File file) {
-        return new DexFile(file, true);
+    static DexFile newTempDexFile(Path path, StringPool stringPool, ExecutorService executor) {
+        return newTempDexFile(path.toFile(), stringPool, executor);
+    }
+
+    static DexFile newTempDexFile(File file, StringPool stringPool, ExecutorService executor) {
+        return new DexFile(file, true, stringPool, executor);
     }
 
     @Override
     public void close() {
-        IOUtils.closeQuietly(raf);
         if (isTemp) {
             FileUtils.deleteQuietly(file);
         }
     }
 
+    @Override
+    public DexSummary getSummary() {
+        return DexSummary.fromDexData(name, data);
+    }
+
+    @Override
+    public void forEachId(Consumer<String> stringConsumer, Consumer<String> typeConsumer, Consumer<String> protoConsumer) {
+        for (int i = 0; i < data.getStringIdCount(); i++) {
+            stringConsumer.accept(data.getString(i));
+        }
+        for (int i = 0; i < data.getTypeIdCount(); i++) {
+            typeConsumer.accept(data.getTypeName(i));
+        }
+        for (int i = 0; i < data.getProtoIdCount(); i++) {
+            protoConsumer.accept(protoDescriptor(data.getProtoReturnType(i), data.getProtoArgumentTypes(i)));
+        }
+    }
+
+    static String protoDescriptor(String returnType, String[] argumentTypes) {
+        StringBuilder sb = new StringBuilder("(");
+        for (String argumentType : argumentTypes) {
+            sb.append(argumentType);
+        }
+        return sb.append(')').append(returnType).toString();
+    }
+
     @Override
     public List<MethodRef> getMethodRefs() {
-        return Arrays.asList(data.getMethodRefs());
+        MethodRef[] refs = new MethodRef[data.getMethodIdCount()];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = data.copyMethodRef(i);
+        }
+        return Arrays.asList(refs);
     }
 
     @Override
     public List<FieldRef> getFieldRefs() {
-        return Arrays.asList(data.getFieldRefs());
+        FieldRef[] refs = new FieldRef[data.getFieldIdCount()];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = data.copyFieldRef(i);
+        }
+        return Arrays.asList(refs);
+    }
+
+    @Override
+    public void forEachRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer) {
+        data.accept(new DexVisitor() {
+            @Override
+            public void visitMethod(int methodIdx, int classIdx, int protoIdx, int nameIdx) {
+                methodConsumer.accept(data.copyMethodRef(methodIdx));
+            }
+
+            @Override
+            public void visitField(int fieldIdx, int classIdx, int typeIdx, int nameIdx) {
+                fieldConsumer.accept(data.copyFieldRef(fieldIdx));
+            }
+        });
+    }
+
+    @Override
+    public void forEachDeclaredRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer) {
+        try {
+            data.acceptDeclarations(new DexVisitor() {
+                @Override
+                public void visitDeclaredMethod(int methodIdx, int accessFlags, int codeOff) {
+                    methodConsumer.accept(data.copyMethodRef(methodIdx));
+                }
+
+                @Override
+                public void visitDeclaredField(int fieldIdx, int accessFlags) {
+                    fieldConsumer.accept(data.copyFieldRef(fieldIdx));
+                }
+            });
+        } catch (IOException | DexDataException e) {
+            throw new DexCountException("Error reading class data", e);
+        }
+    }
+
+    @Override
+    public void forEachInvokedRef(Consumer<MethodRef> consumer) {
+        // how many call sites each entry of method_ids has
+        int[] fanIn = new int[data.getMethodIdCount()];
+        try {
+            data.acceptCodeRefs(new DexVisitor() {
+                @Override
+                public void visitInvoke(int methodIdx, int targetMethodIdx) {
+                    fanIn[targetMethodIdx]++;
+                }
+            });
+        } catch (IOException | DexDataException e) {
+            throw new DexCountException("Error reading code", e);
+        }
+
+        for (int i = 0; i < fanIn.length; i++) {
+            if (fanIn[i] > 0) {
+                consumer.accept(data.copyMethodRef(i));
+            }
+        }
+    }
+
+    @Override
+    public void forEachClassRefs(ClassRefsConsumer consumer) {
+        int[] methodClasses = new int[data.getMethodIdCount()];
+        int[] fieldClasses = new int[data.getFieldIdCount()];
+        data.accept(new DexVisitor() {
+            @Override
+            public void visitMethod(int methodIdx, int classIdx, int protoIdx, int nameIdx) {
+                methodClasses[methodIdx] = classIdx;
+            }
+
+            @Override
+            public void visitField(int fieldIdx, int classIdx, int typeIdx, int nameIdx) {
+                fieldClasses[fieldIdx] = classIdx;
+            }
+        });
+
+        // A declared method's method_id names the class defining it, so
+        // code is charged to the class of the method it sits in.
+        PairList methods = new PairList();
+        PairList fields = new PairList();
+        try {
+            data.acceptDeclarations(new DexVisitor() {
+                @Override
+                public void visitDeclaredMethod(int methodIdx, int accessFlags, int codeOff) {
+                    methods.add(methodClasses[methodIdx], methodIdx);
+                }
+
+                @Override
+                public void visitDeclaredField(int fieldIdx, int accessFlags) {
+                    fields.add(fieldClasses[fieldIdx], fieldIdx);
+                }
+            });
+            data.acceptCodeRefs(new DexVisitor() {
+                @Override
+                public void visitInvoke(int methodIdx, int targetMethodIdx) {
+                    methods.add(methodClasses[methodIdx], targetMethodIdx);
+                }
+
+                @Override
+                public void visitFieldAccess(int methodIdx, int fieldIdx) {
+                    fields.add(methodClasses[methodIdx], fieldIdx);
+                }
+            });
+        } catch (IOException | DexDataException e) {
+            throw new DexCountException("Error reading code", e);
+        }
+
+        long[] methodPairs = methods.sortedDistinct();
+        long[] fieldPairs = fields.sortedDistinct();
+        int m = 0;
+        int f = 0;
+        while (m < methodPairs.length || f < fieldPairs.length) {
+            int classIdx = Math.min(
+                m < methodPairs.length ? PairList.first(methodPairs[m]) : Integer.MAX_VALUE,
+                f < fieldPairs.length ? PairList.first(fieldPairs[f]) : Integer.MAX_VALUE);
+
+            int methodEnd = PairList.endOfRun(methodPairs, m, classIdx);
+            int fieldEnd = PairList.endOfRun(fieldPairs, f, classIdx);
+            consumer.accept(
+                data.getTypeName(classIdx),
+                PairList.seconds(methodPairs, m, methodEnd),
+                PairList.seconds(fieldPairs, f, fieldEnd));
+
+            m = methodEnd;
+            f = fieldEnd;
+        }
+    }
+
+    @Override
+    public void forEachInternalType(Consumer<String> consumer) {
+        for (int i = 0; i < data.getTypeIdCount(); i++) {
+            if (data.isInternalType(i)) {
+                String descriptor = data.getTypeName(i);
+                if (descriptor.length() > 1) {
+                    // primitives have no members to refer to
+                    consumer.accept(descriptor);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void forEachClassSize(ClassSizeConsumer consumer) {
+        try {
+            data.acceptClassSizes(new DexVisitor() {
+                @Override
+                public void visitClassSize(int classIdx, int codeBytes, int stringBytes, int annotationBytes, int debugInfoBytes) {
+                    consumer.accept(data.getTypeName(classIdx), codeBytes, stringBytes, annotationBytes, debugInfoBytes);
+                }
+            });
+        } catch (IOException | DexDataException e) {
+            throw new DexCountException("Error reading class data", e);
+        }
+    }
+
+    /**
+     * A growable list of pairs of non-negative ints, each packed into a
+     * long so that sorting them orders by the first and then the second.
+     */
+    private static final class PairList {
+        private long[] pairs = new long[256];
+        private int size;
+
+        void add(int first, int second) {
+            if (size == pairs.length) {
+                pairs = Arrays.copyOf(pairs, size * 2);
+            }
+            pairs[size++] = ((long) first << 32) | second;
+        }
+
+        long[] sortedDistinct() {
+            Arrays.sort(pairs, 0, size);
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (count == 0 || pairs[i] != pairs[count - 1]) {
+                    pairs[count++] = pairs[i];
+                }
+            }
+            return Arrays.copyOf(pairs, count);
+        }
+
+        static int first(long pair) {
+            return (int) (pair >>> 32);
+        }
+
+        /**
+         * Returns the end of the run of pairs, starting at the given index,
+         * whose first value is the given one.
+         */
+        static int endOfRun(long[] pairs, int start, int first) {
+            int end = start;
+            while (end < pairs.length && first(pairs[end]) == first) {
+                end++;
+            }
+            return end;
+        }
+
+        static int[] seconds(long[] pairs, int start, int end) {
+            int[] result = new int[end - start];
+            for (int i = start; i < end; i++) {
+                result[i - start] = (int) pairs[i];
+            }
+            return result;
+        }
     }
 }
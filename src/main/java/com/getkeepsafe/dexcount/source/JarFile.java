@@ -19,6 +19,7 @@ import com.android.dexdeps.FieldRef;
 import com.android.dexdeps.MethodRef;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 class JarFile implements SourceFile {
     private final List<MethodRef> methodRefs;
@@ -39,6 +40,19 @@ class JarFile implements SourceFile {
         return fieldRefs;
     }
 
+    @Override
+    public void forEachDeclaredRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer) {
+        // everything in a jar is declared by it
+        methodRefs.forEach(methodConsumer);
+        fieldRefs.forEach(fieldConsumer);
+    }
+
+    @Override
+    public void forEachInternalType(Consumer<String> consumer) {
+        methodRefs.forEach(ref -> consumer.accept(ref.getDeclClassName()));
+        fieldRefs.forEach(ref -> consumer.accept(ref.getDeclClassName()));
+    }
+
     @Override
     public void close() {
         // no-op
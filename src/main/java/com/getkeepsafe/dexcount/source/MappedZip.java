@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A read-only mapping of a zip file that hands out zero-copy views of its
+ * STORED (uncompressed) entries.
+ *
+ * Release APKs usually store their dex files uncompressed, in which case
+ * the entry bytes sit contiguously in the archive and can be parsed in
+ * place instead of being copied out.  {@link java.util.zip.ZipFile} does
+ * not expose where an entry's data begins, so we read the central
+ * directory ourselves.  Anything we don't understand (e.g. zip64) simply
+ * isn't offered here, and callers fall back to inflating the entry.
+ *
+ * A mapping can't be released explicitly; it goes away once it's garbage
+ * collected, after the last view of it - and any DexData parsed from one
+ * - is unreachable.  So views mustn't outlive the worker that reads them:
+ * the dex files parsed from them are closed as soon as they're counted,
+ * and the refs they hand out are copies that hold nothing of the buffer.
+ * On Windows, where a mapped file can't be deleted or overwritten until
+ * then, nothing is mapped at all, so that the next task writing the APK
+ * doesn't fail.
+ */
+final class MappedZip {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int METHOD_STORED = 0;
+
+    /**
+     * Whether a file stays locked for as long as it is mapped, as it does on
+     * Windows.  Where it does, files are read onto the heap instead.
+     */
+    static final boolean MAPPING_LOCKS_FILE = System.getProperty("os.name", "").startsWith("Windows");
+
+    private final ByteBuffer data;
+    private final Map<String, StoredEntry> storedEntries;
+
+    private MappedZip(ByteBuffer data, Map<String, StoredEntry> storedEntries) {
+        this.data = data;
+        this.storedEntries = storedEntries;
+    }
+
+    /**
+     * Maps the given zip file - unless mapping would lock it, in which case
+     * no entries are offered and callers inflate each one.
+     */
+    static MappedZip map(File file) throws IOException {
+        if (MAPPING_LOCKS_FILE) {
+            return new MappedZip(null, Collections.emptyMap());
+        }
+
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return new MappedZip(null, Collections.emptyMap());
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        return new MappedZip(data, readStoredEntries(data));
+    }
+
+    /**
+     * Returns a read-only view of the named entry's bytes if it is STORED,
+     * or null if it is compressed or could not be located.
+     */
+    ByteBuffer getStoredEntry(String name) {
+        StoredEntry entry = storedEntries.get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        int headerOffset = entry.localHeaderOffset;
+        if (headerOffset > data.limit() - LOCAL_HEADER_SIZE || data.getInt(headerOffset) != LOCAL_HEADER_SIGNATURE) {
+            return null;
+        }
+
+        // The local header's extra field may differ from the central one
+        // (zipalign pads it), so the data offset has to come from here.
+        int nameLength = data.getShort(headerOffset + 26) & 0xFFFF;
+        int extraLength = data.getShort(headerOffset + 28) & 0xFFFF;
+        long dataOffset = (long) headerOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        if (dataOffset + entry.size > data.limit()) {
+            return null;
+        }
+
+        ByteBuffer view = data.duplicate();
+        view.position((int) dataOffset);
+        view.limit((int) (dataOffset + entry.size));
+        return view.slice();
+    }
+
+    private static Map<String, StoredEntry> readStoredEntries(ByteBuffer data) {
+        int eocd = findEndOfCentralDirectory(data);
+        if (eocd == -1) {
+            return Collections.emptyMap();
+        }
+
+        int entryCount = data.getShort(eocd + 10) & 0xFFFF;
+        long directoryOffset = data.getInt(eocd + 16) & 0xFFFFFFFFL;
+
+        Map<String, StoredEntry> results = new HashMap<>();
+        long offset = directoryOffset;
+        for (int i = 0; i < entryCount; i++) {
+            if (offset > data.limit() - CENTRAL_HEADER_SIZE || data.getInt((int) offset) != CENTRAL_HEADER_SIGNATURE) {
+                // Truncated, zip64, or otherwise unexpected - stick to what we have.
+                break;
+            }
+
+            int pos = (int) offset;
+            int method = data.getShort(pos + 10) & 0xFFFF;
+            long compressedSize = data.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = data.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = data.getShort(pos + 28) & 0xFFFF;
+            int extraLength = data.getShort(pos + 30) & 0xFFFF;
+            int commentLength = data.getShort(pos + 32) & 0xFFFF;
+            long localHeaderOffset = data.getInt(pos + 42) & 0xFFFFFFFFL;
+
+            if (pos + CENTRAL_HEADER_SIZE + nameLength > data.limit()) {
+                break;
+            }
+
+            if (method == METHOD_STORED && compressedSize == size && localHeaderOffset < data.limit()) {
+                byte[] nameBytes = new byte[nameLength];
+                ByteBuffer nameView = data.duplicate();
+                nameView.position(pos + CENTRAL_HEADER_SIZE);
+                nameView.get(nameBytes);
+
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+                results.put(name, new StoredEntry((int) localHeaderOffset, size));
+            }
+
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return results;
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer data) {
+        int last = data.limit() - EOCD_SIZE;
+        int first = Math.max(0, last - MAX_COMMENT_SIZE);
+        for (int pos = last; pos >= first; pos--) {
+            if (data.getInt(pos) == EOCD_SIGNATURE) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    private static final class StoredEntry {
+        final int localHeaderOffset;
+        final long size;
+
+        StoredEntry(int localHeaderOffset, long size) {
+            this.localHeaderOffset = localHeaderOffset;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount.source;
+
+import com.android.dexdeps.FieldRef;
+import com.android.dexdeps.MethodRef;
+import com.getkeepsafe.dexcount.DexSummary;
+import org.apache.commons.io.IOUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The refs of several sources - say, dex files of one class each - as they
+ * would be if those sources had been a single dex file: each ref once, no
+ * matter how many of them share it.  The summary is of that dex file too,
+ * its ID tables the union of theirs.
+ *
+ * Sources are folded in and closed one at a time, so that however many
+ * there are, only their refs and IDs are held in memory.
+ */
+final class MergedSourceFile implements SourceFile {
+    // in insertion order, which is index order
+    private final Map<MethodRef, Integer> methodRefs = new LinkedHashMap<>();
+    private final Map<FieldRef, Integer> fieldRefs = new LinkedHashMap<>();
+    private final Set<MethodRef> declaredMethodRefs = new LinkedHashSet<>();
+    private final Set<FieldRef> declaredFieldRefs = new LinkedHashSet<>();
+    private final Set<MethodRef> invokedMethodRefs = new LinkedHashSet<>();
+    private final Set<String> internalTypes = new LinkedHashSet<>();
+    private final List<ClassSize> classSizes = new ArrayList<>();
+    private final List<ClassRefs> classRefs = new ArrayList<>();
+    private final Set<String> stringIds = new LinkedHashSet<>();
+    private final Set<String> typeIds = new LinkedHashSet<>();
+    private final Set<String> protoIds = new LinkedHashSet<>();
+    private int classCount;
+    private int sourceCount;
+    private boolean allDexFiles = true;
+
+    /**
+     * Adds the refs of each of the given sources, closing them.
+     */
+    void addAll(List<? extends SourceFile> sources) {
+        try {
+            for (SourceFile source : sources) {
+                add(source);
+            }
+        } finally {
+            sources.forEach(IOUtils::closeQuietly);
+        }
+    }
+
+    private void add(SourceFile source) {
+        // where each of the source's refs ended up, by its position in the source
+        List<Integer> methodIndices = new ArrayList<>();
+        List<Integer> fieldIndices = new ArrayList<>();
+        source.forEachRef(
+            ref -> methodIndices.add(methodRefs.computeIfAbsent(ref, key -> methodRefs.size())),
+            ref -> fieldIndices.add(fieldRefs.computeIfAbsent(ref, key -> fieldRefs.size())));
+        source.forEachClassRefs((descriptor, methods, fields) ->
+            classRefs.add(new ClassRefs(descriptor, remap(methods, methodIndices), remap(fields, fieldIndices))));
+
+        source.forEachDeclaredRef(declaredMethodRefs::add, declaredFieldRefs::add);
+        source.forEachInvokedRef(invokedMethodRefs::add);
+        source.forEachInternalType(internalTypes::add);
+        source.forEachClassSize((descriptor, code, strings, annotations, debugInfo) ->
+            classSizes.add(new ClassSize(descriptor, code, strings, annotations, debugInfo)));
+        source.forEachId(stringIds::add, typeIds::add, protoIds::add);
+
+        DexSummary summary = source.getSummary();
+        if (summary != null) {
+            classCount += summary.getClassCount();
+        } else {
+            allDexFiles = false;
+        }
+        sourceCount++;
+    }
+
+    private static int[] remap(int[] indices, List<Integer> mergedIndices) {
+        int[] results = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            results[i] = mergedIndices.get(indices[i]);
+        }
+        Arrays.sort(results);
+        return results;
+    }
+
+    @Override
+    public List<MethodRef> getMethodRefs() {
+        return new ArrayList<>(methodRefs.keySet());
+    }
+
+    @Override
+    public List<FieldRef> getFieldRefs() {
+        return new ArrayList<>(fieldRefs.keySet());
+    }
+
+    @Override
+    public void forEachRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer) {
+        methodRefs.keySet().forEach(methodConsumer);
+        fieldRefs.keySet().forEach(fieldConsumer);
+    }
+
+    @Override
+    public void forEachDeclaredRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer) {
+        declaredMethodRefs.forEach(methodConsumer);
+        declaredFieldRefs.forEach(fieldConsumer);
+    }
+
+    @Override
+    public void forEachInvokedRef(Consumer<MethodRef> consumer) {
+        invokedMethodRefs.forEach(consumer);
+    }
+
+    @Override
+    public void forEachInternalType(Consumer<String> consumer) {
+        internalTypes.forEach(consumer);
+    }
+
+    @Override
+    public void forEachClassSize(ClassSizeConsumer consumer) {
+        for (ClassSize size : classSizes) {
+            consumer.accept(size.descriptor, size.codeBytes, size.stringBytes, size.annotationBytes, size.debugInfoBytes);
+        }
+    }
+
+    @Override
+    public void forEachClassRefs(ClassRefsConsumer consumer) {
+        for (ClassRefs refs : classRefs) {
+            consumer.accept(refs.descriptor, refs.methodIndices.clone(), refs.fieldIndices.clone());
+        }
+    }
+
+    @Override
+    public void forEachId(Consumer<String> stringConsumer, Consumer<String> typeConsumer, Consumer<String> protoConsumer) {
+        stringIds.forEach(stringConsumer);
+        typeIds.forEach(typeConsumer);
+        protoIds.forEach(protoConsumer);
+    }
+
+    /**
+     * Returns the sizes the ID tables would have in one dex file holding
+     * every source, or null if any of them wasn't a dex file.
+     */
+    @Override
+    public DexSummary getSummary() {
+        if (sourceCount == 0 || !allDexFiles) {
+            return null;
+        }
+        return DexSummary.create(
+            "classes.dex",
+            stringIds.size(),
+            typeIds.size(),
+            protoIds.size(),
+            fieldRefs.size(),
+            methodRefs.size(),
+            classCount);
+    }
+
+    @Override
+    public void close() {
+        // no-op
+    }
+
+    private static final class ClassSize {
+        final String descriptor;
+        final int codeBytes;
+        final int stringBytes;
+        final int annotationBytes;
+        final int debugInfoBytes;
+
+        ClassSize(String descriptor, int codeBytes, int stringBytes, int annotationBytes, int debugInfoBytes) {
+            this.descriptor = descriptor;
+            this.codeBytes = codeBytes;
+            this.stringBytes = stringBytes;
+            this.annotationBytes = annotationBytes;
+            this.debugInfoBytes = debugInfoBytes;
+        }
+    }
+
+    private static final class ClassRefs {
+        final String descriptor;
+        final int[] methodIndices;
+        final int[] fieldIndices;
+
+        ClassRefs(String descriptor, int[] methodIndices, int[] fieldIndices) {
+            this.descriptor = descriptor;
+            this.methodIndices = methodIndices;
+            this.fieldIndices = fieldIndices;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.getkeepsafe.dexcount.source;
+
+import com.android.dexdeps.FieldRef;
+import com.android.dexdeps.MethodRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compares the refs counted by two engines - say, D8 and a reading of the
+ * class files it was given - and lists those only one of them found.
+ */
+public final class RefSetDiff {
+    private final String expectedName;
+    private final String actualName;
+    private final Set<MethodRef> expectedMethods = new LinkedHashSet<>();
+    private final Set<FieldRef> expectedFields = new LinkedHashSet<>();
+    private final Set<MethodRef> actualMethods = new LinkedHashSet<>();
+    private final Set<FieldRef> actualFields = new LinkedHashSet<>();
+
+    /**
+     * @param expectedName what to call the engine whose refs are taken as correct
+     * @param actualName   what to call the engine being checked against it
+     */
+    public RefSetDiff(String expectedName, String actualName) {
+        this.expectedName = expectedName;
+        this.actualName = actualName;
+    }
+
+    public void addExpected(SourceFile source) {
+        source.forEachRef(expectedMethods::add, expectedFields::add);
+    }
+
+    public void addActual(SourceFile source) {
+        source.forEachRef(actualMethods::add, actualFields::add);
+    }
+
+    public boolean isEmpty() {
+        return expectedMethods.equals(actualMethods) && expectedFields.equals(actualFields);
+    }
+
+    /**
+     * Writes the totals each engine found, followed by every ref that
+     * only one of them found, one per line.
+     */
+    public void print(Appendable out) throws IOException {
+        out.append(String.format("%s: %d methods, %d fields\n", expectedName, expectedMethods.size(), expectedFields.size()));
+        out.append(String.format("%s: %d methods, %d fields\n", actualName, actualMethods.size(), actualFields.size()));
+        printMissing(out, expectedName, expectedMethods, expectedFields, actualMethods, actualFields);
+        printMissing(out, actualName, actualMethods, actualFields, expectedMethods, expectedFields);
+    }
+
+    private static void printMissing(
+            Appendable out,
+            String name,
+            Set<MethodRef> methods,
+            Set<FieldRef> fields,
+            Set<MethodRef> otherMethods,
+            Set<FieldRef> otherFields) throws IOException {
+        List<String> missingMethods = new ArrayList<>();
+        for (MethodRef ref : methods) {
+            if (!otherMethods.contains(ref)) {
+                missingMethods.add(ref.getDeclClassName() + "->" + ref.getName() + ref.getDescriptor());
+            }
+        }
+
+        List<String> missingFields = new ArrayList<>();
+        for (FieldRef ref : fields) {
+            if (!otherFields.contains(ref)) {
+                missingFields.add(ref.getDeclClassName() + "->" + ref.getName() + ":" + ref.getTypeName());
+            }
+        }
+
+        if (missingMethods.isEmpty() && missingFields.isEmpty()) {
+            return;
+        }
+
+        missingMethods.sort(Comparator.naturalOrder());
+        missingFields.sort(Comparator.naturalOrder());
+
+        out.append(String.format("\nOnly in %s (%d methods, %d fields):\n", name, missingMethods.size(), missingFields.size()));
+        for (String ref : missingMethods) {
+            out.append("  ").append(ref).append('\n');
+        }
+        for (String ref : missingFields) {
+            out.append("  ").append(ref).append('\n');
+        }
+    }
+}
@@ -17,11 +17,102 @@ package com.getkeepsafe.dexcount.source;
 
 import com.android.dexdeps.FieldRef;
 import com.android.dexdeps.MethodRef;
+import com.getkeepsafe.dexcount.DexSummary;
 
 import java.io.Closeable;
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface SourceFile extends Closeable {
+    /**
+     * Returns the refs of this source.  Like the refs the forEach methods
+     * hand out, they may be kept after this source is closed, and keep
+     * nothing else of it alive.
+     */
     List<MethodRef> getMethodRefs();
     List<FieldRef> getFieldRefs();
+
+    /**
+     * Hands each method ref and then each field ref to the given consumers.
+     * Sources that can stream their refs override this so that no
+     * intermediate lists are built.
+     *
+     * The refs this and the other forEach methods hand out may be kept
+     * after this source is closed, and keep nothing else of it alive.
+     */
+    default void forEachRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer) {
+        getMethodRefs().forEach(methodConsumer);
+        getFieldRefs().forEach(fieldConsumer);
+    }
+
+    /**
+     * Hands each method and field that this source declares, as opposed to
+     * merely references, to the given consumers.
+     */
+    void forEachDeclaredRef(Consumer<MethodRef> methodConsumer, Consumer<FieldRef> fieldConsumer);
+
+    /**
+     * Hands each method that at least one invoke instruction of this
+     * source calls to the given consumer, once.  Sources without code have
+     * nothing to report.
+     */
+    default void forEachInvokedRef(Consumer<MethodRef> consumer) {
+    }
+
+    /**
+     * Hands the descriptor of each type this source treats as internal -
+     * the classes it defines, plus array types - to the given consumer.
+     * Members of any type that no source of an input reports are external,
+     * i.e. provided by the platform.
+     */
+    default void forEachInternalType(Consumer<String> consumer) {
+    }
+
+    /**
+     * Hands the number of dex bytes taken up by each class this source
+     * defines to the given consumer.  Sources that aren't dex files have
+     * nothing to report.
+     */
+    default void forEachClassSize(ClassSizeConsumer consumer) {
+    }
+
+    /**
+     * Hands each class this source defines to the given consumer, along
+     * with the methods and fields a dex file holding it has to have IDs
+     * for: those it declares, and those its code calls or accesses.  They
+     * are given as positions in the order {@link #forEachRef} reports refs
+     * in, sorted and without duplicates.  Sources that aren't dex files
+     * have nothing to report.
+     */
+    default void forEachClassRefs(ClassRefsConsumer consumer) {
+    }
+
+    /**
+     * Hands each entry of this source's string, type and proto ID tables to
+     * the given consumers: strings as they are, types as descriptors, and
+     * protos as method descriptors, e.g. {@code (ILjava/lang/String;)V}.
+     * Enough to work out the sizes of those tables were several sources
+     * merged into one dex file.  Sources that aren't dex files have
+     * nothing to report.
+     */
+    default void forEachId(Consumer<String> stringConsumer, Consumer<String> typeConsumer, Consumer<String> protoConsumer) {
+    }
+
+    /**
+     * Returns the sizes of this source's ID tables, as recorded in its dex
+     * header, or null if it isn't a dex file.
+     */
+    default DexSummary getSummary() {
+        return null;
+    }
+
+    @FunctionalInterface
+    interface ClassSizeConsumer {
+        void accept(String descriptor, int codeBytes, int stringBytes, int annotationBytes, int debugInfoBytes);
+    }
+
+    @FunctionalInterface
+    interface ClassRefsConsumer {
+        void accept(String descriptor, int[] methodIndices, int[] fieldIndices);
+    }
 }
@@ -17,35 +17,55 @@ package com.getkeepsafe.dexcount.source;
 
 import com.android.dexdeps.FieldRef;
 import com.android.dexdeps.MethodRef;
+import com.android.dexdeps.StringPool;
+import com.android.tools.r8.ArchiveClassFileProvider;
+import com.android.tools.r8.ByteDataView;
 import com.android.tools.r8.CompilationFailedException;
 import com.android.tools.r8.D8;
 import com.android.tools.r8.D8Command;
+import com.android.tools.r8.DexFilePerClassFileConsumer;
+import com.android.tools.r8.DiagnosticsHandler;
 import com.android.tools.r8.OutputMode;
+import com.android.tools.r8.Version;
+import com.android.tools.r8.origin.Origin;
+import com.android.dexdeps.DexData;
 import com.getkeepsafe.dexcount.DexCountException;
-import javassist.ByteArrayClassPath;
-import javassist.ClassPool;
-import javassist.CtBehavior;
-import javassist.CtClass;
-import javassist.CtConstructor;
-import javassist.CtMethod;
-import javassist.NotFoundException;
+import com.getkeepsafe.dexcount.DexSummary;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -53,6 +73,7 @@ import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 public class SourceFiles {
     private static final Pattern CLASSES_DEX = Pattern.compile("(.*/)*classes.*\\.dex");
@@ -64,27 +85,436 @@ public class SourceFiles {
     }
 
     public static List<SourceFile> extractDexData(File file) throws IOException {
+        return extractDexData(file, null);
+    }
+
+    /**
+     * Reads the dex files in the given input, taking any that are unchanged
+     * since the last run from the given cache, if there is one, and adding
+     * any that aren't.
+     *
+     * Only a bare dex file, or the STORED entries of an APK or bundle, are
+     * parsed in place from a mapping of the input (and not even those on
+     * Windows; see {@link MappedZip}).  Compressed entries are inflated,
+     * and the dex files D8 writes for an AAR read, onto the heap.
+     *
+     * Each dex file is loaded on the calling thread alone.
+     */
+    public static List<SourceFile> extractDexData(File file, DexCache cache) throws IOException {
+        return extractDexData(file, cache, null);
+    }
+
+    /**
+     * Reads the dex files in the given input, loading large ones with the
+     * help of the given executor, if there is one.
+     */
+    private static List<SourceFile> extractDexData(File file, DexCache cache, ExecutorService executor) throws IOException {
         if (file == null || !file.exists()) {
             return Collections.emptyList();
         }
 
+        // The dex files of one input share most of their descriptors, so
+        // they all decode strings through the same pool.
+        StringPool stringPool = new StringPool();
+
         // AAR files need special treatment
         if (file.getName().endsWith(".aar")) {
-            return extractDexFromAar(file);
+            return Collections.unmodifiableList(extractDexFromAar(file, stringPool, cache, executor));
+        }
+
+        try {
+            return extractDexFromZip(file, stringPool, cache, executor);
+        } catch (ZipException ignored) {
+            // not a zip, no problem
+        }
+
+        ByteBuffer buffer = map(file);
+        String key = cache != null ? DexCache.keyOf(buffer) : null;
+        List<SourceFile> cached = key != null ? cache.get(key, file.getName()) : null;
+        if (cached != null) {
+            return Collections.unmodifiableList(cached);
+        }
+
+        return Collections.unmodifiableList(readDexFiles(file.getName(), buffer, stringPool, cache, key, executor));
+    }
+
+    /**
+     * Reads the dex files in the given input like
+     * {@link #extractDexData(File, DexCache)}, but rather than returning
+     * them all at once, hands each to the given consumer, in input order,
+     * and closes it as soon as the consumer is done with it.
+     *
+     * The dex files of an APK or bundle are parsed on up to
+     * {@code maxInFlight} worker threads while the calling thread consumes
+     * them.  Parsing runs no more than {@code maxInFlight} zip entries
+     * ahead of the one being consumed, so however many dex files the input
+     * has, only that many are in memory at once.
+     *
+     * Large dex files have their sections loaded concurrently, on the same
+     * {@code maxInFlight} threads, so that the input never takes more of
+     * the machine than that however it is laid out.
+     */
+    public static void streamDexData(
+            File file,
+            DexCache cache,
+            int maxInFlight,
+            Consumer<SourceFile> consumer) throws IOException {
+        if (file == null || !file.exists()) {
+            return;
+        }
+
+        int threads = Math.max(maxInFlight, 1);
+        ForkJoinPool executor = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("dexcount-dex-reader-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+
+        try {
+            ZipFile zip = file.getName().endsWith(".aar") ? null : openZip(file);
+            if (zip == null) {
+                // AARs are dexed as a whole, and a bare dex file is just the
+                // one buffer, so there is nothing to overlap.
+                consumeAll(extractDexData(file, cache, executor), consumer);
+                return;
+            }
+
+            try (zip) {
+                streamDexFromZip(file, zip, new StringPool(), cache, executor, threads, consumer);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ZipFile openZip(File file) throws IOException {
+        try {
+            return new ZipFile(file);
+        } catch (ZipException ignored) {
+            // not a zip, no problem
+            return null;
+        }
+    }
+
+    private static void streamDexFromZip(
+            File file,
+            ZipFile zip,
+            StringPool stringPool,
+            DexCache cache,
+            ExecutorService executor,
+            int maxInFlight,
+            Consumer<SourceFile> consumer) throws IOException {
+        MappedZip mappedZip = MappedZip.map(file);
+        List<ZipEntry> entries = zip.stream()
+            .filter(entry -> CLASSES_DEX.matcher(entry.getName()).matches())
+            .collect(Collectors.toList());
+
+        // Futures of the entries being parsed, or parsed but not yet
+        // consumed, in input order.
+        Deque<Future<List<SourceFile>>> inFlight = new ArrayDeque<>(maxInFlight);
+        AtomicBoolean abandoned = new AtomicBoolean();
+        int next = 0;
+        try {
+            while (next < entries.size() || !inFlight.isEmpty()) {
+                while (next < entries.size() && inFlight.size() < maxInFlight) {
+                    ZipEntry entry = entries.get(next++);
+                    inFlight.add(executor.submit(() -> abandoned.get()
+                        ? Collections.<SourceFile>emptyList()
+                        : readZipEntry(zip, mappedZip, entry, stringPool, cache, executor)));
+                }
+
+                consumeAll(await(inFlight.remove()), consumer);
+            }
+        } finally {
+            // Consuming an earlier entry failed.  Parses that haven't started
+            // yet skip their entry; the ones that have are waited for, so
+            // that none of them is still reading from the zip once it is
+            // closed, and what they opened is closed.
+            abandoned.set(true);
+            for (Future<List<SourceFile>> future : inFlight) {
+                closeQuietly(future);
+            }
+        }
+    }
+
+    /**
+     * Waits for a parse that is no longer wanted, and closes the dex files
+     * it opened, if any.
+     */
+    private static void closeQuietly(Future<List<SourceFile>> future) {
+        try {
+            future.get().forEach(IOUtils::closeQuietly);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException ignored) {
+            // Nothing was opened.
+        }
+    }
+
+    private static void consumeAll(List<SourceFile> sources, Consumer<SourceFile> consumer) {
+        try {
+            sources.forEach(consumer);
+        } finally {
+            sources.forEach(IOUtils::closeQuietly);
+        }
+    }
+
+    private static List<SourceFile> await(Future<List<SourceFile>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DexCountException("Interrupted while reading dex files", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new DexCountException("Error loading dex file", cause);
+        }
+    }
+
+    /**
+     * Parses the dex files in the given buffer, with the help of the given
+     * executor if there is one, and records them in the cache under the
+     * given key, if there is one.
+     */
+    private static List<SourceFile> readDexFiles(
+            String name,
+            ByteBuffer buffer,
+            StringPool stringPool,
+            DexCache cache,
+            String key,
+            ExecutorService executor) {
+        List<DexFile> dexFiles = DexFile.fromBuffer(name, buffer, stringPool, executor);
+        if (key == null) {
+            return new ArrayList<>(dexFiles);
+        }
+        return cache.put(key, dexFiles);
+    }
+
+    /**
+     * Reads the ID-table sizes of each dex file in the given input from the
+     * dex headers alone, without parsing any of the tables.
+     *
+     * AAR files have no dex files of their own, so they are still dexed
+     * and loaded in full.
+     */
+    public static List<DexSummary> extractDexSummaries(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            return Collections.emptyList();
+        }
+
+        if (file.getName().endsWith(".aar")) {
+            List<DexFile> dexFiles = extractDexFromAar(file, new StringPool(), null);
+            try {
+                return dexFiles.stream().map(DexFile::getSummary).collect(Collectors.toList());
+            } finally {
+                dexFiles.forEach(DexFile::close);
+            }
         }
 
         try {
-            return extractDexFromZip(file);
+            return extractDexSummariesFromZip(file);
         } catch (ZipException ignored) {
             // not a zip, no problem
         }
 
-        return Collections.singletonList(new DexFile(file, false));
+        // Mapping the whole file, where we do, costs nothing until the pages
+        // are touched, and only the headers will be.
+        return DexFile.readSummaries(file.getName(), map(file));
+    }
+
+    /**
+     * Maps the given file, or reads it onto the heap where mapping it would
+     * lock it until the mapping is garbage collected.
+     */
+    private static ByteBuffer map(File file) throws IOException {
+        if (MappedZip.MAPPING_LOCKS_FILE) {
+            return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new DexCountException("Dex file is too large to map: " + file);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Dexes the given AAR's classes, or reads the refs of the dex files
+     * they were dexed into from the given cache, if there is one.  The
+     * cache key covers everything D8's output depends on: the contents of
+     * classes.jar, the minSdk it is dexed for, and the version of D8 - so
+     * the cache can be shared by every variant and project that packages
+     * the same classes.
+     */
+    private static List<SourceFile> extractDexFromAar(
+            File file, StringPool stringPool, DexCache cache, ExecutorService executor) throws IOException {
+        AarClasses classes = extractAarClasses(file);
+        try {
+            String key = cache != null ? classes.cacheKey() : null;
+            List<SourceFile> cached = key != null ? cache.get(key, "classes.dex") : null;
+            if (cached != null) {
+                return cached;
+            }
+
+            List<DexFile> dexFiles = dexAarClasses(classes, stringPool, executor);
+            return key != null ? cache.put(key, dexFiles) : new ArrayList<>(dexFiles);
+        } finally {
+            FileUtils.deleteQuietly(classes.classesJar);
+        }
     }
 
-    private static List<SourceFile> extractDexFromAar(File file) throws IOException {
+    /**
+     * Dexes each of the given AAR's classes on its own, and returns the refs
+     * of them all as though they had been dexed together.  The refs of each
+     * class's dex output are cached by the contents of the class and of its
+     * supertypes in the AAR (along with the minSdk and the version of D8),
+     * so with a cache, only the classes that changed since it was last used
+     * - or whose supertypes did - are dexed again.  The rest of the AAR's
+     * classes are on D8's classpath while they are.  The cache has to
+     * record ID tables, which the merged dex file is sized from.
+     *
+     * The classes D8 synthesizes while desugaring a class - for its lambdas,
+     * say, or backported APIs - are dexed along with it.  Unlike when the
+     * whole library is dexed at once, they can't be shared with other
+     * classes, so the counts can come out a little higher than D8's when
+     * several classes use the same backported API.
+     */
+    public static SourceFile extractIncrementalDexFromAar(File file, DexCache cache) throws IOException {
+        StringPool stringPool = new StringPool();
+        MergedSourceFile merged = new MergedSourceFile();
+
+        AarClasses classes = extractAarClasses(file);
+        try (ZipFile jar = new ZipFile(classes.classesJar)) {
+            Map<String, String> keys = cache != null
+                ? classes.classCacheKeys(jar, stringPool)
+                : Collections.emptyMap();
+
+            // Classes that aren't cached, by the descriptor of the class
+            // their dex output will be named after.
+            Map<String, ChangedClass> changed = new LinkedHashMap<>();
+
+            Enumeration<? extends ZipEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!isProgramClass(entry)) {
+                    continue;
+                }
+                String name = entry.getName();
+
+                String key = keys.get(name);
+                List<SourceFile> cached = key != null ? cache.get(key, name) : null;
+                if (cached != null) {
+                    merged.addAll(cached);
+                    continue;
+                }
+
+                byte[] bytes;
+                try (InputStream is = jar.getInputStream(entry)) {
+                    bytes = IOUtils.toByteArray(is);
+                }
+
+                String descriptor = "L" + name.substring(0, name.length() - ".class".length()) + ";";
+                changed.put(descriptor, new ChangedClass(name, key, bytes));
+            }
+
+            if (!changed.isEmpty()) {
+                dexClassesSeparately(classes, changed, stringPool, cache, merged);
+            }
+        } finally {
+            FileUtils.deleteQuietly(classes.classesJar);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Dexes the given classes of an AAR, each on its own, with the rest of
+     * its classes on the classpath - so that D8 sees their supertypes, and
+     * desugars them as it would were the whole AAR dexed at once.
+     */
+    private static void dexClassesSeparately(
+            AarClasses classes,
+            Map<String, ChangedClass> changed,
+            StringPool stringPool,
+            DexCache cache,
+            MergedSourceFile merged) throws IOException {
+        Set<String> changedNames = changed.values().stream()
+            .map(changedClass -> changedClass.name)
+            .collect(Collectors.toSet());
+
+        Map<String, byte[]> outputs = new ConcurrentHashMap<>();
+        try (ArchiveClassFileProvider classpath = new ArchiveClassFileProvider(
+                classes.classesJar.toPath(), name -> !changedNames.contains(name))) {
+            D8Command.Builder builder = D8Command.builder()
+                .setMinApiLevel(classes.minSdk)
+                .addClasspathResourceProvider(classpath)
+                .setIntermediate(true)
+                .setProgramConsumer(new DexFilePerClassFileConsumer() {
+                    @Override
+                    public void accept(String primaryClassDescriptor, ByteDataView data, Set<String> descriptors, DiagnosticsHandler handler) {
+                        outputs.put(primaryClassDescriptor, data.copyByteData());
+                    }
+
+                    @Override
+                    public void finished(DiagnosticsHandler handler) {
+                        // everything was handed over in accept()
+                    }
+                });
+            for (ChangedClass changedClass : changed.values()) {
+                builder.addClassProgramData(changedClass.bytes, Origin.unknown());
+            }
+
+            D8.run(builder.build());
+        } catch (CompilationFailedException e) {
+            throw new DexCountException("Failed to run D8 on an AAR", e);
+        }
+
+        for (Map.Entry<String, byte[]> output : outputs.entrySet()) {
+            ChangedClass changedClass = changed.get(output.getKey());
+            String name = changedClass != null ? changedClass.name : output.getKey();
+            String key = changedClass != null ? changedClass.key : null;
+
+            merged.addAll(readDexFiles(name, ByteBuffer.wrap(output.getValue()), stringPool, cache, key, null));
+        }
+    }
+
+    private static final class ChangedClass {
+        final String name;
+        final String key;
+        final byte[] bytes;
+
+        ChangedClass(String name, String key, byte[] bytes) {
+            this.name = name;
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    private static List<DexFile> extractDexFromAar(File file, StringPool stringPool, ExecutorService executor) throws IOException {
+        AarClasses classes = extractAarClasses(file);
+        try {
+            return dexAarClasses(classes, stringPool, executor);
+        } finally {
+            FileUtils.deleteQuietly(classes.classesJar);
+        }
+    }
+
+    /**
+     * Copies the given AAR's classes.jar out to a temp file, hashing it on
+     * the way, and reads the minSdk its classes are to be dexed for.
+     */
+    private static AarClasses extractAarClasses(File file) throws IOException {
         int minSdk = 13;
         File tempClasses = null;
+        MessageDigest digest = newSha256();
         try (ZipFile zip = new ZipFile(file)) {
             Enumeration<? extends ZipEntry> entries = zip.entries();
             while (entries.hasMoreElements()) {
@@ -105,7 +535,7 @@ public class SourceFiles {
 
                 if (CLASSES_JAR.matcher(entry.getName()).matches()) {
                     tempClasses = makeTemp(entry.getName());
-                    try (InputStream is = zip.getInputStream(entry)) {
+                    try (InputStream is = new DigestInputStream(zip.getInputStream(entry), digest)) {
                         FileUtils.copyInputStreamToFile(is, tempClasses);
                     }
                 }
@@ -116,13 +546,18 @@ public class SourceFiles {
             throw new IllegalArgumentException("No classes.jar entry found in " + file.getCanonicalPath());
         }
 
+        return new AarClasses(tempClasses, minSdk, digest);
+    }
+
+    private static List<DexFile> dexAarClasses(
+            AarClasses classes, StringPool stringPool, ExecutorService executor) throws IOException {
         Path tempDexDir = Files.createTempDirectory("dex");
         tempDexDir.toFile().deleteOnExit();
 
         try {
             D8Command command = D8Command.builder()
-                .addProgramFiles(tempClasses.toPath())
-                .setMinApiLevel(minSdk)
+                .addProgramFiles(classes.classesJar.toPath())
+                .setMinApiLevel(classes.minSdk)
                 .setOutput(tempDexDir, OutputMode.DexIndexed)
                 .build();
 
@@ -134,162 +569,398 @@ public class SourceFiles {
         try (Stream<Path> paths = Files.list(tempDexDir)) {
             return paths
                 .filter(Files::isRegularFile)
-                .map(DexFile::newTempDexFile)
+                .sorted()
+                .map(path -> DexFile.newTempDexFile(path, stringPool, executor))
                 .collect(Collectors.toList());
         }
     }
 
-    private static List<SourceFile> extractDexFromZip(File file) throws IOException {
-        List<SourceFile> results = new ArrayList<>();
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("Every JVM has SHA-256", e);
+        }
+    }
 
-        try (ZipFile zip = new ZipFile(file)) {
-            Enumeration<? extends ZipEntry> entries = zip.entries();
+    /**
+     * An AAR's classes.jar, copied out to a temp file, along with what
+     * else D8 needs to know to dex it.
+     */
+    private static final class AarClasses {
+        final File classesJar;
+        final int minSdk;
+        private final String cacheKey;
+
+        /**
+         * Finishes the given digest of classes.jar into the cache key, which
+         * is why that is worked out once, here.
+         */
+        AarClasses(File classesJar, int minSdk, MessageDigest digest) {
+            this.classesJar = classesJar;
+            this.minSdk = minSdk;
+            this.cacheKey = keyOf("aar-sha256-", digest);
+        }
+
+        String cacheKey() {
+            return cacheKey;
+        }
+
+        /**
+         * Returns the cache keys of the dex output of each class in the
+         * given copy of classes.jar, were it dexed on its own, by entry
+         * name.  D8's output for a class depends on its supertypes as well
+         * - on the default methods of the interfaces it implements, say -
+         * so each key covers the contents of the class and, in turn, the
+         * keys of its superclass and interfaces in the jar.
+         *
+         * A class whose supertypes in the jar go round in a cycle, which
+         * D8 will reject anyway, has no key, and so is never cached.
+         */
+        Map<String, String> classCacheKeys(ZipFile jar, StringPool stringPool) throws IOException {
+            Map<String, ClassHash> hashes = new HashMap<>();
+
+            Enumeration<? extends ZipEntry> entries = jar.entries();
             while (entries.hasMoreElements()) {
                 ZipEntry entry = entries.nextElement();
-                if (!CLASSES_DEX.matcher(entry.getName()).matches()) {
+                if (!isProgramClass(entry)) {
                     continue;
                 }
 
-                File temp = makeTemp(entry.getName());
-                try (InputStream is = zip.getInputStream(entry)) {
-                    FileUtils.copyInputStreamToFile(is, temp);
+                byte[] bytes;
+                try (InputStream is = jar.getInputStream(entry)) {
+                    bytes = IOUtils.toByteArray(is);
                 }
 
-                results.add(new DexFile(temp, true));
+                ClassHash hash = new ClassHash(entry.getName(), newSha256().digest(bytes));
+                ClassFileReader.read(new ByteArrayInputStream(bytes), stringPool, false, new ClassFileReader.Visitor() {
+                    @Override
+                    public void visitClass(String descriptor) {
+                        hashes.put(descriptor, hash);
+                    }
+
+                    @Override
+                    public void visitSupertype(String descriptor) {
+                        hash.supertypes.add(descriptor);
+                    }
+                });
+            }
+
+            Map<String, String> keys = new HashMap<>();
+            for (ClassHash hash : hashes.values()) {
+                byte[] withSupertypes = hash.withSupertypes(hashes);
+                if (withSupertypes == null) {
+                    continue;
+                }
+                MessageDigest classDigest = newSha256();
+                classDigest.update(withSupertypes);
+                keys.put(hash.name, keyOf("class-sha256-", classDigest));
             }
+            return keys;
         }
 
-        return results;
+        private String keyOf(String prefix, MessageDigest digest) {
+            String parameters = "\0" + minSdk + "\0" + Version.getVersionString();
+            digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder sb = new StringBuilder(prefix);
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        }
     }
 
-    public static SourceFile extractJarFromAar(File aar) throws IOException {
-        File tempClassesJar = null;
-        try (ZipFile zip = new ZipFile(aar)) {
+    /**
+     * The hash of a class file in an AAR, and of it along with its
+     * supertypes in the AAR once that is worked out - or null, if they
+     * lead into a cycle.
+     */
+    private static final class ClassHash {
+        final String name;
+        final byte[] contents;
+        final List<String> supertypes = new ArrayList<>();
+
+        private byte[] withSupertypes;
+        private boolean inProgress;
+        private boolean done;
+
+        ClassHash(String name, byte[] contents) {
+            this.name = name;
+            this.contents = contents;
+        }
+
+        byte[] withSupertypes(Map<String, ClassHash> hashes) {
+            if (inProgress) {
+                // Back where we started: a cycle.  Every class on it, and
+                // every class that leads into it, comes out as null
+                // whichever of them is reached first.
+                return null;
+            }
+            if (!done) {
+                inProgress = true;
+                MessageDigest digest = newSha256();
+                digest.update(contents);
+                boolean cyclic = false;
+                for (String supertype : supertypes) {
+                    ClassHash superHash = hashes.get(supertype);
+                    if (superHash == null) {
+                        continue;
+                    }
+                    byte[] superWithSupertypes = superHash.withSupertypes(hashes);
+                    if (superWithSupertypes == null) {
+                        cyclic = true;
+                    } else {
+                        digest.update(superWithSupertypes);
+                    }
+                }
+                withSupertypes = cyclic ? null : digest.digest();
+                inProgress = false;
+                done = true;
+            }
+            return withSupertypes;
+        }
+    }
+
+    private static List<SourceFile> extractDexFromZip(
+            File file, StringPool stringPool, DexCache cache, ExecutorService executor) throws IOException {
+        List<SourceFile> results = new ArrayList<>();
+
+        try (ZipFile zip = new ZipFile(file)) {
+            MappedZip mappedZip = MappedZip.map(file);
+
             Enumeration<? extends ZipEntry> entries = zip.entries();
             while (entries.hasMoreElements()) {
                 ZipEntry entry = entries.nextElement();
-
-                if (!CLASSES_JAR.matcher(entry.getName()).matches()) {
+                if (!CLASSES_DEX.matcher(entry.getName()).matches()) {
                     continue;
                 }
 
-                tempClassesJar = makeTemp(entry.getName());
-                try (InputStream is = zip.getInputStream(entry)) {
-                    FileUtils.copyInputStreamToFile(is, tempClassesJar);
-                }
+                results.addAll(readZipEntry(zip, mappedZip, entry, stringPool, cache, executor));
             }
         }
 
-        if (tempClassesJar == null) {
-            throw new IllegalArgumentException("No classes.jar entry found in " + aar.getCanonicalPath());
+        return results;
+    }
+
+    /**
+     * Reads the dex files in the given zip entry, from the cache if they
+     * are there.  Safe to call for different entries of the same zip from
+     * several threads at once.
+     */
+    private static List<SourceFile> readZipEntry(
+            ZipFile zip,
+            MappedZip mappedZip,
+            ZipEntry entry,
+            StringPool stringPool,
+            DexCache cache,
+            ExecutorService executor) throws IOException {
+        String key = cache != null ? DexCache.keyOf(entry) : null;
+        List<SourceFile> cached = key != null ? cache.get(key, entry.getName()) : null;
+        if (cached != null) {
+            return cached;
         }
 
-        return extractJarFromJar(tempClassesJar);
+        // Uncompressed entries can be parsed in place; only
+        // compressed ones need to be inflated.
+        ByteBuffer buffer = mappedZip.getStoredEntry(entry.getName());
+        if (buffer == null) {
+            buffer = readEntry(zip, entry);
+        }
+
+        return readDexFiles(entry.getName(), buffer, stringPool, cache, key, executor);
     }
 
-    public static SourceFile extractJarFromJar(File jar) throws IOException {
-        // Unzip the classes.jar file and store all .class files in this directory.
-        File classFilesDir = Files.createTempDirectory("classFilesDir").toFile();
-        classFilesDir.deleteOnExit();
+    private static List<DexSummary> extractDexSummariesFromZip(File file) throws IOException {
+        List<DexSummary> results = new ArrayList<>();
 
-        final Path classFilesPath = classFilesDir.toPath();
+        try (ZipFile zip = new ZipFile(file)) {
+            MappedZip mappedZip = MappedZip.map(file);
 
-        try (ZipFile zip = new ZipFile(jar)) {
-            zip.stream().filter(it -> it.getName().endsWith(".class")).forEach(entry -> {
-                String fileName = entry.getName();
-                File file = new File(classFilesDir, fileName);
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!CLASSES_DEX.matcher(entry.getName()).matches()) {
+                    continue;
+                }
 
-                try {
-                    FileUtils.createParentDirectories(file);
-                    try (InputStream is = zip.getInputStream(entry)) {
-                        FileUtils.copyInputStreamToFile(is, file);
-                    }
-                } catch (IOException e) {
-                    throw new DexCountException("Failed to unzip a classes.jar file");
+                ByteBuffer buffer = mappedZip.getStoredEntry(entry.getName());
+                if (buffer == null) {
+                    buffer = readEntryHeader(zip, entry);
                 }
-            });
+
+                results.addAll(DexFile.readSummaries(entry.getName(), buffer));
+            }
         }
 
-        ClassPool classPool = new ClassPool();
-        classPool.appendSystemPath();
+        return results;
+    }
 
-        List<CtClass> classes = new ArrayList<>();
-        Files.walkFileTree(classFilesDir.toPath(), new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (!attrs.isRegularFile()) {
-                    return FileVisitResult.CONTINUE;
-                }
+    /**
+     * Inflates the given entry straight into memory, so that it can be
+     * parsed without first being written out to a temp file.
+     */
+    private static ByteBuffer readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+        try (InputStream is = zip.getInputStream(entry)) {
+            long size = entry.getSize();
+            byte[] bytes = size >= 0 ? IOUtils.toByteArray(is, size) : IOUtils.toByteArray(is);
+            return ByteBuffer.wrap(bytes);
+        }
+    }
 
-                String qualifiedClassName = classFilesPath.relativize(file)
-                    .toFile()
-                    .getPath()
-                    .replace('/', '.')
-                    .replace(".class", "");
+    /**
+     * Inflates only as much of the given entry as makes up a dex header -
+     * unless it turns out to be a dex v041 container, whose other headers
+     * are spread throughout, in which case all of it is inflated.
+     */
+    private static ByteBuffer readEntryHeader(ZipFile zip, ZipEntry entry) throws IOException {
+        ByteBuffer header;
+        try (InputStream is = zip.getInputStream(entry)) {
+            byte[] bytes = new byte[DexData.HEADER_SIZE];
+            int read = IOUtils.read(is, bytes);
+            header = ByteBuffer.wrap(bytes, 0, read);
+        }
 
-                ByteArrayClassPath cp = new ByteArrayClassPath(qualifiedClassName, Files.readAllBytes(file));
-                classPool.appendClassPath(cp);
+        return DexData.isContainer(header) ? readEntry(zip, entry) : header;
+    }
 
-                try {
-                    classes.add(classPool.get(qualifiedClassName));
-                } catch (NotFoundException e) {
-                    throw new AssertionError("We literally just added this class to the pool", e);
+    /**
+     * Estimates the refs D8 would produce from the given AAR's classes.jar
+     * by reading its class files directly, which is much faster than
+     * dexing them.  See {@link ClassFileRefs} for where the two differ.
+     */
+    public static SourceFile extractClassFileRefsFromAar(File aar) throws IOException {
+        StringPool stringPool = new StringPool();
+        ClassFileRefs.Builder builder = new ClassFileRefs.Builder();
+        boolean foundClassesJar = false;
+
+        try (ZipFile zip = new ZipFile(aar)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!CLASSES_JAR.matcher(entry.getName()).matches()) {
+                    continue;
                 }
 
-                return FileVisitResult.CONTINUE;
+                foundClassesJar = true;
+                try (InputStream is = zip.getInputStream(entry);
+                     ZipInputStream jar = new ZipInputStream(is)) {
+                    readClassFiles(jar, stringPool, true, builder);
+                }
             }
-        });
+        }
 
-        List<MethodRef> methodRefs = classes.stream().flatMap(SourceFiles::extractMethodRefs).collect(Collectors.toList());
-        List<FieldRef> fieldRefs = classes.stream().flatMap(SourceFiles::extractFieldRefs).collect(Collectors.toList());
+        if (!foundClassesJar) {
+            throw new IllegalArgumentException("No classes.jar entry found in " + aar.getCanonicalPath());
+        }
 
-        return new JarFile(methodRefs, fieldRefs);
+        return builder.build();
     }
 
-    private static Stream<MethodRef> extractMethodRefs(CtClass clazz) {
-        String declaringClass = "L" + clazz.getName().replace(".", "/") + ";";
+    private static void readClassFiles(
+            ZipInputStream jar,
+            StringPool stringPool,
+            boolean includeReferences,
+            ClassFileReader.Visitor visitor) throws IOException {
+        ZipEntry entry;
+        while ((entry = jar.getNextEntry()) != null) {
+            if (!isProgramClass(entry)) {
+                continue;
+            }
 
-        // Unfortunately, it's necessary to parse the types from the strings manually.
-        // We can't use the proper API because this requires all classes that are used
-        // in parameters and return types to be loaded in the classpath. However,
-        // that's not the case when we analyze a single jar file.
-        List<MethodRef> results = new ArrayList<>();
-        if (clazz.getClassInitializer() != null) {
-            results.add(new MethodRef(declaringClass, new String[0], "V", "<clinit>"));
+            try {
+                ClassFileReader.read(jar, stringPool, includeReferences, visitor);
+            } catch (IOException e) {
+                throw new DexCountException("Failed to read class file " + entry.getName(), e);
+            }
         }
+    }
+
+    public static SourceFile extractJarFromAar(File aar) throws IOException {
+        StringPool stringPool = new StringPool();
+        DeclaredRefs declaredRefs = new DeclaredRefs();
+        boolean foundClassesJar = false;
+
+        try (ZipFile zip = new ZipFile(aar)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!CLASSES_JAR.matcher(entry.getName()).matches()) {
+                    continue;
+                }
 
-        for (CtConstructor ctor : clazz.getDeclaredConstructors()) {
-            String[] params = parseBehaviorParameters(ctor);
-            results.add(new MethodRef(declaringClass, params, "V", "<init>"));
+                foundClassesJar = true;
+                try (InputStream is = zip.getInputStream(entry);
+                     ZipInputStream jar = new ZipInputStream(is)) {
+                    readClassFiles(jar, stringPool, false, declaredRefs);
+                }
+            }
         }
 
-        for (CtMethod method : clazz.getDeclaredMethods()) {
-            String[] params = parseBehaviorParameters(method);
-            String returnType = parseMethodReturnType(method);
-            results.add(new MethodRef(declaringClass, params, returnType, method.getName()));
+        if (!foundClassesJar) {
+            throw new IllegalArgumentException("No classes.jar entry found in " + aar.getCanonicalPath());
         }
 
-        return results.stream();
+        return new JarFile(declaredRefs.methodRefs, declaredRefs.fieldRefs);
     }
 
-    private static Stream<FieldRef> extractFieldRefs(CtClass clazz) {
-        return Arrays.stream(clazz.getDeclaredFields()).map(field -> {
-            String type = field.getFieldInfo().getDescriptor();
-            return new FieldRef(clazz.getSimpleName(), type, field.getName());
-        });
+    /**
+     * Reads the methods and fields declared by the class files of the given
+     * jar, streaming each straight out of the zip.  Only their constant
+     * pools and member tables are decoded, and nothing but the refs is
+     * kept once a class file has been read.
+     */
+    public static SourceFile extractJarFromJar(File jar) throws IOException {
+        StringPool stringPool = new StringPool();
+        DeclaredRefs declaredRefs = new DeclaredRefs();
+
+        try (ZipFile zip = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!isProgramClass(entry)) {
+                    continue;
+                }
+
+                try (InputStream is = zip.getInputStream(entry)) {
+                    ClassFileReader.read(is, stringPool, false, declaredRefs);
+                } catch (IOException e) {
+                    throw new DexCountException("Failed to read class file " + entry.getName(), e);
+                }
+            }
+        }
+
+        return new JarFile(declaredRefs.methodRefs, declaredRefs.fieldRefs);
     }
 
-    private static String[] parseBehaviorParameters(CtBehavior behavior) {
-        String signature = behavior.getSignature();
-        int startIx = signature.indexOf('(');
-        int endIx = signature.indexOf(')', startIx);
-        String parameters = signature.substring(startIx + 1, endIx);
-        return parameters.split(";");
+    /**
+     * Collects the methods and fields that class files declare.
+     */
+    private static final class DeclaredRefs implements ClassFileReader.Visitor {
+        final List<MethodRef> methodRefs = new ArrayList<>();
+        final List<FieldRef> fieldRefs = new ArrayList<>();
+
+        @Override
+        public void visitDeclaredMethod(MethodRef ref) {
+            methodRefs.add(ref);
+        }
+
+        @Override
+        public void visitDeclaredField(FieldRef ref) {
+            fieldRefs.add(ref);
+        }
     }
 
-    private static String parseMethodReturnType(CtMethod method) {
-        int ix = method.getSignature().indexOf(')');
-        return method.getSignature().substring(ix + 1);
+    /**
+     * Returns whether the given jar entry is a class file that D8 would
+     * dex, leaving out module descriptors and multi-release variants.
+     */
+    private static boolean isProgramClass(ZipEntry entry) {
+        String name = entry.getName();
+        return !entry.isDirectory()
+            && name.endsWith(".class")
+            && !name.endsWith("module-info.class")
+            && !name.startsWith("META-INF/");
     }
 
     private static File makeTemp(String pattern) {
@@ -17,6 +17,7 @@ package com.getkeepsafe.dexcount.treegen;
 
 import com.android.build.api.variant.BuiltArtifactsLoader;
 import com.getkeepsafe.dexcount.treegen.workers.AndroidWorker;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.InputFile;
@@ -34,10 +35,21 @@ public abstract class AndroidGeneratePackageTreeTask<P extends AndroidWorker.Par
     @Internal
     public abstract Property<BuiltArtifactsLoader> getLoaderProperty();
 
+    /**
+     * Where the refs of each dex file are cached between runs, so that only
+     * the dex files that changed need to be parsed again.  The cache only
+     * speeds things up and never changes the results, so it is not an
+     * output of this task.
+     */
+    @Internal
+    public abstract DirectoryProperty getDexCacheDirectoryProperty();
+
     @Override
     protected void configureParams(P params) {
         super.configureParams(params);
 
         params.getMappingFile().set(getMappingFileProperty());
+        params.getDexCacheDirectory().set(getDexCacheDirectoryProperty());
+        params.getMaxDexFilesInFlight().set(getConfigProperty().get().getMaxDexFilesInFlight());
     }
 }
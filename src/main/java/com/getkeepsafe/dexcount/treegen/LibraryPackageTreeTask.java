@@ -16,9 +16,11 @@
 package com.getkeepsafe.dexcount.treegen;
 
 import com.getkeepsafe.dexcount.treegen.workers.ApkishWorker;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.PathSensitive;
 import org.gradle.api.tasks.PathSensitivity;
 
@@ -28,6 +30,15 @@ public abstract class LibraryPackageTreeTask extends AndroidGeneratePackageTreeT
     @PathSensitive(PathSensitivity.RELATIVE)
     public abstract RegularFileProperty getAarFile();
 
+    /**
+     * Where the refs of the dex files D8 makes of an AAR's classes are
+     * cached, keyed by the classes themselves, so that every variant and
+     * project packaging the same classes runs D8 on them only once.  Like
+     * the dex cache of APKs, it never changes the results.
+     */
+    @Internal
+    public abstract DirectoryProperty getAarDexCacheDirectoryProperty();
+
     @Override
     protected Class<ApkishWorker> getWorkerClass() {
         return ApkishWorker.class;
@@ -38,5 +49,6 @@ public abstract class LibraryPackageTreeTask extends AndroidGeneratePackageTreeT
         super.configureParams(params);
 
         params.getApkishFile().set(getAarFile());
+        params.getAarDexCacheDirectory().set(getAarDexCacheDirectoryProperty());
     }
 }
@@ -17,13 +17,19 @@ package com.getkeepsafe.dexcount.treegen.workers;
 
 import com.getkeepsafe.dexcount.Deobfuscator;
 import com.getkeepsafe.dexcount.DexCountException;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
 
 import java.io.IOException;
 
 public abstract class AndroidWorker<P extends AndroidWorker.Params> extends BaseWorker<P> {
     public interface Params extends BaseWorker.Params {
         RegularFileProperty getMappingFile();
+
+        DirectoryProperty getDexCacheDirectory();
+
+        Property<Integer> getMaxDexFilesInFlight();
     }
 
     private Deobfuscator deobfuscator;
@@ -15,44 +15,184 @@
  */
 package com.getkeepsafe.dexcount.treegen.workers;
 
+import com.getkeepsafe.dexcount.AarCountingEngine;
+import com.getkeepsafe.dexcount.DexCountExtension;
+import com.getkeepsafe.dexcount.DexPackingSimulator;
+import com.getkeepsafe.dexcount.DexSummary;
 import com.getkeepsafe.dexcount.PackageTree;
+import com.getkeepsafe.dexcount.PrintOptions;
+import com.getkeepsafe.dexcount.source.DexCache;
+import com.getkeepsafe.dexcount.source.RefSetDiff;
 import com.getkeepsafe.dexcount.source.SourceFile;
 import com.getkeepsafe.dexcount.source.SourceFiles;
-import org.apache.commons.io.IOUtils;
+import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public abstract class ApkishWorker extends AndroidWorker<ApkishWorker.Params> {
     private static final Logger LOGGER = LoggerFactory.getLogger(ApkishWorker.class);
 
+    /**
+     * How big the AAR dex cache, shared by every build on the machine, may
+     * grow.  Its entries are ref tables rather than dex files, and a large
+     * library's come to a few hundred kilobytes.
+     */
+    private static final long AAR_DEX_CACHE_MAX_BYTES = 256L * 1024 * 1024;
+
     public interface Params extends AndroidWorker.Params {
         RegularFileProperty getApkishFile();
+
+        DirectoryProperty getAarDexCacheDirectory();
     }
 
+    private List<DexSummary> dexSummaries;
+    private PackageTree mainDexTree;
+    private DexPackingSimulator packingSimulator;
+    private RefSetDiff aarCountingDiff;
+
     @Override
     protected PackageTree generatePackageTree() throws IOException {
         PackageTree tree = new PackageTree(getDeobfuscator());
 
         File inputFile = getInputFile();
+        PrintOptions options = getParameters().getPrintOptions().get();
+
+        boolean isAar = inputFile.getName().endsWith(".aar");
+        DexCache cache = getDexCache(options, isAar);
+        if (options.getSimulateDexPacking()) {
+            packingSimulator = new DexPackingSimulator(getDeobfuscator());
+        }
 
-        List<SourceFile> sourceFiles = SourceFiles.extractDexData(inputFile);
-        try {
-            sourceFiles.forEach(sf -> {
-                sf.getMethodRefs().forEach(tree::addMethodRef);
-                sf.getFieldRefs().forEach(tree::addFieldRef);
+        dexSummaries = new ArrayList<>();
+        Consumer<SourceFile> counter = sf -> {
+            DexSummary summary = sf.getSummary();
+            if (summary != null) {
+                dexSummaries.add(summary);
+            }
+
+            addToTree(tree, sf, options);
+            if (summary != null && summary.isMainDex()) {
+                mainDexTree = new PackageTree(getDeobfuscator());
+                addToTree(mainDexTree, sf, options);
+            }
+            if (packingSimulator != null) {
+                DexPackingSimulator.Dex dex = packingSimulator.newDex(summary != null && summary.isMainDex());
+                sf.forEachRef(dex::addMethodRef, dex::addFieldRef);
+                sf.forEachClassRefs(dex::addClass);
+            }
+        };
+
+        AarCountingEngine engine = isAar ? options.getAarCountingEngine() : AarCountingEngine.D8;
+        if (engine == AarCountingEngine.CLASS_FILES) {
+            try (SourceFile sf = SourceFiles.extractClassFileRefsFromAar(inputFile)) {
+                counter.accept(sf);
+            }
+        } else if (engine == AarCountingEngine.D8_PER_CLASS) {
+            try (SourceFile sf = SourceFiles.extractIncrementalDexFromAar(inputFile, cache)) {
+                counter.accept(sf);
+            }
+        } else {
+            RefSetDiff diff = engine == AarCountingEngine.VERIFY ? new RefSetDiff("D8", "class files") : null;
+
+            // Each dex file is counted and let go of before later ones are
+            // read, so that only a few are ever held in memory at once.
+            int maxInFlight = getParameters().getMaxDexFilesInFlight().getOrElse(DexCountExtension.DEFAULT_MAX_DEX_FILES_IN_FLIGHT);
+            SourceFiles.streamDexData(inputFile, cache, maxInFlight, sf -> {
+                counter.accept(sf);
+                if (diff != null) {
+                    diff.addExpected(sf);
+                }
             });
-        } finally {
-            sourceFiles.forEach(IOUtils::closeQuietly);
+
+            if (diff != null) {
+                try (SourceFile sf = SourceFiles.extractClassFileRefsFromAar(inputFile)) {
+                    diff.addActual(sf);
+                }
+                aarCountingDiff = diff;
+            }
+        }
+
+        if (cache != null && isAar) {
+            cache.pruneLeastRecentlyUsed(AAR_DEX_CACHE_MAX_BYTES);
+        } else if (cache != null) {
+            cache.pruneUnused();
         }
 
         return tree;
     }
 
+    private static void addToTree(PackageTree tree, SourceFile sf, PrintOptions options) {
+        sf.forEachRef(tree::addMethodRef, tree::addFieldRef);
+        sf.forEachInternalType(tree::addInternalType);
+        if (options.getPrintDeclarations()) {
+            sf.forEachDeclaredRef(tree::addDeclaredMethodRef, tree::addDeclaredFieldRef);
+            sf.forEachInvokedRef(tree::addInvokedMethodRef);
+        }
+        if (options.getIncludeByteCount()) {
+            sf.forEachClassSize(tree::addClassSize);
+        }
+    }
+
+    @Override
+    protected List<DexSummary> getDexSummaries() {
+        return dexSummaries;
+    }
+
+    @Override
+    protected PackageTree getMainDexTree() {
+        return mainDexTree;
+    }
+
+    @Override
+    protected DexPackingSimulator getPackingSimulator() {
+        return packingSimulator;
+    }
+
+    @Override
+    protected RefSetDiff getAarCountingDiff() {
+        return aarCountingDiff;
+    }
+
+    /**
+     * Returns the cache to read dex files from.  An AAR's dex files come
+     * from running D8 on it, which is slow enough that they are cached
+     * for every build on the machine; those of an APK or bundle only need
+     * to be parsed, and are cached for this task alone.
+     */
+    private DexCache getDexCache(PrintOptions options, boolean isAar) {
+        if (isAar && options.getAarCountingEngine() == AarCountingEngine.CLASS_FILES) {
+            return null;
+        }
+
+        DirectoryProperty directory = isAar
+            ? getParameters().getAarDexCacheDirectory()
+            : getParameters().getDexCacheDirectory();
+        if (!directory.isPresent()) {
+            return null;
+        }
+        // Classes dexed one at a time are counted as one dex file, which
+        // is sized from their ID tables.
+        boolean perClass = isAar && options.getAarCountingEngine() == AarCountingEngine.D8_PER_CLASS;
+        return new DexCache(
+            directory.get().getAsFile(),
+            options.getPrintDeclarations(),
+            options.getIncludeByteCount(),
+            options.getSimulateDexPacking(),
+            perClass);
+    }
+
+    @Override
+    protected List<DexSummary> generateDexSummaries() throws IOException {
+        return SourceFiles.extractDexSummaries(getInputFile());
+    }
+
     private File getInputFile() {
         return getParameters().getApkishFile().getAsFile().get();
     }
@@ -17,8 +17,11 @@ package com.getkeepsafe.dexcount.treegen.workers;
 
 import com.getkeepsafe.dexcount.DexCountException;
 import com.getkeepsafe.dexcount.DexMethodCountPlugin;
+import com.getkeepsafe.dexcount.DexPackingSimulator;
+import com.getkeepsafe.dexcount.DexSummary;
 import com.getkeepsafe.dexcount.PackageTree;
 import com.getkeepsafe.dexcount.PrintOptions;
+import com.getkeepsafe.dexcount.source.RefSetDiff;
 import com.getkeepsafe.dexcount.thrift.TreeGenOutput;
 import com.microsoft.thrifty.KtApiKt;
 import com.microsoft.thrifty.protocol.Protocol;
@@ -42,6 +45,7 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 public abstract class BaseWorker<P extends BaseWorker.Params> implements WorkAction<P> {
     public interface Params extends WorkParameters {
@@ -59,12 +63,55 @@ public abstract class BaseWorker<P extends BaseWorker.Params> implements WorkAct
     @Override
     public void execute() {
         try {
+            if (getParameters().getPrintOptions().get().getSummaryOnly()) {
+                List<DexSummary> summaries = generateDexSummaries();
+                if (summaries != null) {
+                    ensureCleanOutputDirectory();
+
+                    // Summed over dex files, a ref counts once per dex file
+                    // it's in, so these don't go in summary.csv, which
+                    // counts each ref once.
+                    writeIntermediateThriftFile(new PackageTree(), summaries);
+                    writeSummaryFile(
+                        "dex-totals.csv",
+                        DexSummary.totalMethodCount(summaries),
+                        DexSummary.totalFieldCount(summaries),
+                        DexSummary.totalClassCount(summaries));
+                    writeDexSummaryFile(summaries);
+                    return;
+                }
+            }
+
             PackageTree packageTree = generatePackageTree();
+            List<DexSummary> summaries = getDexSummaries();
+            PackageTree mainDexTree = getMainDexTree();
+            DexPackingSimulator packingSimulator = getPackingSimulator();
+            RefSetDiff aarCountingDiff = getAarCountingDiff();
 
             ensureCleanOutputDirectory();
 
-            writeIntermediateThriftFile(packageTree);
-            writeSummaryFile(packageTree);
+            writeIntermediateThriftFile(packageTree, summaries);
+            writeSummaryFile(
+                "summary.csv",
+                packageTree.getMethodCount(),
+                packageTree.getFieldCount(),
+                packageTree.getClassCount());
+            if (summaries != null && !summaries.isEmpty()) {
+                writeDexSummaryFile(summaries);
+                writeExternalReferencesFile(packageTree);
+                if (getParameters().getPrintOptions().get().getPrintDeclarations()) {
+                    writeUninvokedMethodsFile(packageTree);
+                }
+            }
+            if (mainDexTree != null) {
+                writeMainDexFile(mainDexTree);
+            }
+            if (packingSimulator != null) {
+                writeDexPackingFile(packingSimulator);
+            }
+            if (aarCountingDiff != null) {
+                writeAarCountingDiffFile(aarCountingDiff);
+            }
             writeChartFiles(packageTree);
             writeFullTree(packageTree);
         } catch (IOException e) {
@@ -77,11 +124,16 @@ public abstract class BaseWorker<P extends BaseWorker.Params> implements WorkAct
         FileUtils.forceMkdir(getOutputDirectory());
     }
 
-    private void writeIntermediateThriftFile(PackageTree packageTree) throws IOException {
-        TreeGenOutput thrift = new TreeGenOutput.Builder()
+    private void writeIntermediateThriftFile(PackageTree packageTree, List<DexSummary> summaries) throws IOException {
+        TreeGenOutput.Builder builder = new TreeGenOutput.Builder()
             .tree(PackageTree.toThrift(packageTree))
-            .inputRepresentation(getInputRepresentation())
-            .build();
+            .inputRepresentation(getInputRepresentation());
+
+        if (summaries != null) {
+            builder.dexSummaries(summaries.stream().map(DexSummary::toThrift).collect(Collectors.toList()));
+        }
+
+        TreeGenOutput thrift = builder.build();
 
         File treeFile = getParameters().getPackageTreeFile().getAsFile().get();
         FileUtils.deleteQuietly(treeFile);
@@ -96,16 +148,12 @@ public abstract class BaseWorker<P extends BaseWorker.Params> implements WorkAct
         }
     }
 
-    private void writeSummaryFile(PackageTree packageTree) throws IOException {
-        File summaryFile = new File(getOutputDirectory(), "summary.csv");
+    private void writeSummaryFile(String fileName, int methodCount, int fieldCount, int classCount) throws IOException {
+        File summaryFile = new File(getOutputDirectory(), fileName);
         FileUtils.forceMkdirParent(summaryFile);
 
         String headers = "methods,fields,classes";
-        String counts = String.format(
-            "%d,%d,%d",
-            packageTree.getMethodCount(),
-            packageTree.getFieldCount(),
-            packageTree.getClassCount());
+        String counts = String.format("%d,%d,%d", methodCount, fieldCount, classCount);
 
         try (BufferedWriter writer = Files.newBufferedWriter(summaryFile.toPath())) {
             writer.append(headers).append('\n');
@@ -113,6 +161,103 @@ public abstract class BaseWorker<P extends BaseWorker.Params> implements WorkAct
         }
     }
 
+    /**
+     * Writes the size of each ID table of each dex file, and how many more
+     * entries it has room for.
+     */
+    private void writeDexSummaryFile(List<DexSummary> summaries) throws IOException {
+        File dexSummaryFile = new File(getOutputDirectory(), "dex-summary.csv");
+        FileUtils.forceMkdirParent(dexSummaryFile);
+
+        String headers = "dex,methods,methodsRemaining,fields,fieldsRemaining,types,typesRemaining,"
+            + "protos,protosRemaining,strings,stringsRemaining,classes";
+
+        try (BufferedWriter writer = Files.newBufferedWriter(dexSummaryFile.toPath())) {
+            writer.append(headers).append('\n');
+            for (DexSummary summary : summaries) {
+                writer.append(String.format("%s,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d",
+                    summary.getName(),
+                    summary.getMethodCount(), DexSummary.remaining(summary.getMethodCount()),
+                    summary.getFieldCount(), DexSummary.remaining(summary.getFieldCount()),
+                    summary.getTypeCount(), DexSummary.remaining(summary.getTypeCount()),
+                    summary.getProtoCount(), DexSummary.remaining(summary.getProtoCount()),
+                    summary.getStringCount(), DexSummary.remaining(summary.getStringCount()),
+                    summary.getClassCount())).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Writes how many of each package's refs point at platform types, as
+     * opposed to types defined by the input itself.
+     */
+    private void writeExternalReferencesFile(PackageTree packageTree) throws IOException {
+        PrintOptions options = getParameters().getPrintOptions().get();
+        File externalRefsFile = new File(getOutputDirectory(), "external-refs.csv");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(externalRefsFile.toPath())) {
+            packageTree.printExternalReferences(writer, options);
+        }
+    }
+
+    /**
+     * Writes the declared methods that no invoke in the input calls, by
+     * package and class.
+     */
+    private void writeUninvokedMethodsFile(PackageTree packageTree) throws IOException {
+        PrintOptions options = getParameters().getPrintOptions().get()
+            .toBuilder()
+            .setIncludeClasses(true)
+            .build();
+        File uninvokedMethodsFile = new File(getOutputDirectory(), "uninvoked-methods.txt");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(uninvokedMethodsFile.toPath())) {
+            packageTree.printUninvokedMethods(writer, options);
+        }
+    }
+
+    /**
+     * Writes the package breakdown of the main dex file alone, in the same
+     * format as the full report.
+     */
+    private void writeMainDexFile(PackageTree mainDexTree) throws IOException {
+        PrintOptions options = getParameters().getPrintOptions().get();
+        File mainDexFile = new File(getOutputDirectory(), "main-dex" + options.getOutputFormat().getExtension());
+
+        try (BufferedWriter bw = Files.newBufferedWriter(mainDexFile.toPath())) {
+            mainDexTree.print(bw, options.getOutputFormat(), options);
+        }
+    }
+
+    /**
+     * Writes the dex files the input would be packed into as it is, and
+     * with the changes asked for.
+     */
+    private void writeDexPackingFile(DexPackingSimulator packingSimulator) throws IOException {
+        PrintOptions options = getParameters().getPrintOptions().get();
+        File dexPackingFile = new File(getOutputDirectory(), "dex-packing.csv");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(dexPackingFile.toPath())) {
+            packingSimulator.printSimulation(writer, options.getSimulatedMinSdk(), options.getSimulatedRemovedPackages());
+        }
+    }
+
+    /**
+     * Writes the refs that D8 and a reading of the class files disagree
+     * on, warning if there are any.
+     */
+    private void writeAarCountingDiffFile(RefSetDiff diff) throws IOException {
+        File diffFile = new File(getOutputDirectory(), "aar-counting-diff.txt");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(diffFile.toPath())) {
+            diff.print(writer);
+        }
+
+        if (!diff.isEmpty()) {
+            getLogger().warn("Counting {} from its class files differs from D8; see {}", getInputRepresentation(), diffFile);
+        }
+    }
+
     private void writeChartFiles(PackageTree packageTree) throws IOException {
         File chartDirectory = new File(getOutputDirectory(), "chart");
         FileUtils.forceMkdir(chartDirectory);
@@ -161,6 +306,48 @@ public abstract class BaseWorker<P extends BaseWorker.Params> implements WorkAct
 
     protected abstract PackageTree generatePackageTree() throws IOException;
 
+    /**
+     * Produces per-dex totals from dex headers alone, for use when no package
+     * breakdown has been asked for.  Returns null when the input has no dex
+     * headers to read, in which case a full package tree is built instead.
+     */
+    protected List<DexSummary> generateDexSummaries() throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the ID-table sizes of the dex files read by the last call to
+     * {@link #generatePackageTree()}, or null if it read none.
+     */
+    protected List<DexSummary> getDexSummaries() {
+        return null;
+    }
+
+    /**
+     * Returns a package tree of just the main dex file read by the last
+     * call to {@link #generatePackageTree()}, or null if it read none.
+     */
+    protected PackageTree getMainDexTree() {
+        return null;
+    }
+
+    /**
+     * Returns a simulator holding the classes of the dex files read by the
+     * last call to {@link #generatePackageTree()}, or null if dex packing
+     * isn't being simulated.
+     */
+    protected DexPackingSimulator getPackingSimulator() {
+        return null;
+    }
+
+    /**
+     * Returns how the refs D8 found in the input compare with those read
+     * from its class files, or null if the two weren't compared.
+     */
+    protected RefSetDiff getAarCountingDiff() {
+        return null;
+    }
+
     protected abstract String getInputRepresentation();
 
     protected abstract Logger getLogger();
@@ -38,8 +38,7 @@ public abstract class JarWorker extends BaseWorker<JarWorker.Params> {
         PackageTree tree = new PackageTree(Deobfuscator.EMPTY);
         File jarFile = getParameters().getJarFile().getAsFile().get();
         try (SourceFile sf = SourceFiles.extractJarFromJar(jarFile)) {
-            sf.getMethodRefs().forEach(tree::addDeclaredMethodRef);
-            sf.getFieldRefs().forEach(tree::addDeclaredFieldRef);
+            sf.forEachDeclaredRef(tree::addDeclaredMethodRef, tree::addDeclaredFieldRef);
         }
         return tree;
     }
@@ -21,9 +21,55 @@ struct PackageTree {
     5: set<MethodRef> referencedMethods;
     6: set<FieldRef> declaredFields;
     7: set<FieldRef> referencedFields;
+    8: i64 codeBytes;
+    9: i64 stringBytes;
+    10: i64 annotationBytes;
+    11: i64 debugInfoBytes;
+    12: bool isInternalType;
+}
+
+struct DexSummary {
+    1: string name;
+    2: i32 stringCount;
+    3: i32 typeCount;
+    4: i32 protoCount;
+    5: i32 fieldCount;
+    6: i32 methodCount;
+    7: i32 classCount;
 }
 
 struct TreeGenOutput {
     1: PackageTree tree;
     2: string inputRepresentation;
+    3: list<DexSummary> dexSummaries;
+}
+
+/**
+ * The refs read from one dex file, kept so that the file needn't be parsed
+ * again while it is unchanged.  Every descriptor and name is an index into
+ * `strings`, and each list packs its records end to end.
+ */
+struct CachedDex {
+    1: list<string> strings;
+    2: list<i32> methods;           // class, return type, name, argument count, argument types...
+    3: list<i32> fields;            // class, type, name
+    4: list<i32> declaredMethods;   // as methods
+    5: list<i32> declaredFields;    // as fields
+    6: list<i32> classSizes;        // class, code, string, annotation and debug info bytes
+    7: bool hasDeclarations;
+    8: bool hasClassSizes;
+    9: DexSummary summary;
+    10: list<i32> internalTypes;    // descriptors of the classes it defines, and of array types
+    11: list<i32> invokedMethods;   // as methods; those that any invoke calls, kept with the declarations
+    12: list<i32> classRefs;        // class, method count, field count, then indices into methods and fields
+    13: bool hasClassRefs;
+    14: list<i32> stringIds;        // the string_ids table, as it is
+    15: list<i32> typeIds;          // the type_ids table, as descriptors
+    16: list<i32> protoIds;         // the proto_ids table, as method descriptors
+    17: bool hasIds;
+}
+
+struct DexCacheEntry {
+    1: i32 formatVersion;
+    2: list<CachedDex> dexFiles;
 }
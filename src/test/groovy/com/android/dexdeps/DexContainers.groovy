@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.dexdeps
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+
+final class DexContainers {
+    private static final int HEADER_SIZE_V41 = 0x78
+    private static final short TYPE_STRING_ID_ITEM = 0x0001
+
+    private DexContainers() {
+        throw new AssertionError('No instances')
+    }
+
+    /**
+     * Wraps a dex file in a dex v041 container of two dex files, both of
+     * which share all of its data and so have the same contents.
+     *
+     * The first header needs room for the container fields, which would
+     * overlap the string_ids table, so that table is moved to the end.
+     */
+    static byte[] containerOf(byte[] dex) {
+        def source = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN)
+        int stringIdsSize = source.getInt(0x38)
+        int stringIdsOff = source.getInt(0x3C)
+
+        int movedStringIdsOff = dex.length
+        int secondHeaderOff = movedStringIdsOff + stringIdsSize * 4
+        int containerSize = secondHeaderOff + HEADER_SIZE_V41
+
+        def out = ByteBuffer.allocate(containerSize).order(ByteOrder.LITTLE_ENDIAN)
+        out.put(dex)
+        out.put(dex, stringIdsOff, stringIdsSize * 4)
+
+        out.position(0)
+        out.put("dex\n041\0".getBytes(StandardCharsets.US_ASCII))
+        out.putInt(0x20, secondHeaderOff)       // file_size, up to the next header
+        out.putInt(0x24, HEADER_SIZE_V41)       // header_size
+        out.putInt(0x3C, movedStringIdsOff)     // string_ids_off
+        out.putInt(0x70, containerSize)         // container_size
+        out.putInt(0x74, 0)                     // header_offset
+
+        // The map_list has to agree with the header about where string_ids is.
+        int mapOff = source.getInt(0x34)
+        int mapSize = source.getInt(mapOff)
+        for (int i = 0; i < mapSize; i++) {
+            int item = mapOff + 4 + i * 12
+            if (source.getShort(item) == TYPE_STRING_ID_ITEM) {
+                out.putInt(item + 8, movedStringIdsOff)
+            }
+        }
+
+        def header = new byte[HEADER_SIZE_V41]
+        out.position(0)
+        out.get(header)
+        out.position(secondHeaderOff)
+        out.put(header)
+        out.putInt(secondHeaderOff + 0x20, HEADER_SIZE_V41)
+        out.putInt(secondHeaderOff + 0x74, secondHeaderOff)
+
+        return out.array()
+    }
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps
+
+import spock.lang.Specification
+import spock.lang.TempDir
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+import java.util.zip.ZipFile
+
+final class DexDataSpec extends Specification {
+    @TempDir
+    File tempDir
+
+    @Unroll
+    def "mapped and RandomAccessFile backends agree on #apk!#entry"() {
+        given:
+        def dexFile = extractDex(apk, entry)
+
+        when:
+        def raf = new RandomAccessFile(dexFile, "r")
+        def legacy = new DexData(raf)
+        legacy.load()
+
+        def mapped = FileChannel.open(dexFile.toPath(), StandardOpenOption.READ).withCloseable { channel ->
+            def data = new DexData(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+            data.load()
+            data
+        }
+
+        then:
+        mapped.methodRefs.length == methodCount
+        mapped.methodRefs as List == legacy.methodRefs as List
+        mapped.fieldRefs as List == legacy.fieldRefs as List
+
+        cleanup:
+        raf?.close()
+
+        where:
+        apk                         | entry          || methodCount
+        "app-debug-tools-v24.apk"   | "classes.dex"  || 3
+        "app-debug-tools-v24.apk"   | "classes2.dex" || 297
+        "tiles.apk"                 | "classes2.dex" || 370
+    }
+
+    @Unroll
+    def "heap and direct buffers load #entry identically to a file"() {
+        given:
+        def dexFile = extractDex("app-debug-tools-v24.apk", entry)
+        def bytes = dexFile.bytes
+
+        def direct = ByteBuffer.allocateDirect(bytes.length)
+        direct.put(bytes).flip()
+
+        when:
+        def raf = new RandomAccessFile(dexFile, "r")
+        def legacy = new DexData(raf)
+        legacy.load()
+
+        def fromHeap = new DexData(ByteBuffer.wrap(bytes))
+        fromHeap.load()
+
+        def fromDirect = new DexData(direct)
+        fromDirect.load()
+
+        then:
+        fromHeap.methodRefs as List == legacy.methodRefs as List
+        fromHeap.fieldRefs as List == legacy.fieldRefs as List
+        fromDirect.methodRefs as List == legacy.methodRefs as List
+        fromDirect.fieldRefs as List == legacy.fieldRefs as List
+
+        cleanup:
+        raf?.close()
+
+        where:
+        entry << ["classes.dex", "classes2.dex"]
+    }
+
+    @Unroll
+    def "parallel load of #entry matches sequential load"() {
+        given:
+        def bytes = extractDex("tiles.apk", entry).bytes
+        def pool = new ForkJoinPool(4)
+
+        when:
+        def sequential = new DexData(ByteBuffer.wrap(bytes))
+        sequential.load()
+
+        def parallel = new DexData(ByteBuffer.wrap(bytes))
+        parallel.load(pool)
+
+        then:
+        parallel.methodRefs as List == sequential.methodRefs as List
+        parallel.fieldRefs as List == sequential.fieldRefs as List
+        parallel.externalReferences*.name == sequential.externalReferences*.name
+
+        cleanup:
+        pool.shutdown()
+
+        where:
+        entry << ["classes.dex", "classes2.dex"]
+    }
+
+    def "strings decoded lazily from several threads at once come out whole"() {
+        given:
+        def bytes = extractDex("tiles.apk", "classes2.dex").bytes
+        def expected = new DexData(ByteBuffer.wrap(bytes))
+        expected.load()
+        def strings = (0..<expected.stringIdCount).collect { expected.getString(it) }
+
+        def data = new DexData(ByteBuffer.wrap(bytes))
+        data.load()
+        def pool = new ForkJoinPool(4)
+
+        when:
+        // Each task walks the strings from a different start, so that
+        // they decode different strings at the same time.
+        def decoded = pool.invokeAll((0..<4).collect { task ->
+            return {
+                def count = data.stringIdCount
+                (0..<count).collect { data.getString((it + task * count.intdiv(4)) % count) }
+            } as Callable<List<String>>
+        })*.get()
+
+        then:
+        decoded.eachWithIndex { List<String> list, int task ->
+            def count = strings.size()
+            assert list == (0..<count).collect { strings[(it + task * count.intdiv(4)) % count] }
+        }
+
+        cleanup:
+        pool.shutdown()
+    }
+
+    def "visitor streams the same ids that getMethodRefs and getFieldRefs build"() {
+        given:
+        def data = new DexData(ByteBuffer.wrap(extractDex("tiles.apk", "classes2.dex").bytes))
+        data.load()
+
+        def methodRefs = data.methodRefs as List
+        def fieldRefs = data.fieldRefs as List
+
+        def methodIndices = []
+        def fieldIndices = []
+        def externalMethods = []
+
+        when:
+        data.accept(new DexVisitor() {
+            @Override
+            void visitMethod(int methodIdx, int classIdx, int protoIdx, int nameIdx) {
+                methodIndices << methodIdx
+                if (!data.isInternalType(classIdx)) {
+                    externalMethods << methodIdx
+                }
+                assert data.getTypeName(classIdx) == methodRefs[methodIdx].declClassName
+                assert data.getString(nameIdx) == methodRefs[methodIdx].name
+                assert data.getProtoReturnType(protoIdx) == methodRefs[methodIdx].returnTypeName
+            }
+
+            @Override
+            void visitField(int fieldIdx, int classIdx, int typeIdx, int nameIdx) {
+                fieldIndices << fieldIdx
+                assert data.getTypeName(typeIdx) == fieldRefs[fieldIdx].typeName
+            }
+        })
+
+        then:
+        methodIndices == (0..<370).toList()
+        fieldIndices == (0..<data.fieldIdCount).toList()
+        externalMethods.size() == data.externalReferences.sum { it.methodArray.length }
+        (0..<370).collect { data.getMethodRef(it) } == methodRefs
+    }
+
+    def "dex-backed refs are interchangeable with plain refs"() {
+        given:
+        def data = new DexData(ByteBuffer.wrap(extractDex("tiles.apk", "classes2.dex").bytes))
+        data.load()
+
+        when:
+        def methodRefs = data.methodRefs as List
+        def fieldRefs = data.fieldRefs as List
+        def plainMethods = methodRefs.collect {
+            new MethodRef(it.declClassName, it.argumentTypeNames.clone() as String[], it.returnTypeName, it.name)
+        }
+        def plainFields = fieldRefs.collect { new FieldRef(it.declClassName, it.typeName, it.name) }
+
+        then:
+        methodRefs == plainMethods
+        plainMethods == methodRefs
+        methodRefs*.hashCode() == plainMethods*.hashCode()
+        methodRefs*.descriptor == plainMethods*.descriptor
+        fieldRefs == plainFields
+        fieldRefs*.hashCode() == plainFields*.hashCode()
+        (methodRefs as Set).size() == 370
+
+        and: "methods sharing a prototype share one argument array"
+        methodRefs.groupBy { it.descriptor }.values().every { refs ->
+            refs.every { it.argumentTypeNames.is(refs[0].argumentTypeNames) }
+        }
+    }
+
+    def "dex files sharing a string pool share their strings"() {
+        given:
+        def pool = new StringPool()
+        def first = new DexData(ByteBuffer.wrap(extractDex("tiles.apk", "classes.dex").bytes))
+        def second = new DexData(ByteBuffer.wrap(extractDex("tiles.apk", "classes2.dex").bytes))
+        first.stringPool = pool
+        second.stringPool = pool
+
+        when:
+        first.load()
+        second.load(ForkJoinPool.commonPool())
+
+        def firstClasses = first.methodRefs*.declClassName
+        def secondClasses = second.methodRefs*.declClassName
+
+        then:
+        def common = firstClasses.intersect(secondClasses)
+        !common.isEmpty()
+        common.every { name ->
+            firstClasses.find { it == name }.is(secondClasses.find { it == name })
+        }
+        pool.intern(new String("<init>")).is(first.methodRefs.find { it.name == "<init>" }.name)
+    }
+
+    def "class data yields the methods and fields each class declares"() {
+        given:
+        def data = new DexData(ByteBuffer.wrap(extractDex("tiniest-smallest-app.apk", "classes.dex").bytes))
+        data.load()
+
+        def methods = []
+        def fields = []
+
+        when:
+        data.acceptDeclarations(new DexVisitor() {
+            @Override
+            void visitDeclaredMethod(int methodIdx, int accessFlags, int codeOff) {
+                methods << data.getMethodRef(methodIdx)
+            }
+
+            @Override
+            void visitDeclaredField(int fieldIdx, int accessFlags) {
+                fields << data.getFieldRef(fieldIdx)
+            }
+        })
+
+        then:
+        methods.collect { it.declClassName + "." + it.name + it.descriptor } == [
+            "Lb/a/M;.<init>()V",
+            "Lb/a/M;.onCreate(Landroid/os/Bundle;)V",
+        ]
+        fields.isEmpty()
+    }
+
+    @Unroll
+    def "class data of #entry agrees between backends"() {
+        given:
+        def dexFile = extractDex("tiles.apk", entry)
+        def raf = new RandomAccessFile(dexFile, "r")
+        def legacy = new DexData(raf)
+        legacy.load()
+
+        def mapped = new DexData(ByteBuffer.wrap(dexFile.bytes))
+        mapped.load()
+
+        when:
+        def fromFile = declarations(legacy)
+        def fromBuffer = declarations(mapped)
+
+        then:
+        fromBuffer == fromFile
+        fromBuffer.count { it.startsWith("M") } == declaredMethods
+        fromBuffer.count { it.startsWith("F") } == declaredFields
+
+        cleanup:
+        raf?.close()
+
+        where:
+        entry          || declaredMethods | declaredFields
+        "classes.dex"  || 2               | 4
+        "classes2.dex" || 153             | 60
+    }
+
+    def "class sizes charge each class for the bytes it owns"() {
+        given:
+        def data = new DexData(ByteBuffer.wrap(extractDex("tiniest-smallest-app.apk", "classes.dex").bytes))
+        data.load()
+
+        when:
+        def sizes = classSizes(data)
+
+        then:
+        // code / strings / annotations / debug info
+        sizes == ["Lb/a/M; 90/27/0/0"]
+    }
+
+    @Unroll
+    def "class sizes of #entry agree between backends"() {
+        given:
+        def dexFile = extractDex("tiles.apk", entry)
+        def raf = new RandomAccessFile(dexFile, "r")
+        def legacy = new DexData(raf)
+        legacy.load()
+
+        def mapped = new DexData(ByteBuffer.wrap(dexFile.bytes))
+        mapped.load()
+
+        when:
+        def fromFile = classSizes(legacy)
+        def fromBuffer = classSizes(mapped)
+        def totals = [0, 0, 0, 0]
+        fromBuffer.each { line ->
+            def parts = line.split(" ")[1].split("/")
+            (0..3).each { totals[it] += parts[it] as int }
+        }
+
+        then:
+        fromBuffer == fromFile
+        fromBuffer.size() == classes
+        totals == [codeBytes, stringBytes, annotationBytes, debugInfoBytes]
+
+        cleanup:
+        raf?.close()
+
+        where:
+        entry          || classes | codeBytes | stringBytes | annotationBytes | debugInfoBytes
+        "classes.dex"  || 1       | 80        | 114         | 0               | 4
+        "classes2.dex" || 30      | 23412     | 3973        | 1620            | 6169
+    }
+
+    def "each dex file in a v041 container is read from the one buffer"() {
+        given:
+        def dex = extractDex("tiles.apk", "classes2.dex").bytes
+        def container = ByteBuffer.wrap(DexContainers.containerOf(dex))
+
+        def original = new DexData(ByteBuffer.wrap(dex))
+        original.load()
+
+        when:
+        def offsets = DexData.getHeaderOffsets(container)
+        def units = offsets.collect { offset ->
+            def data = new DexData(container, offset)
+            data.load()
+            data
+        }
+
+        then:
+        DexData.isContainer(container)
+        !DexData.isContainer(ByteBuffer.wrap(dex))
+        DexData.getHeaderOffsets(ByteBuffer.wrap(dex)) == [0] as int[]
+
+        offsets.length == 2
+        offsets[0] == 0
+        units.every { unit ->
+            unit.methodRefs == original.methodRefs && unit.fieldRefs == original.fieldRefs
+        }
+    }
+
+    def "a section inside the v041 header extension is rejected"() {
+        given:
+        def dex = extractDex("tiles.apk", "classes2.dex").bytes
+        def container = ByteBuffer.wrap(DexContainers.containerOf(dex)).order(ByteOrder.LITTLE_ENDIAN)
+        container.putInt(0x3C, DexData.HEADER_SIZE)  // string_ids_off, over container_size
+
+        def data = new DexData(container, 0)
+
+        when:
+        data.load()
+
+        then:
+        def e = thrown(DexDataException)
+        e.message.startsWith("string_ids section of ")
+        e.message.contains("at offset 112 ")
+    }
+
+    def "a method loaded by const-method-handle counts as invoked"() {
+        given:
+        def dex = extractDex("tiles.apk", "classes2.dex").bytes
+        def original = new DexData(ByteBuffer.wrap(dex))
+        original.load()
+
+        def loader = null
+        original.acceptDeclarations(new DexVisitor() {
+            @Override
+            void visitDeclaredMethod(int methodIdx, int accessFlags, int codeOff) {
+                if (loader == null && codeOff != 0 && DexMethodHandles.canLoadHandleAt(dex, codeOff)) {
+                    loader = [methodIdx, codeOff]
+                }
+            }
+        })
+        int target = original.methodIdCount - 1
+
+        def patched = new DexData(ByteBuffer.wrap(DexMethodHandles.withHandleLoadedAt(dex, loader[1], 0x04, target)))
+        patched.load()
+
+        when:
+        def before = invokes(original)
+        def after = invokes(patched)
+
+        then:
+        after.size() == before.size() + 1
+        after.contains([loader[0], target])
+        after.containsAll(before)
+    }
+
+    def "a truncated dex file is reported as such"() {
+        given:
+        def dex = extractDex("tiles.apk", "classes2.dex").bytes
+        def data = new DexData(ByteBuffer.wrap(Arrays.copyOf(dex, dex.length.intdiv(2))))
+
+        when:
+        data.load()
+
+        then:
+        def e = thrown(DexDataException)
+        e.message.startsWith("DEX file is truncated")
+    }
+
+    def "a map_list that disagrees with the header is rejected"() {
+        given:
+        def dex = extractDex("tiles.apk", "classes2.dex").bytes
+        def buffer = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN)
+        int mapOff = buffer.getInt(0x34)
+        buffer.putInt(mapOff + 4 + 12 + 4, buffer.getInt(0x38) + 1)  // string_ids follows the header
+
+        when:
+        new DexData(buffer).load()
+
+        then:
+        def e = thrown(DexDataException)
+        e.message.startsWith("map_list disagrees with the header about string_ids")
+    }
+
+    def "a string claiming more characters than the file holds fails fast in both backends"() {
+        given:
+        def dex = extractDex("tiles.apk", "classes2.dex").bytes
+        def buffer = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN)
+        int descriptorIdx = buffer.getInt(buffer.getInt(0x44))
+        int stringDataOff = buffer.getInt(buffer.getInt(0x3C) + descriptorIdx * 4)
+        [0xff, 0xff, 0xff, 0xff, 0x07].eachWithIndex { b, i -> dex[stringDataOff + i] = (byte) b }
+
+        def dexFile = new File(tempDir, "huge-string.dex")
+        dexFile.bytes = dex
+
+        when:
+        new DexData(ByteBuffer.wrap(dex)).load()
+
+        then:
+        def mappedError = thrown(DexDataException)
+        mappedError.message.contains("claims 2147483647 characters")
+
+        when:
+        new RandomAccessFile(dexFile, "r").withCloseable { raf -> new DexData(raf).load() }
+
+        then:
+        def fileError = thrown(DexDataException)
+        fileError.message.contains("claims 2147483647 characters")
+    }
+
+    def "a code_item claiming more code units than the file holds is rejected when sizing classes"() {
+        given:
+        def dex = extractDex("tiniest-smallest-app.apk", "classes.dex").bytes
+        def data = new DexData(ByteBuffer.wrap(dex))
+        data.load()
+        def codeOffs = []
+        data.acceptDeclarations(new DexVisitor() {
+            @Override
+            void visitDeclaredMethod(int methodIdx, int accessFlags, int codeOff) {
+                if (codeOff != 0) {
+                    codeOffs << codeOff
+                }
+            }
+        })
+
+        def buffer = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN)
+        codeOffs.each { buffer.putInt(it + 12, 0x40000000) }  // insns_size
+        def corrupt = new DexData(ByteBuffer.wrap(dex))
+        corrupt.load()
+
+        when:
+        classSizes(corrupt)
+
+        then:
+        def e = thrown(DexDataException)
+        e.message.contains("claims 1073741824 code units")
+    }
+
+    @Unroll
+    def "mutated copies of #entry either load or fail with DexDataException"() {
+        given:
+        def dex = extractDex("tiles.apk", entry).bytes
+        def random = new Random(seed)
+        def unexpected = []
+
+        when:
+        200.times { iteration ->
+            byte[] mutated
+            if (random.nextInt(4) == 0) {
+                mutated = Arrays.copyOf(dex, random.nextInt(dex.length))
+            } else {
+                mutated = dex.clone()
+                (1 + random.nextInt(8)).times {
+                    mutated[random.nextInt(mutated.length)] = (byte) random.nextInt(256)
+                }
+            }
+
+            def dexFile = new File(tempDir, "mutated-${iteration}.dex")
+            dexFile.bytes = mutated
+            try {
+                exercise(new DexData(ByteBuffer.wrap(mutated)))
+                new RandomAccessFile(dexFile, "r").withCloseable { raf -> exercise(new DexData(raf)) }
+            } catch (DexDataException ignored) {
+                // expected for most mutations
+            } catch (Throwable t) {
+                unexpected << "iteration ${iteration}: ${t}".toString()
+            }
+        }
+
+        then:
+        unexpected == []
+
+        where:
+        entry          | seed
+        "classes.dex"  | 1L
+        "classes2.dex" | 2L
+    }
+
+    private static void exercise(DexData data) {
+        data.load()
+        data.methodRefs
+        data.fieldRefs
+        data.externalReferences
+        data.acceptDeclarations(new DexVisitor() {})
+        data.acceptClassSizes(new DexVisitor() {})
+        data.acceptCodeRefs(new DexVisitor() {})
+    }
+
+    private static List<String> classSizes(DexData data) {
+        def result = []
+        data.acceptClassSizes(new DexVisitor() {
+            @Override
+            void visitClassSize(int classIdx, int codeBytes, int stringBytes, int annotationBytes, int debugInfoBytes) {
+                result << "${data.getTypeName(classIdx)} ${codeBytes}/${stringBytes}/${annotationBytes}/${debugInfoBytes}".toString()
+            }
+        })
+        return result
+    }
+
+    private static List<List<Integer>> invokes(DexData data) {
+        def result = []
+        data.acceptCodeRefs(new DexVisitor() {
+            @Override
+            void visitInvoke(int methodIdx, int targetMethodIdx) {
+                result << [methodIdx, targetMethodIdx]
+            }
+        })
+        return result
+    }
+
+    private static List<String> declarations(DexData data) {
+        def result = []
+        data.acceptDeclarations(new DexVisitor() {
+            @Override
+            void visitDeclaredMethod(int methodIdx, int accessFlags, int codeOff) {
+                result << "M${methodIdx}/${accessFlags}/${codeOff}".toString()
+            }
+
+            @Override
+            void visitDeclaredField(int fieldIdx, int accessFlags) {
+                result << "F${fieldIdx}/${accessFlags}".toString()
+            }
+        })
+        return result
+    }
+
+    private File extractDex(String apk, String entry) {
+        def apkFile = new File(tempDir, apk)
+        getClass().getResourceAsStream("/" + apk).withStream { input ->
+            apkFile.append(input)
+        }
+
+        def dexFile = new File(tempDir, apk + "-" + entry)
+        new ZipFile(apkFile).withCloseable { zip ->
+            zip.getInputStream(zip.getEntry(entry)).withStream { input ->
+                dexFile.append(input)
+            }
+        }
+        return dexFile
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+final class DexMethodHandles {
+    private static final short TYPE_METHOD_HANDLE_ITEM = 0x0008
+    private static final short TYPE_MAP_LIST = 0x1000
+    private static final int CONST_METHOD_HANDLE = 0xfe
+
+    /* opcodes of format 21c, which const-method-handle shares */
+    private static final Set<Integer> FORMAT_21C_OPCODES = [0x1a, 0x1c, 0x1f, 0x22] as Set
+
+    private DexMethodHandles() {
+        throw new AssertionError('No instances')
+    }
+
+    /**
+     * Returns true if the first instruction of the code_item at the given
+     * offset can be turned into a const-method-handle.
+     */
+    static boolean canLoadHandleAt(byte[] dex, int codeOff) {
+        def source = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN)
+        return source.getInt(codeOff + 12) >= 2 && FORMAT_21C_OPCODES.contains(dex[codeOff + 16] & 0xff)
+    }
+
+    /**
+     * Adds a method_handles section holding one handle of the given type,
+     * to the given method or field, and turns the first instruction of the
+     * code_item at the given offset into a const-method-handle of it.
+     *
+     * The section and a new map_list, which lists it, are appended to the
+     * end; the old map_list is left where it is, unused.
+     */
+    static byte[] withHandleLoadedAt(byte[] dex, int codeOff, int handleType, int targetIdx) {
+        assert canLoadHandleAt(dex, codeOff)
+
+        def source = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN)
+        int mapOff = source.getInt(0x34)
+        int mapSize = source.getInt(mapOff)
+
+        int handlesOff = (dex.length + 3) & ~3
+        int newMapOff = handlesOff + 8
+        int fileSize = newMapOff + 4 + (mapSize + 1) * 12
+
+        def out = ByteBuffer.allocate(fileSize).order(ByteOrder.LITTLE_ENDIAN)
+        out.put(dex)
+
+        out.position(handlesOff)
+        out.putShort((short) handleType)
+        out.putShort((short) 0)
+        out.putShort((short) targetIdx)
+        out.putShort((short) 0)
+
+        out.putInt(mapSize + 1)
+        for (int i = 0; i < mapSize; i++) {
+            int item = mapOff + 4 + i * 12
+            short type = source.getShort(item)
+            out.putShort(type)
+            out.putShort((short) 0)
+            out.putInt(source.getInt(item + 4))
+            out.putInt(type == TYPE_MAP_LIST ? newMapOff : source.getInt(item + 8))
+        }
+        out.putShort(TYPE_METHOD_HANDLE_ITEM)
+        out.putShort((short) 0)
+        out.putInt(1)
+        out.putInt(handlesOff)
+
+        out.putInt(0x20, fileSize)      // file_size
+        out.putInt(0x34, newMapOff)     // map_off
+
+        // const-method-handle vAA, method_handle@0
+        out.put(codeOff + 16, (byte) CONST_METHOD_HANDLE)
+        out.putShort(codeOff + 18, (short) 0)
+
+        return out.array()
+    }
+}
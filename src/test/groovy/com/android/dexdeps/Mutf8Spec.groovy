@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+
+final class Mutf8Spec extends Specification {
+    def decoder = new Mutf8()
+
+    @Unroll
+    def "agrees with the UTF-8 charset on '#text'"() {
+        given:
+        def bytes = terminated(text.getBytes(StandardCharsets.UTF_8))
+
+        expect:
+        decoder.decode(ByteBuffer.wrap(bytes), 0, text.length()) == legacyDecode(bytes)
+
+        where:
+        text << [
+            "",
+            "V",
+            "Ljava/lang/String;",
+            "[Lcom/getkeepsafe/dexcount/PackageTree;",
+            "<clinit>",
+            "café",
+            "© KeepSafe",
+            "日本語",
+            "x" * 300,
+        ]
+    }
+
+    def "agrees with the UTF-8 charset on random BMP strings"() {
+        given:
+        def random = new Random(42)
+
+        expect:
+        1000.times {
+            def text = randomBmpString(random, random.nextInt(200))
+            def bytes = terminated(text.getBytes(StandardCharsets.UTF_8))
+            assert decoder.decode(ByteBuffer.wrap(bytes), 0, text.length()) == legacyDecode(bytes)
+        }
+    }
+
+    def "decodes an encoded NUL, which the UTF-8 charset does not"() {
+        given:
+        def bytes = [0x61, 0xC0, 0x80, 0x62, 0x00] as byte[]
+
+        expect:
+        decoder.decode(ByteBuffer.wrap(bytes), 0, 3) == "a\u0000b"
+        legacyDecode(bytes) != "a\u0000b"
+    }
+
+    def "decodes surrogate pairs, which the UTF-8 charset does not"() {
+        given: "U+1F600 encoded as two three-byte surrogates"
+        def bytes = [0xED, 0xA0, 0xBD, 0xED, 0xB8, 0x80, 0x00] as byte[]
+
+        expect:
+        decoder.decode(ByteBuffer.wrap(bytes), 0, 2) == "😀"
+        legacyDecode(bytes) != "😀"
+    }
+
+    def "decodes at an offset without touching the buffer position"() {
+        given:
+        def buffer = ByteBuffer.wrap(terminated("xxxxLfoo/Bar;".getBytes(StandardCharsets.UTF_8)))
+
+        expect:
+        decoder.decode(buffer, 4, 9) == "Lfoo/Bar;"
+        buffer.position() == 0
+    }
+
+    def "rejects a string that ends early"() {
+        when:
+        decoder.decode(ByteBuffer.wrap([0x61, 0xC3, 0xA9, 0x00] as byte[]), 0, 5)
+
+        then:
+        thrown(DexDataException)
+    }
+
+    def "rejects a malformed continuation byte"() {
+        when:
+        decoder.decode(ByteBuffer.wrap([0xC3, 0x41, 0x00] as byte[]), 0, 1)
+
+        then:
+        thrown(DexDataException)
+    }
+
+    private static byte[] terminated(byte[] bytes) {
+        return Arrays.copyOf(bytes, bytes.length + 1)
+    }
+
+    /**
+     * How DexData decoded strings before it had a Modified UTF-8 decoder.
+     */
+    private static String legacyDecode(byte[] bytes) {
+        int end = 0
+        while (bytes[end] != 0) {
+            end++
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8)
+    }
+
+    private static String randomBmpString(Random random, int length) {
+        def sb = new StringBuilder(length)
+        while (sb.length() < length) {
+            char c = (char) (1 + random.nextInt(0xFFFE))
+            if (!Character.isSurrogate(c)) {
+                sb.append(c)
+            }
+        }
+        return sb.toString()
+    }
+}
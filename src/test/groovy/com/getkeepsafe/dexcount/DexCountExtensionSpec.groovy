@@ -23,7 +23,6 @@ import com.getkeepsafe.dexcount.report.DexCountOutputTask
 import com.getkeepsafe.dexcount.treegen.ApkPackageTreeTask
 import org.gradle.api.GradleException
 import org.gradle.api.Project
-import org.gradle.api.ProjectConfigurationException
 import org.gradle.testfixtures.ProjectBuilder
 import spock.lang.Ignore
 import spock.lang.Specification
@@ -101,7 +100,7 @@ final class DexCountExtensionSpec extends Specification {
         thrown(GradleException)
     }
 
-    def "printDeclarations not allowed for application projects"() {
+    def "printDeclarations allowed for application projects"() {
         given:
         project.apply plugin: "com.android.application"
         project.apply plugin: "com.getkeepsafe.dexcount"
@@ -127,8 +126,7 @@ final class DexCountExtensionSpec extends Specification {
         task.execute()
 
         then:
-        def exception = thrown(ProjectConfigurationException)
-        exception.cause.message.contains("Cannot compute declarations for project root project 'test'")
+        noExceptionThrown()
     }
 
     def "maxMethodCount methods > tiles.apk methods, no exception thrown"() {
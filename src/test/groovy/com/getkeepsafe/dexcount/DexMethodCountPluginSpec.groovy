@@ -400,6 +400,27 @@ final class DexMethodCountPluginSpec extends Specification {
             9,0,4
             """.stripIndent().trim()
 
+        // dex-summary.csv - per-dex ID tables
+        def actualDexSummaryFile = task.outputDirectoryProperty.file("dex-summary.csv").get().asFile.absoluteFile.text.stripIndent().trim()
+        def expectedDexSummaryFile = """
+            dex,methods,methodsRemaining,fields,fieldsRemaining,types,typesRemaining,protos,protosRemaining,strings,stringsRemaining,classes
+            classes.dex,9,65526,0,65535,9,65526,5,65530,16,65519,1
+            """.stripIndent().trim()
+
+        // external-refs.csv - refs to platform types vs. the app's own
+        def actualExternalRefsFile = task.outputDirectoryProperty.file("external-refs.csv").get().asFile.absoluteFile.text.stripIndent().trim()
+        def expectedExternalRefsFile = """
+            package,internalMethods,externalMethods,internalFields,externalFields
+            android,0,6,0,0
+            android.app,0,2,0,0
+            android.widget,0,4,0,0
+            b,3,0,0,0
+            b.a,3,0,0,0
+            """.stripIndent().trim()
+
+        // main-dex.txt - the only dex file, so the same as the full list
+        def actualMainDexFile = task.outputDirectoryProperty.file("main-dex.txt").get().asFile.absoluteFile.text.stripIndent().trim()
+
         // debugChart/data.js - JSON
         def actualChartDir = task.outputDirectoryProperty.file("chart/data.js").get().asFile.text.stripIndent().trim()
         def expectedChartDir = """
@@ -472,6 +493,55 @@ final class DexMethodCountPluginSpec extends Specification {
 
         actualOutputFile == expectedOutputFile
         actualSummaryFile == expectedSummaryFile
+        actualDexSummaryFile == expectedDexSummaryFile
+        actualExternalRefsFile == expectedExternalRefsFile
+        actualMainDexFile == expectedOutputFile
         actualChartDir == expectedChartDir
     }
+
+    def 'summary-only apk report keeps per-dex totals out of summary.csv'() {
+        given:
+        def apkFile = new File(testProjectDir, 'tiniest-smallest-app.apk')
+        def apkResource = getClass().getResourceAsStream('/tiniest-smallest-app.apk')
+        apkResource.withStream { input ->
+            apkFile.append(input)
+        }
+
+        def apkArtifact = Mock(BuiltArtifact)
+        def builtArtifacts = Mock(BuiltArtifacts)
+        def loader = Mock(BuiltArtifactsLoader)
+
+        apkArtifact.outputFile >> apkFile.canonicalPath
+        builtArtifacts.elements >> [apkArtifact]
+        loader.load(_) >> builtArtifacts
+
+        project.apply plugin: 'com.android.application'
+        project.apply plugin: 'com.getkeepsafe.dexcount'
+        project.android {
+            compileSdkVersion 28
+
+            defaultConfig {
+                applicationId 'com.example'
+            }
+        }
+        project.dexcount {
+            summaryOnly = true
+        }
+
+        when:
+        project.evaluate()
+
+        ApkPackageTreeTask task = project.tasks.getByName("generateDebugPackageTree") as ApkPackageTreeTask
+        task.outputFileNameProperty.set("pluginSpec")
+        task.apkDirectoryProperty.set(apkFile.parentFile)
+        task.loaderProperty.set(loader)
+        task.execute()
+
+        then:
+        !task.outputDirectoryProperty.file("summary.csv").get().asFile.exists()
+        task.outputDirectoryProperty.file("dex-totals.csv").get().asFile.text.trim() == """
+            methods,fields,classes
+            9,0,1
+            """.stripIndent().trim()
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015-2021 KeepSafe Software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.getkeepsafe.dexcount
+
+import com.android.dexdeps.FieldRef
+import com.android.dexdeps.MethodRef
+import spock.lang.Specification
+
+import static com.getkeepsafe.dexcount.RefHelpers.methodRef
+
+final class DexPackingSimulatorSpec extends Specification {
+    private DexPackingSimulator simulator
+
+    def setup() {
+        // Dex files that hold four of each ID, to keep things small.
+        simulator = new DexPackingSimulator(Deobfuscator.EMPTY, 4)
+
+        def a1 = methodRef("Lcom/a/A;", "a1")
+        def a2 = methodRef("Lcom/a/A;", "a2")
+        def a3 = methodRef("Lcom/a/A;", "a3")
+        def b1 = methodRef("Lcom/b/B;", "b1")
+        def b2 = methodRef("Lcom/b/B;", "b2")
+        def c1 = methodRef("Lcom/c/C;", "c1")
+
+        def mainDex = simulator.newDex(true)
+        [a1, a2, a3].each { mainDex.addMethodRef(it) }
+        mainDex.addClass("Lcom/a/A;", [0, 1, 2] as int[], [] as int[])
+
+        def secondaryDex = simulator.newDex(false)
+        [a1, b1, b2, c1].each { secondaryDex.addMethodRef(it) }
+        secondaryDex.addClass("Lcom/b/B;", [0, 1, 2] as int[], [] as int[])
+        secondaryDex.addClass("Lcom/c/C;", [3] as int[], [] as int[])
+    }
+
+    def "packages are packed largest first into the first dex file they fit"() {
+        when:
+        def dexes = simulator.pack(-1, [])
+
+        then:
+        dexes*.name == ["classes.dex", "classes2.dex"]
+        dexes*.classCount == [2, 1]
+        dexes*.methodCount == [4, 3]
+        dexes*.typeCount == [4, 2]
+    }
+
+    def "removed packages take their refs with them"() {
+        when:
+        def dexes = simulator.pack(-1, ["com.a"])
+
+        then:
+        dexes*.classCount == [2]
+        dexes*.methodCount == [3]
+        dexes*.typeCount == [3]
+    }
+
+    def "main dex classes stay in the main dex file below native multidex"() {
+        when:
+        def dexes = simulator.pack(19, [])
+
+        then:
+        dexes*.classCount == [2, 1]
+        dexes*.methodCount == [4, 3]
+        dexes*.typeCount == [3, 3]
+    }
+
+    def "parameter, return and field types count towards the types a class needs"() {
+        given:
+        def simulator = new DexPackingSimulator(Deobfuscator.EMPTY, 4)
+        def dex = simulator.newDex(false)
+        dex.addMethodRef(new MethodRef("Lcom/d/D;", ["Lcom/e/E;", "I"] as String[], "Lcom/f/F;", "m"))
+        dex.addFieldRef(new FieldRef("Lcom/d/D;", "[Lcom/g/G;", "f"))
+        dex.addClass("Lcom/d/D;", [0] as int[], [0] as int[])
+
+        when:
+        def dexes = simulator.pack(-1, [])
+
+        then:
+        dexes*.typeCount == [5]
+    }
+
+    def "the current and simulated packings are printed as CSV"() {
+        given:
+        def sb = new StringBuilder()
+
+        when:
+        simulator.printSimulation(sb, -1, ["com.a"])
+
+        then:
+        sb.toString() == """\
+            scenario,dex,classes,methods,methodsRemaining,fields,fieldsRemaining,types,typesRemaining
+            current,classes.dex,2,4,0,0,4,4,0
+            current,classes2.dex,1,3,1,0,4,2,2
+            simulated,classes.dex,2,3,1,0,4,3,1
+            """.stripIndent()
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.getkeepsafe.dexcount
 
+import com.android.dexdeps.MethodRef
 import spock.lang.Specification
 
 import static com.getkeepsafe.dexcount.RefHelpers.fieldRef
@@ -380,6 +381,41 @@ final class PackageTreeSpec extends Specification {
         trimmed == expected
     }
 
+    def "package list can include byte counts"() {
+        given:
+        def tree = new PackageTree()
+        def sb = new StringBuilder()
+        def opts = PrintOptions.builder()
+            .setPrintHeader(true)
+            .setIncludeByteCount(true)
+            .setIncludeClasses(true)
+            .build()
+
+        when:
+        tree.addMethodRef(methodRef("Lx/y/Z;"))
+        tree.addMethodRef(methodRef("Lx/y/W;"))
+        tree.addClassSize("Lx/y/Z;", 100, 20, 16, 8)
+        tree.addClassSize("Lx/y/W;", 50, 10, 0, 0)
+        tree.printPackageList(sb, opts)
+
+        then:
+        tree.byteCount == 204
+        tree.codeByteCount == 150
+        tree.stringByteCount == 30
+        tree.annotationByteCount == 16
+        tree.debugInfoByteCount == 8
+
+        def trimmed = sb.toString().stripIndent().trim()
+        def expected = """
+            methods  bytes      package/class name
+            2        204        x
+            2        204        x.y
+            1        60         x.y.W
+            1        144        x.y.Z""".stripIndent().trim()
+
+        trimmed == expected
+    }
+
     def "package list can include field counts with declarations"() {
         given:
         def tree = new PackageTree()
@@ -1292,12 +1328,80 @@ final class PackageTreeSpec extends Specification {
         trimmed == expected
     }
 
+    def "refs to types the input doesn't define are external"() {
+        given:
+        def tree = new PackageTree()
+        tree.addInternalType("Lcom/foo/Bar;")
+        tree.addInternalType("[Ljava/lang/String;")
+        tree.addInternalType("Lcom/foo/Unreferenced;")
+        tree.addMethodRef(methodRef("Lcom/foo/Bar;"))
+        tree.addMethodRef(methodRef("Lcom/foo/Bar;"))
+        tree.addMethodRef(methodRef("Landroid/app/Activity;"))
+        tree.addMethodRef(methodRef("[Ljava/lang/String;", "clone"))
+        tree.addMethodRef(methodRef("Ljava/lang/Object;"))
+        tree.addFieldRef(fieldRef("Lcom/foo/Bar;"))
+        tree.addFieldRef(fieldRef("Landroid/os/Build;"))
+
+        when:
+        def sb = new StringBuilder()
+        tree.printExternalReferences(sb, PrintOptions.builder().build())
+
+        then:
+        tree.externalMethodCount == 2
+        tree.externalFieldCount == 1
+        sb.toString() == """\
+            package,internalMethods,externalMethods,internalFields,externalFields
+            android,0,1,0,1
+            android.app,0,1,0,0
+            android.os,0,0,0,1
+            com,2,0,1,0
+            com.foo,2,0,1,0
+            java,1,1,0,0
+            java.lang,1,1,0,0
+            """.stripIndent()
+    }
+
+    def "declared methods that nothing invokes are listed by class"() {
+        given:
+        def tree = new PackageTree()
+        def ctor = new MethodRef("Lcom/foo/Bar;", new String[0], "V", "<init>")
+        def clinit = new MethodRef("Lcom/foo/Bar;", new String[0], "V", "<clinit>")
+        def called = new MethodRef("Lcom/foo/Bar;", ["I"] as String[], "V", "called")
+        def overridden = new MethodRef("Lcom/foo/Bar;", new String[0], "Ljava/lang/String;", "toString")
+        def unused = new MethodRef("Lcom/foo/Bar;", ["[I", "Ljava/lang/String;"] as String[], "Z", "unused")
+        def qux = new MethodRef("Lcom/foo/qux/Qux;", new String[0], "V", "run")
+        [ctor, clinit, called, overridden, unused, qux].each { tree.addDeclaredMethodRef(it) }
+
+        tree.addInvokedMethodRef(called)
+        tree.addInvokedMethodRef(qux)
+        tree.addInvokedMethodRef(new MethodRef("Ljava/lang/Object;", new String[0], "Ljava/lang/String;", "toString"))
+        tree.addInvokedMethodRef(new MethodRef("Ljava/lang/Object;", new String[0], "V", "<init>"))
+
+        when:
+        def sb = new StringBuilder()
+        tree.printUninvokedMethods(sb, PrintOptions.builder().setIncludeClasses(true).build())
+
+        then:
+        sb.toString() == """\
+            uninvoked  declared   package/class name
+            2          6          com
+            2          6          com.foo
+            2          5          com.foo.Bar
+                                    void <init>()
+                                    boolean unused(int[], java.lang.String)
+            """.stripIndent()
+    }
+
     def "it roundtrips to and from Thrift"() {
         given:
         def tree = new PackageTree();
         tree.addDeclaredMethodRef(methodRef("Lcom/foo/Bar;"))
         tree.addDeclaredMethodRef(methodRef("Lcom/foo/Qux;"))
         tree.addDeclaredFieldRef(fieldRef("Lx/y/z/XYZ;"))
+        tree.addClassSize("Lcom/foo/Bar;", 100, 20, 16, 8)
+        tree.addMethodRef(methodRef("Lcom/foo/Bar;"))
+        tree.addMethodRef(methodRef("Ljava/lang/Object;"))
+        tree.addInternalType("Lcom/foo/Bar;")
 
         when:
         def roundtripped = PackageTree.fromThrift(PackageTree.toThrift(tree))
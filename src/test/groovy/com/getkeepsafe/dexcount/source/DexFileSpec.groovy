@@ -16,9 +16,23 @@
 
 package com.getkeepsafe.dexcount.source
 
+import com.android.dexdeps.DexContainers
+import com.android.dexdeps.FieldRef
+import com.android.dexdeps.MethodRef
+import com.android.dexdeps.StringPool
+import com.getkeepsafe.dexcount.Deobfuscator
+import com.getkeepsafe.dexcount.DexPackingSimulator
+import com.getkeepsafe.dexcount.PackageTree
 import spock.lang.Specification
 import spock.lang.TempDir
 
+import java.security.MessageDigest
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+
 final class DexFileSpec extends Specification {
     @TempDir
     File tempDir
@@ -41,6 +55,29 @@ final class DexFileSpec extends Specification {
         dexFiles[0].fieldRefs.size() == 436
     }
 
+    def "AAR refs read from class files match D8's but for desugaring"() {
+        given:
+        def aarFile = new File(tempDir, "test.aar")
+
+        getClass().getResourceAsStream('/android-beacon-library-2.7.aar').withStream { input ->
+            aarFile.append(input)
+        }
+
+        when:
+        def estimate = SourceFiles.extractClassFileRefsFromAar(aarFile)
+        def diff = new RefSetDiff("D8", "class files")
+        SourceFiles.extractDexData(aarFile).each { diff.addExpected(it) }
+        diff.addActual(estimate)
+
+        def sb = new StringBuilder()
+        diff.print(sb)
+
+        then:
+        estimate.methodRefs.size() == 982
+        estimate.fieldRefs.size() == 436
+        sb.toString().startsWith("D8: 983 methods, 436 fields\nclass files: 982 methods, 436 fields\n")
+    }
+
     def "test APK built with tools v24"() {
         given:
         def apk = new File(tempDir, "app-debug-tools-v24.apk")
@@ -58,4 +95,592 @@ final class DexFileSpec extends Specification {
         dexFiles[0].methodRefs.size() == 3
         dexFiles[1].methodRefs.size() == 297
     }
+
+    def "test APK with uncompressed dex entries"() {
+        given:
+        def compressed = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            compressed.append(input)
+        }
+
+        def stored = new File(tempDir, "tiles-stored.apk")
+        new ZipFile(compressed).withCloseable { zip ->
+            new ZipOutputStream(new FileOutputStream(stored)).withCloseable { out ->
+                zip.entries().each { ZipEntry entry ->
+                    def bytes = zip.getInputStream(entry).bytes
+                    def crc = new CRC32()
+                    crc.update(bytes)
+
+                    def copy = new ZipEntry(entry.name)
+                    copy.method = ZipEntry.STORED
+                    copy.size = bytes.length
+                    copy.compressedSize = bytes.length
+                    copy.crc = crc.value
+
+                    out.putNextEntry(copy)
+                    out.write(bytes)
+                    out.closeEntry()
+                }
+            }
+        }
+
+        when:
+        def expected = SourceFiles.extractDexData(compressed)
+        def actual = SourceFiles.extractDexData(stored)
+
+        then:
+        actual.size() == 2
+        actual[0].methodRefs == expected[0].methodRefs
+        actual[1].methodRefs == expected[1].methodRefs
+        actual[1].fieldRefs == expected[1].fieldRefs
+        actual[1].methodRefs.size() == 370
+    }
+
+    def "dex summaries come from the headers alone"() {
+        given:
+        def apk = new File(tempDir, "app-debug-tools-v24.apk")
+
+        getClass().getResourceAsStream("/app-debug-tools-v24.apk").withStream { input ->
+            apk.append(input)
+        }
+
+        when:
+        def summaries = SourceFiles.extractDexSummaries(apk)
+        def dexFiles = SourceFiles.extractDexData(apk)
+
+        then:
+        summaries*.name == ["classes.dex", "classes2.dex"]
+        summaries*.methodCount == [3, 297]
+        summaries*.fieldCount == [4, 73]
+        summaries*.classCount == [1, 27]
+        summaries == dexFiles*.summary
+    }
+
+    def "each dex file in a v041 container is counted separately"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+
+        def container = new ZipFile(apk).withCloseable { zip ->
+            DexContainers.containerOf(zip.getInputStream(zip.getEntry("classes2.dex")).bytes)
+        }
+
+        def dexFile = new File(tempDir, "classes.dex")
+        dexFile.bytes = container
+
+        def zipped = new File(tempDir, "container.apk")
+        new ZipOutputStream(new FileOutputStream(zipped)).withCloseable { out ->
+            out.putNextEntry(new ZipEntry("classes.dex"))
+            out.write(container)
+            out.closeEntry()
+        }
+
+        when:
+        def dexFiles = SourceFiles.extractDexData(dexFile)
+        def summaries = SourceFiles.extractDexSummaries(dexFile)
+        def zippedSummaries = SourceFiles.extractDexSummaries(zipped)
+
+        then:
+        dexFiles*.methodRefs*.size() == [370, 370]
+        summaries*.name == ["classes.dex", "classes.dex#1"]
+        summaries*.methodCount == [370, 370]
+        zippedSummaries == summaries
+        summaries == dexFiles*.summary
+    }
+
+    def "unchanged dex files are read back from the cache"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+        def cacheDir = new File(tempDir, "dex-cache")
+
+        when:
+        def uncached = SourceFiles.extractDexData(apk)
+        def firstRun = SourceFiles.extractDexData(apk, new DexCache(cacheDir, true, false, false, false))
+        def entries = cacheDir.listFiles().sort()
+        entries.each { it.lastModified = 0 }
+
+        def secondRun = SourceFiles.extractDexData(apk, new DexCache(cacheDir, true, false, false, false))
+
+        then:
+        entries.size() == 2
+        entries.every { it.lastModified() == 0 }
+        [firstRun, secondRun].every { run ->
+            run*.methodRefs == uncached*.methodRefs && run*.fieldRefs == uncached*.fieldRefs
+        }
+        secondRun*.methodRefs*.size() == [3, 370]
+        secondRun*.summary == uncached*.summary
+        secondRun*.summary*.name == ["classes.dex", "classes2.dex"]
+    }
+
+    def "AAR dex files are cached by the classes they were dexed from"() {
+        given:
+        def aarFile = new File(tempDir, "test.aar")
+        getClass().getResourceAsStream('/android-beacon-library-2.7.aar').withStream { input ->
+            aarFile.append(input)
+        }
+        def cacheDir = new File(tempDir, "aar-dex-cache")
+
+        when:
+        def uncached = SourceFiles.extractDexData(aarFile)
+        SourceFiles.extractDexData(aarFile, new DexCache(cacheDir, true, false, false, false))
+        def entries = cacheDir.listFiles()
+        entries.each { it.lastModified = 0 }
+
+        def secondRun = SourceFiles.extractDexData(aarFile, new DexCache(cacheDir, true, false, false, false))
+
+        then:
+        entries.size() == 1
+        entries[0].name.startsWith("aar-sha256-")
+        entries[0].lastModified() == 0
+        secondRun*.methodRefs*.size() == [983]
+        secondRun*.methodRefs == uncached*.methodRefs
+        secondRun*.fieldRefs == uncached*.fieldRefs
+    }
+
+    def "AAR classes dexed one at a time are cached one at a time"() {
+        given:
+        def aarFile = new File(tempDir, "test.aar")
+        getClass().getResourceAsStream('/android-beacon-library-2.7.aar').withStream { input ->
+            aarFile.append(input)
+        }
+        def classCount = new ZipFile(aarFile).withCloseable { aar ->
+            def jar = new ZipInputStream(aar.getInputStream(aar.getEntry("classes.jar")))
+            def count = 0
+            for (def entry = jar.nextEntry; entry != null; entry = jar.nextEntry) {
+                if (entry.name.endsWith(".class")) {
+                    count++
+                }
+            }
+            count
+        }
+        def cacheDir = new File(tempDir, "aar-dex-cache")
+
+        when:
+        def uncached = SourceFiles.extractIncrementalDexFromAar(aarFile, null)
+        def firstRun = SourceFiles.extractIncrementalDexFromAar(aarFile, new DexCache(cacheDir, true, false, false, true))
+        def entries = cacheDir.listFiles()
+        entries.each { it.lastModified = 0 }
+
+        def secondRun = SourceFiles.extractIncrementalDexFromAar(aarFile, new DexCache(cacheDir, true, false, false, true))
+
+        then:
+        entries.size() == classCount
+        entries.every { it.name.startsWith("class-sha256-") && it.lastModified() == 0 }
+        [firstRun, secondRun].every { run ->
+            run.methodRefs as Set == uncached.methodRefs as Set && run.fieldRefs as Set == uncached.fieldRefs as Set
+        }
+        uncached.fieldRefs.size() == 436
+    }
+
+    def "AAR classes dexed again after a change match a full dex of the AAR"() {
+        given:
+        def aarFile = new File(tempDir, "test.aar")
+        getClass().getResourceAsStream('/android-beacon-library-2.7.aar').withStream { input ->
+            aarFile.append(input)
+        }
+
+        // The same library, with Beacon's source file renamed - which
+        // changes the class, and so AltBeacon's key too, as it extends it.
+        def changedAar = new File(tempDir, "changed.aar")
+        new ZipFile(aarFile).withCloseable { aar ->
+            new ZipOutputStream(new FileOutputStream(changedAar)).withCloseable { out ->
+                aar.entries().each { entry ->
+                    def bytes = aar.getInputStream(entry).bytes
+                    if (entry.name == "classes.jar") {
+                        def jarBytes = new ByteArrayOutputStream()
+                        def jar = new ZipInputStream(new ByteArrayInputStream(bytes))
+                        new ZipOutputStream(jarBytes).withCloseable { jarOut ->
+                            for (def classEntry = jar.nextEntry; classEntry != null; classEntry = jar.nextEntry) {
+                                def classBytes = jar.readAllBytes()
+                                if (classEntry.name == "org/altbeacon/beacon/Beacon.class") {
+                                    classBytes = new String(classBytes, "ISO-8859-1")
+                                        .replace("Beacon.java", "Beacom.java")
+                                        .getBytes("ISO-8859-1")
+                                }
+                                jarOut.putNextEntry(new ZipEntry(classEntry.name))
+                                jarOut.write(classBytes)
+                                jarOut.closeEntry()
+                            }
+                        }
+                        bytes = jarBytes.toByteArray()
+                    }
+                    out.putNextEntry(new ZipEntry(entry.name))
+                    out.write(bytes)
+                    out.closeEntry()
+                }
+            }
+        }
+        def cacheDir = new File(tempDir, "aar-dex-cache")
+
+        when:
+        SourceFiles.extractIncrementalDexFromAar(aarFile, new DexCache(cacheDir, true, false, false, true))
+        def entryCount = cacheDir.listFiles().size()
+
+        def incremental = SourceFiles.extractIncrementalDexFromAar(changedAar, new DexCache(cacheDir, true, false, false, true))
+        def full = SourceFiles.extractDexData(changedAar)
+
+        then:
+        cacheDir.listFiles().size() == entryCount + 2
+        incremental.methodRefs as Set == full*.methodRefs.flatten() as Set
+        incremental.fieldRefs as Set == full*.fieldRefs.flatten() as Set
+    }
+
+    def "classes whose supertypes form a cycle get no cache key, in any order"() {
+        given:
+        // a and b extend each other, and c extends a; e extends d, which is fine.
+        def superclasses = [a: "com/example/b", b: "com/example/a", c: "com/example/a", d: "java/lang/Object", e: "com/example/d"]
+        def keysFor = { List<String> order ->
+            def jar = new File(tempDir, order.join("") + ".jar")
+            new ZipOutputStream(new FileOutputStream(jar)).withCloseable { out ->
+                order.each { name ->
+                    out.putNextEntry(new ZipEntry("com/example/${name}.class"))
+                    out.write(classFile("com/example/" + name, superclasses[name]))
+                    out.closeEntry()
+                }
+            }
+            def classes = new SourceFiles.AarClasses(jar, 21, MessageDigest.getInstance("SHA-256"))
+            new ZipFile(jar).withCloseable { zip -> classes.classCacheKeys(zip, new StringPool()) }
+        }
+
+        when:
+        def orders = [["a", "b", "c", "d", "e"], ["c", "b", "e", "a", "d"], ["b", "a", "e", "d", "c"]]
+        def keys = orders.collect(keysFor)
+
+        then:
+        keys[0].keySet() == ["com/example/d.class", "com/example/e.class"] as Set
+        keys.every { it == keys[0] }
+    }
+
+    def "AAR classes dexed one at a time are summarized and packed like a full dex of the AAR"() {
+        given:
+        def aarFile = new File(tempDir, "test.aar")
+        getClass().getResourceAsStream('/android-beacon-library-2.7.aar').withStream { input ->
+            aarFile.append(input)
+        }
+        def cacheDir = new File(tempDir, "aar-dex-cache")
+
+        when:
+        def pack = { List<SourceFile> sources ->
+            def simulator = new DexPackingSimulator(Deobfuscator.EMPTY)
+            sources.each { sf ->
+                def dex = simulator.newDex(false)
+                sf.forEachRef(dex.&addMethodRef, dex.&addFieldRef)
+                sf.forEachClassRefs(dex.&addClass)
+            }
+            simulator.pack(-1, [])
+        }
+        def full = SourceFiles.extractDexData(aarFile)
+        def uncached = SourceFiles.extractIncrementalDexFromAar(aarFile, null)
+        SourceFiles.extractIncrementalDexFromAar(aarFile, new DexCache(cacheDir, false, false, true, true))
+        def cached = SourceFiles.extractIncrementalDexFromAar(aarFile, new DexCache(cacheDir, false, false, true, true))
+
+        def expectedPacking = pack(full)
+
+        then:
+        uncached.summary.name == "classes.dex"
+        uncached.summary.methodCount == full[0].summary.methodCount
+        uncached.summary.fieldCount == full[0].summary.fieldCount
+        uncached.summary.stringCount > 0
+        uncached.summary.typeCount > 0
+        uncached.summary.protoCount > 0
+        cached.summary == uncached.summary
+
+        expectedPacking.size() == 1
+        pack([uncached])*.methodCount == expectedPacking*.methodCount
+        pack([uncached])*.classCount == expectedPacking*.classCount
+        pack([cached])*.methodCount == expectedPacking*.methodCount
+        pack([cached])*.fieldCount == expectedPacking*.fieldCount
+    }
+
+    def "shared caches evict the least recently used entries"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+
+        def smaller = new File(tempDir, "tiles-classes2-only.apk")
+        new ZipFile(apk).withCloseable { zip ->
+            new ZipOutputStream(new FileOutputStream(smaller)).withCloseable { out ->
+                out.putNextEntry(new ZipEntry("classes2.dex"))
+                out.write(zip.getInputStream(zip.getEntry("classes2.dex")).bytes)
+                out.closeEntry()
+            }
+        }
+        def cacheDir = new File(tempDir, "dex-cache")
+
+        when:
+        SourceFiles.extractDexData(apk, new DexCache(cacheDir, false, false, false, false))
+        def (small, large) = cacheDir.listFiles().sort { it.length() }
+        small.lastModified = 2000
+        large.lastModified = 1000
+
+        new DexCache(cacheDir, false, false, false, false).pruneLeastRecentlyUsed(large.length())
+        def afterIdlePrune = cacheDir.listFiles()*.name
+
+        SourceFiles.extractDexData(apk, new DexCache(cacheDir, false, false, false, false))
+        small.lastModified = 2000
+        large.lastModified = 1000
+
+        def cache = new DexCache(cacheDir, false, false, false, false)
+        SourceFiles.extractDexData(smaller, cache)
+        cache.pruneLeastRecentlyUsed(large.length())
+        def afterUsedPrune = cacheDir.listFiles()*.name
+
+        then:
+        afterIdlePrune == [small.name]
+        afterUsedPrune == [large.name]
+    }
+
+    def "types defined by any dex file of the input are internal"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+        def cacheDir = new File(tempDir, "dex-cache")
+
+        when:
+        SourceFiles.extractDexData(apk, new DexCache(cacheDir, false, false, false, false))
+        def trees = [
+            SourceFiles.extractDexData(apk),
+            SourceFiles.extractDexData(apk, new DexCache(cacheDir, false, false, false, false))
+        ].collect { dexFiles ->
+            def tree = new PackageTree()
+            dexFiles.each { dexFile ->
+                dexFile.forEachRef(tree.&addMethodRef, tree.&addFieldRef)
+                dexFile.forEachInternalType(tree.&addInternalType)
+            }
+            tree
+        }
+
+        then:
+        trees.every { tree ->
+            tree.methodCount == 372 && tree.externalMethodCount == 215 &&
+                tree.fieldCount == 84 && tree.externalFieldCount == 20
+        }
+    }
+
+    def "invoke instructions are found in the code of every method"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+        def cacheDir = new File(tempDir, "dex-cache")
+
+        when:
+        def invoked = { dexFiles ->
+            dexFiles.collect { dexFile ->
+                def refs = []
+                dexFile.forEachInvokedRef { refs << it }
+                refs
+            }
+        }
+        def uncached = invoked(SourceFiles.extractDexData(apk))
+        SourceFiles.extractDexData(apk, new DexCache(cacheDir, true, false, false, false))
+        def cached = invoked(SourceFiles.extractDexData(apk, new DexCache(cacheDir, true, false, false, false)))
+
+        then:
+        uncached*.size() == [1, 322]
+        cached == uncached
+    }
+
+    def "each class names the refs it needs, cached or not"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+        def cacheDir = new File(tempDir, "dex-cache")
+
+        when:
+        def classRefs = { dexFiles ->
+            dexFiles.collect { dexFile ->
+                def refs = [:]
+                dexFile.forEachClassRefs { descriptor, methods, fields -> refs[descriptor] = [methods as List, fields as List] }
+                refs
+            }
+        }
+        def uncached = classRefs(SourceFiles.extractDexData(apk))
+        SourceFiles.extractDexData(apk, new DexCache(cacheDir, false, false, true, false))
+        def cached = classRefs(SourceFiles.extractDexData(apk, new DexCache(cacheDir, false, false, true, false)))
+
+        then:
+        uncached*.size() == [1, 27]
+        uncached.collect { dex -> dex.values().sum { it[0].size() } } == [3, 604]
+        cached == uncached
+    }
+
+    def "streamed dex files match extracted ones, in order"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+        def cacheDir = new File(tempDir, "dex-cache")
+
+        when:
+        def refs = { dexFile ->
+            def result = []
+            dexFile.forEachRef({ result << it }, { result << it })
+            result
+        }
+        def expected = SourceFiles.extractDexData(apk).collect(refs)
+
+        def streamed = []
+        SourceFiles.streamDexData(apk, null, maxInFlight) { streamed << refs(it) }
+        def cached = []
+        SourceFiles.streamDexData(apk, new DexCache(cacheDir, false, false, false, false), maxInFlight) { cached << refs(it) }
+
+        then:
+        expected*.size() == [7, 454]
+        streamed == expected
+        cached == expected
+
+        where:
+        maxInFlight << [1, 4]
+    }
+
+    def "no dex file is still being parsed once a failed stream returns"() {
+        given:
+        def dex = getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            def zip = new ZipInputStream(input)
+            def entry
+            while ((entry = zip.nextEntry) != null && entry.name != "classes2.dex") {
+            }
+            zip.readAllBytes()
+        }
+        def apk = new File(tempDir, "many-dex.apk")
+        apk.withOutputStream { output ->
+            def zip = new ZipOutputStream(output)
+            (1..16).each { i ->
+                zip.putNextEntry(new ZipEntry(i == 1 ? "classes.dex" : "classes${i}.dex"))
+                zip.write(dex)
+                zip.closeEntry()
+            }
+            zip.finish()
+        }
+
+        when:
+        SourceFiles.streamDexData(apk, null, 4) { dexFile ->
+            throw new IllegalStateException("consumer failed")
+        }
+
+        then:
+        def e = thrown(IllegalStateException)
+        e.message == "consumer failed"
+        Thread.allStackTraces.values().every { stack ->
+            stack.every { frame -> frame.methodName != "readZipEntry" }
+        }
+    }
+
+    def "streamed refs are copies that hold none of their dex file's tables"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+
+        when:
+        def refClasses = [] as Set
+        SourceFiles.streamDexData(apk, null, 4) { dexFile ->
+            dexFile.forEachRef({ refClasses << it.class }, { refClasses << it.class })
+            dexFile.forEachDeclaredRef({ refClasses << it.class }, { refClasses << it.class })
+            dexFile.forEachInvokedRef { refClasses << it.class }
+        }
+
+        then:
+        refClasses == [MethodRef, FieldRef] as Set
+    }
+
+    def "listed refs are copies that hold none of their dex file's tables"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+
+        when:
+        def dexFiles = SourceFiles.extractDexData(apk)
+        def refClasses = [] as Set
+        dexFiles.each { dexFile ->
+            dexFile.methodRefs.each { refClasses << it.class }
+            dexFile.fieldRefs.each { refClasses << it.class }
+        }
+
+        then:
+        dexFiles*.methodRefs*.size() == [3, 370]
+        refClasses == [MethodRef, FieldRef] as Set
+
+        cleanup:
+        dexFiles*.close()
+    }
+
+    def "entries missing what is asked for are replaced, and unused ones pruned"() {
+        given:
+        def apk = new File(tempDir, "tiles.apk")
+        getClass().getResourceAsStream("/tiles.apk").withStream { input ->
+            apk.append(input)
+        }
+
+        def smaller = new File(tempDir, "tiles-classes2-only.apk")
+        new ZipFile(apk).withCloseable { zip ->
+            new ZipOutputStream(new FileOutputStream(smaller)).withCloseable { out ->
+                out.putNextEntry(new ZipEntry("classes2.dex"))
+                out.write(zip.getInputStream(zip.getEntry("classes2.dex")).bytes)
+                out.closeEntry()
+            }
+        }
+        def cacheDir = new File(tempDir, "dex-cache")
+
+        when:
+        SourceFiles.extractDexData(apk, new DexCache(cacheDir, false, false, false, false))
+        cacheDir.listFiles().each { it.lastModified = 0 }
+
+        def cache = new DexCache(cacheDir, true, true, false, false)
+        def dexFiles = SourceFiles.extractDexData(smaller, cache)
+        cache.pruneUnused()
+
+        def sizes = []
+        dexFiles[0].forEachClassSize { descriptor, code, strings, annotations, debugInfo -> sizes << code }
+
+        then:
+        cacheDir.listFiles().size() == 1
+        cacheDir.listFiles()[0].lastModified() != 0
+        sizes.size() == 30
+        sizes.sum() == 23412
+    }
+
+    /**
+     * Returns a class file with nothing in it but its name and superclass.
+     */
+    private static byte[] classFile(String name, String superName) {
+        def bytes = new ByteArrayOutputStream()
+        new DataOutputStream(bytes).withCloseable { out ->
+            out.writeInt(0xCAFEBABE as int)
+            out.writeShort(0)           // minor_version
+            out.writeShort(52)          // major_version
+            out.writeShort(5)           // constant_pool_count
+            out.writeByte(1)            // #1: CONSTANT_Utf8
+            out.writeUTF(name)
+            out.writeByte(7)            // #2: CONSTANT_Class
+            out.writeShort(1)
+            out.writeByte(1)            // #3: CONSTANT_Utf8
+            out.writeUTF(superName)
+            out.writeByte(7)            // #4: CONSTANT_Class
+            out.writeShort(3)
+            out.writeShort(0x21)        // access_flags: public super
+            out.writeShort(2)           // this_class
+            out.writeShort(4)           // super_class
+            // no interfaces, fields, methods or attributes
+            4.times { out.writeShort(0) }
+        }
+        return bytes.toByteArray()
+    }
 }
@@ -38,4 +38,29 @@ final class JarFileSpec extends Specification {
         cleanup:
         aarFile.delete()
     }
+
+    def "declared members are named by descriptor"() {
+        given:
+        def aarFile = File.createTempFile("test", ".aar")
+
+        getClass().getResourceAsStream('/android-beacon-library-2.7.aar').withStream { input ->
+            aarFile.append(input)
+        }
+
+        when:
+        def jarFile = SourceFiles.extractJarFromAar(aarFile)
+        def methods = jarFile.methodRefs.findAll { it.declClassName == "Lorg/altbeacon/beacon/AltBeacon;" }
+        def fields = jarFile.fieldRefs.findAll { it.declClassName == "Lorg/altbeacon/beacon/AltBeacon;" }
+        def writeToParcel = methods.find { it.name == "writeToParcel" }
+
+        then:
+        methods.size() == 7
+        writeToParcel.argumentTypeNames as List == ["Landroid/os/Parcel;", "I"]
+        writeToParcel.returnTypeName == "V"
+        fields*.name == ["TAG", "CREATOR"]
+        fields*.typeName == ["Ljava/lang/String;", "Landroid/os/Parcelable\$Creator;"]
+
+        cleanup:
+        aarFile.delete()
+    }
 }